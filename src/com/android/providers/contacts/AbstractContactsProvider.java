@@ -39,6 +39,7 @@ import com.android.internal.util.ProviderAccessStats;
 import com.android.providers.contacts.ContactsDatabaseHelper.AccountsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.util.OperationStats;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -69,11 +70,6 @@ public abstract class AbstractContactsProvider extends ContentProvider
      */
     private static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
 
-    /**
-     * Number of inserts performed in bulk to allow before yielding the transaction.
-     */
-    private static final int BULK_INSERTS_PER_YIELD_POINT = 50;
-
     /**
      * The contacts transaction that is active in this thread.
      */
@@ -118,6 +114,8 @@ public abstract class AbstractContactsProvider extends ContentProvider
 
     protected final ProviderAccessStats mStats = new ProviderAccessStats();
 
+    protected final OperationStats mOperationStats = new OperationStats();
+
     @Override
     public boolean onCreate() {
         Context context = getContext();
@@ -220,23 +218,32 @@ public abstract class AbstractContactsProvider extends ContentProvider
         mStats.incrementBatchStats(callingUid);
         try {
             ContactsTransaction transaction = startTransaction(true);
+            final YieldPolicy yieldPolicy = newYieldPolicy();
+            final BulkInserter inserter = newBulkInserter(uri);
             int numValues = values.length;
-            int opCount = 0;
             try {
+                inserter.prepare(values);
                 for (int i = 0; i < numValues; i++) {
-                    insert(uri, values[i]);
-                    if (++opCount >= BULK_INSERTS_PER_YIELD_POINT) {
-                        opCount = 0;
+                    if (inserter.insert(values[i]) != null) {
+                        transaction.markDirty();
+                    }
+                    if (yieldPolicy.onOperation()) {
+                        final boolean yielded;
                         try {
-                            this.yield(transaction);
+                            yielded = this.yield(transaction);
+                            yieldPolicy.onYieldAttempted(yielded);
                         } catch (RuntimeException re) {
                             transaction.markYieldFailed();
                             throw re;
                         }
+                        if (yielded) {
+                            inserter.onYielded(values, i + 1);
+                        }
                     }
                 }
                 transaction.markSuccessful(true);
             } finally {
+                inserter.close();
                 endTransaction(true);
             }
             return numValues;
@@ -256,7 +263,9 @@ public abstract class AbstractContactsProvider extends ContentProvider
             }
             int ypCount = 0;
             int opCount = 0;
+            boolean shouldYield = false;
             ContactsTransaction transaction = startTransaction(true);
+            final YieldPolicy yieldPolicy = newYieldPolicy();
             try {
                 final int numOperations = operations.size();
                 final ContentProviderResult[] results = new ContentProviderResult[numOperations];
@@ -269,21 +278,30 @@ public abstract class AbstractContactsProvider extends ContentProvider
                     }
                     final ContentProviderOperation operation = operations.get(i);
                     if (i > 0 && operation.isYieldAllowed()) {
-                        if (VERBOSE_LOGGING) {
-                            Log.v(TAG, "applyBatch: " + opCount + " ops finished; about to yield...");
-                        }
                         opCount = 0;
-                        try {
-                            if (this.yield(transaction)) {
-                                ypCount++;
+                        // Only yield where the caller allows it, so that the operations between
+                        // two yield points stay atomic, but let the policy skip yield points
+                        // while the transaction is within its budget.
+                        if (shouldYield) {
+                            if (VERBOSE_LOGGING) {
+                                Log.v(TAG, "applyBatch: " + i + " ops finished; about to yield...");
+                            }
+                            shouldYield = false;
+                            try {
+                                final boolean yielded = this.yield(transaction);
+                                if (yielded) {
+                                    ypCount++;
+                                }
+                                yieldPolicy.onYieldAttempted(yielded);
+                            } catch (RuntimeException re) {
+                                transaction.markYieldFailed();
+                                throw re;
                             }
-                        } catch (RuntimeException re) {
-                            transaction.markYieldFailed();
-                            throw re;
                         }
                     }
 
                     results[i] = operation.apply(this, results, i);
+                    shouldYield |= yieldPolicy.onOperation();
                 }
                 transaction.markSuccessful(true);
                 return results;
@@ -310,8 +328,10 @@ public abstract class AbstractContactsProvider extends ContentProvider
         if (transaction == null) {
             transaction = new ContactsTransaction(callerIsBatch);
             if (mSerializeOnDbHelper != null) {
+                final long lockWaitStart = SystemClock.elapsedRealtimeNanos();
                 transaction.startTransactionForDb(mSerializeOnDbHelper.getWritableDatabase(),
                         mSerializeDbTag, mSerializedDbTransactionListener);
+                OperationStats.addLockWait(SystemClock.elapsedRealtimeNanos() - lockWaitStart);
             }
             mTransactionHolder.set(transaction);
         }
@@ -368,6 +388,58 @@ public abstract class AbstractContactsProvider extends ContentProvider
 
     protected abstract boolean yield(ContactsTransaction transaction);
 
+    /**
+     * Returns the policy deciding when a new batch operation should attempt to yield.
+     */
+    protected YieldPolicy newYieldPolicy() {
+        return new YieldPolicy();
+    }
+
+    /**
+     * Inserts the rows of a single {@link #bulkInsert} into one URI.  Its methods are called
+     * within the batch transaction, on the calling thread.
+     */
+    protected interface BulkInserter {
+        /**
+         * Called once with all the rows of the batch before the first one is inserted, so that
+         * state needed by many rows can be looked up at once.
+         */
+        default void prepare(ContentValues[] values) {
+        }
+
+        /**
+         * Inserts one row, the same way {@link #insert} would.
+         *
+         * @return the URI of the new row, or null if nothing was inserted
+         */
+        Uri insert(ContentValues values);
+
+        /**
+         * Called when the batch yielded the database to other threads, which may have changed
+         * whatever {@link #prepare} looked up.
+         *
+         * @param next the index of the next row to be inserted
+         */
+        default void onYielded(ContentValues[] values, int next) {
+        }
+
+        /**
+         * Releases any resources held for the batch.  Called once after the last row, even if
+         * the batch failed.
+         */
+        default void close() {
+        }
+    }
+
+    /**
+     * Returns the inserter for a new {@link #bulkInsert} into the given URI.  By default every
+     * row goes through {@link #insert}; subclasses can instead resolve per-URI state once for
+     * the whole batch.
+     */
+    protected BulkInserter newBulkInserter(Uri uri) {
+        return values -> insert(uri, values);
+    }
+
     protected abstract void notifyChange();
 
     private static final String ACCOUNTS_QUERY =
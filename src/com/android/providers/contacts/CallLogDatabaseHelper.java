@@ -25,6 +25,7 @@ import android.database.sqlite.SQLiteCantOpenDatabaseException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.preference.PreferenceManager;
+import android.provider.BaseColumns;
 import android.provider.CallLog.Calls;
 import android.provider.VoicemailContract;
 import android.provider.VoicemailContract.Status;
@@ -32,6 +33,7 @@ import android.provider.VoicemailContract.Voicemails;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.ArraySet;
 import android.util.Log;
 
@@ -50,7 +52,7 @@ public class CallLogDatabaseHelper {
     private static final String TAG = "CallLogDatabaseHelper";
 
     @VisibleForTesting
-    static final int DATABASE_VERSION = 11;
+    static final int DATABASE_VERSION = 14;
 
     private static final boolean DEBUG = false; // DON'T SUBMIT WITH TRUE
 
@@ -75,6 +77,29 @@ public class CallLogDatabaseHelper {
     public interface Tables {
         String CALLS = "calls";
         String VOICEMAIL_STATUS = "voicemail_status";
+
+        /**
+         * The files of deleted voicemails, which {@link VoicemailContentTable} deletes in the
+         * background.
+         */
+        String DELETED_VOICEMAIL_FILES = "deleted_voicemail_files";
+
+        /** Number of calls and their total duration per number and call type. */
+        String CALLS_BY_NUMBER = "calls_by_number";
+
+        /** Number of calls and their total duration per day (in UTC) and call type. */
+        String CALLS_BY_DAY = "calls_by_day";
+    }
+
+    /**
+     * Columns of {@link Tables#CALLS_BY_NUMBER} and {@link Tables#CALLS_BY_DAY}, which also have
+     * {@link Calls#TYPE} and respectively {@link Calls#NUMBER} and {@link #DAY}.
+     */
+    public interface CallsSummaryColumns {
+        /** The day of the calls, counted in days since the epoch. */
+        String DAY = "day";
+        String CALL_COUNT = "call_count";
+        String DURATION = "duration";
     }
 
     public interface DbProperties {
@@ -114,6 +139,10 @@ public class CallLogDatabaseHelper {
                 Log.d(TAG, "onCreate");
             }
 
+            // Lets CallLogRetention give the space of deleted calls back without a full vacuum.
+            // This only takes effect before the first table is created.
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+
             PropertyUtils.createPropertiesTable(db);
 
             // *** NOTE ABOUT CHANGING THE DB SCHEMA ***
@@ -204,6 +233,9 @@ public class CallLogDatabaseHelper {
                     VoicemailContract.Status.SOURCE_TYPE + " TEXT" +
                     ");");
 
+            createDeletedVoicemailFilesTable(db);
+            createCallsIndexes(db);
+            createCallsSummaries(db);
         }
 
         @Override
@@ -251,6 +283,18 @@ public class CallLogDatabaseHelper {
             if (oldVersion < 11) {
                 upgradeToVersion11(db);
             }
+
+            if (oldVersion < 12) {
+                upgradeToVersion12(db);
+            }
+
+            if (oldVersion < 13) {
+                upgradeToVersion13(db);
+            }
+
+            if (oldVersion < 14) {
+                upgradeToVersion14(db);
+            }
         }
 
         @Override
@@ -532,6 +576,128 @@ public class CallLogDatabaseHelper {
         mPhoneAccountHandleMigrationUtils.migrateIccIdToSubId(db);
     }
 
+    private void upgradeToVersion12(SQLiteDatabase db) {
+        createDeletedVoicemailFilesTable(db);
+    }
+
+    private static void createDeletedVoicemailFilesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.DELETED_VOICEMAIL_FILES + " (" +
+                BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                Voicemails._DATA + " TEXT NOT NULL" +
+                ");");
+    }
+
+    private void upgradeToVersion13(SQLiteDatabase db) {
+        createCallsIndexes(db);
+    }
+
+    /**
+     * Creates the indexes of the calls table for the queries of call log and voicemail lists,
+     * which are sorted by date.  Each index only has the rows of one kind of list, and its WHERE
+     * clause is the restriction the providers add to such queries, so that SQLite can use it.
+     */
+    private static void createCallsIndexes(SQLiteDatabase db) {
+        // CallLogProvider always excludes hidden calls.
+        db.execSQL("CREATE INDEX calls_visible_date_index ON " + Tables.CALLS + " (" +
+                Calls.DATE +
+                ") WHERE " + Calls.PHONE_ACCOUNT_HIDDEN + " = 0;");
+
+        // VoicemailContentProvider only sees voicemails.
+        db.execSQL("CREATE INDEX calls_voicemail_date_index ON " + Tables.CALLS + " (" +
+                Calls.DATE +
+                ") WHERE " + Calls.TYPE + " = " + Calls.VOICEMAIL_TYPE + ";");
+    }
+
+    private void upgradeToVersion14(SQLiteDatabase db) {
+        createCallsSummaries(db);
+
+        // Fill the summaries in with the existing calls.
+        db.execSQL("INSERT INTO " + Tables.CALLS_BY_NUMBER + " SELECT " +
+                "IFNULL(" + Calls.NUMBER + ", ''), IFNULL(" + Calls.TYPE + ", 0), COUNT(*), " +
+                "SUM(IFNULL(" + Calls.DURATION + ", 0))" +
+                " FROM " + Tables.CALLS +
+                " WHERE " + Calls.PHONE_ACCOUNT_HIDDEN + " = 0" +
+                " GROUP BY 1, 2");
+        db.execSQL("INSERT INTO " + Tables.CALLS_BY_DAY + " SELECT " +
+                "IFNULL(" + Calls.DATE + ", 0) / " + DateUtils.DAY_IN_MILLIS + ", " +
+                "IFNULL(" + Calls.TYPE + ", 0), COUNT(*), " +
+                "SUM(IFNULL(" + Calls.DURATION + ", 0))" +
+                " FROM " + Tables.CALLS +
+                " WHERE " + Calls.PHONE_ACCOUNT_HIDDEN + " = 0" +
+                " GROUP BY 1, 2");
+    }
+
+    /**
+     * Creates the summary tables of the calls, and the triggers that keep them up to date when
+     * calls are inserted, updated or deleted, so that {@link CallLogProvider} can read them
+     * without going through all of the calls.  Like the call log, they leave hidden calls out.
+     */
+    private static void createCallsSummaries(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.CALLS_BY_NUMBER + " (" +
+                Calls.NUMBER + " TEXT NOT NULL," +
+                Calls.TYPE + " INTEGER NOT NULL," +
+                CallsSummaryColumns.CALL_COUNT + " INTEGER NOT NULL," +
+                CallsSummaryColumns.DURATION + " INTEGER NOT NULL," +
+                "PRIMARY KEY (" + Calls.NUMBER + ", " + Calls.TYPE + ")" +
+                ");");
+        db.execSQL("CREATE TABLE " + Tables.CALLS_BY_DAY + " (" +
+                CallsSummaryColumns.DAY + " INTEGER NOT NULL," +
+                Calls.TYPE + " INTEGER NOT NULL," +
+                CallsSummaryColumns.CALL_COUNT + " INTEGER NOT NULL," +
+                CallsSummaryColumns.DURATION + " INTEGER NOT NULL," +
+                "PRIMARY KEY (" + CallsSummaryColumns.DAY + ", " + Calls.TYPE + ")" +
+                ");");
+
+        final String[][] summaries = {
+                {Tables.CALLS_BY_NUMBER, Calls.NUMBER, "IFNULL(%s." + Calls.NUMBER + ", '')"},
+                {Tables.CALLS_BY_DAY, CallsSummaryColumns.DAY,
+                        "IFNULL(%s." + Calls.DATE + ", 0) / " + DateUtils.DAY_IN_MILLIS},
+        };
+        for (String[] summary : summaries) {
+            final String table = summary[0];
+            final String keyColumn = summary[1];
+            final String newKey = String.format(summary[2], "NEW");
+            final String oldKey = String.format(summary[2], "OLD");
+
+            final String add = "INSERT INTO " + table + " VALUES (" +
+                    newKey + ", IFNULL(NEW." + Calls.TYPE + ", 0), 1, " +
+                    "IFNULL(NEW." + Calls.DURATION + ", 0))" +
+                    " ON CONFLICT (" + keyColumn + ", " + Calls.TYPE + ") DO UPDATE SET " +
+                    CallsSummaryColumns.CALL_COUNT + " = " + CallsSummaryColumns.CALL_COUNT +
+                    " + 1, " +
+                    CallsSummaryColumns.DURATION + " = " + CallsSummaryColumns.DURATION +
+                    " + excluded." + CallsSummaryColumns.DURATION + ";";
+            final String oldSelection = " WHERE " + keyColumn + " = " + oldKey +
+                    " AND " + Calls.TYPE + " = IFNULL(OLD." + Calls.TYPE + ", 0)";
+            final String remove = "UPDATE " + table + " SET " +
+                    CallsSummaryColumns.CALL_COUNT + " = " + CallsSummaryColumns.CALL_COUNT +
+                    " - 1, " +
+                    CallsSummaryColumns.DURATION + " = " + CallsSummaryColumns.DURATION +
+                    " - IFNULL(OLD." + Calls.DURATION + ", 0)" + oldSelection + ";" +
+                    " DELETE FROM " + table + oldSelection +
+                    " AND " + CallsSummaryColumns.CALL_COUNT + " <= 0;";
+            final String summarizedColumns = Calls.NUMBER + ", " + Calls.DATE + ", " +
+                    Calls.TYPE + ", " + Calls.DURATION + ", " + Calls.PHONE_ACCOUNT_HIDDEN;
+
+            db.execSQL("CREATE TRIGGER " + table + "_insert AFTER INSERT ON " + Tables.CALLS +
+                    " WHEN NEW." + Calls.PHONE_ACCOUNT_HIDDEN + " = 0" +
+                    " BEGIN " + add + " END");
+            db.execSQL("CREATE TRIGGER " + table + "_delete AFTER DELETE ON " + Tables.CALLS +
+                    " WHEN OLD." + Calls.PHONE_ACCOUNT_HIDDEN + " = 0" +
+                    " BEGIN " + remove + " END");
+            // An update moves the call from one row of the summary to another, which may be the
+            // same one.
+            db.execSQL("CREATE TRIGGER " + table + "_update_remove AFTER UPDATE OF " +
+                    summarizedColumns + " ON " + Tables.CALLS +
+                    " WHEN OLD." + Calls.PHONE_ACCOUNT_HIDDEN + " = 0" +
+                    " BEGIN " + remove + " END");
+            db.execSQL("CREATE TRIGGER " + table + "_update_add AFTER UPDATE OF " +
+                    summarizedColumns + " ON " + Tables.CALLS +
+                    " WHEN NEW." + Calls.PHONE_ACCOUNT_HIDDEN + " = 0" +
+                    " BEGIN " + add + " END");
+        }
+    }
+
     @VisibleForTesting
     static boolean tableExists(SQLiteDatabase db, String table) {
         return DatabaseUtils.longForQuery(db,
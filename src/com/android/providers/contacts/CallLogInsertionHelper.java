@@ -17,6 +17,9 @@
 package com.android.providers.contacts;
 
 import android.content.ContentValues;
+import android.provider.CallLog.Calls;
+
+import java.io.PrintWriter;
 
 /**
  * Helper class to be used when inserting values in the call log.
@@ -24,6 +27,17 @@ import android.content.ContentValues;
 public interface CallLogInsertionHelper {
     /** Adds to the content values those key/value pairs which needs to added automatically. */
     public void addComputedValues(ContentValues values);
+    /**
+     * Same as {@link #addComputedValues}, but without the geocoded location, which is left to be
+     * computed later with {@link #getGeocodedLocationFor}.
+     */
+    public default void addComputedValuesWithoutGeocoding(ContentValues values) {
+        addComputedValues(values);
+        values.remove(Calls.GEOCODED_LOCATION);
+    }
     /** Returns the geocoded location for a given phone number. */
     public String getGeocodedLocationFor(String number, String countryIso);
+    /** Dumps the state of the helper, if it has any. */
+    public default void dump(PrintWriter pw, String prefix) {
+    }
 }
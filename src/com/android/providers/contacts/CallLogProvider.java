@@ -47,10 +47,12 @@ import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelableException;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
+import android.provider.DeviceConfig;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
@@ -58,17 +60,23 @@ import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.ArrayMap;
 import android.util.EventLog;
 import android.util.LocalLog;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.ProviderAccessStats;
+import com.android.providers.contacts.CallLogDatabaseHelper.CallsSummaryColumns;
 import com.android.providers.contacts.CallLogDatabaseHelper.DbProperties;
 import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
 import com.android.providers.contacts.util.FileUtilities;
 import com.android.providers.contacts.util.NeededForTesting;
+import com.android.providers.contacts.util.OperationStats;
+import com.android.providers.contacts.util.OperationStats.OperationType;
 import com.android.providers.contacts.util.SelectionBuilder;
 import com.android.providers.contacts.util.UserUtils;
 
@@ -86,6 +94,7 @@ import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -106,6 +115,36 @@ public class CallLogProvider extends ContentProvider {
     protected static final int BACKGROUND_TASK_INITIALIZE = 0;
     private static final int BACKGROUND_TASK_ADJUST_PHONE_ACCOUNT = 1;
     private static final int BACKGROUND_TASK_MIGRATE_PHONE_ACCOUNT_HANDLES = 2;
+    @VisibleForTesting
+    protected static final int BACKGROUND_TASK_GEOCODE = 3;
+
+    /**
+     * Device config flag to insert calls without their geocoded location, which is then filled
+     * in by {@link #BACKGROUND_TASK_GEOCODE}.
+     */
+    private static final String DEFER_GEOCODING_KEY = "defer_call_log_geocoding";
+
+    /** Calls geocoded per transaction by {@link #BACKGROUND_TASK_GEOCODE}. */
+    private static final int GEOCODING_BATCH_SIZE = 50;
+
+    /**
+     * Most recent calls checked for a missing geocoded location at startup.  Calls whose number
+     * cannot be geocoded are checked again every time, so the scan is bounded.
+     */
+    private static final int GEOCODING_RESCAN_LIMIT = 500;
+
+    @VisibleForTesting
+    protected static final int BACKGROUND_TASK_APPLY_RETENTION = 4;
+
+    /**
+     * Device config flags for the maximum age in days and number of calls in the call log, or
+     * 0 for no limit.  Both are enforced by {@link #BACKGROUND_TASK_APPLY_RETENTION}.
+     */
+    private static final String RETENTION_MAX_AGE_DAYS_KEY = "call_log_retention_max_age_days";
+    private static final String RETENTION_MAX_CALLS_KEY = "call_log_retention_max_calls";
+
+    /** Minimum time between two runs of {@link #BACKGROUND_TASK_APPLY_RETENTION} after inserts. */
+    private static final long RETENTION_INTERVAL_MILLIS = 60 * 60 * 1000;
 
     /** Selection clause for selecting all calls that were made after a certain time */
     private static final String MORE_RECENT_THAN_SELECTION = Calls.DATE + "> ?";
@@ -181,6 +220,43 @@ public class CallLogProvider extends ContentProvider {
 
     private static final int CALL_COMPOSER_PICTURE = 5;
 
+    private static final int CALLS_SUMMARY_BY_NUMBER = 6;
+
+    private static final int CALLS_SUMMARY_BY_DAY = 7;
+
+    /**
+     * Path of the number of calls and their total duration per number, most called first.  The
+     * columns are {@link Calls#NUMBER}, {@link CallsSummaryColumns#CALL_COUNT} and
+     * {@link CallsSummaryColumns#DURATION}.
+     */
+    public static final String CALLS_SUMMARY_BY_NUMBER_PATH = "calls/summary/by_number";
+
+    /**
+     * Path of the number of calls and their total duration per day in UTC, most recent first.
+     * The columns are {@link CallsSummaryColumns#DAY}, {@link CallsSummaryColumns#CALL_COUNT}
+     * and {@link CallsSummaryColumns#DURATION}.
+     */
+    public static final String CALLS_SUMMARY_BY_DAY_PATH = "calls/summary/by_day";
+
+    /** Query parameter of the summaries to only count the calls of one {@link Calls#TYPE}. */
+    public static final String SUMMARY_TYPE_PARAM_KEY = "type";
+
+    /**
+     * Query parameters of {@link #CALLS_SUMMARY_BY_NUMBER_PATH} to get the rows after the given
+     * count and number, which are those of the last row of the previous page.
+     */
+    public static final String SUMMARY_AFTER_COUNT_PARAM_KEY = "after_count";
+    public static final String SUMMARY_AFTER_NUMBER_PARAM_KEY = "after_number";
+
+    /**
+     * Query parameter of {@link #CALLS_SUMMARY_BY_DAY_PATH} to get the days before the given
+     * one, which is that of the last row of the previous page.
+     */
+    public static final String SUMMARY_BEFORE_DAY_PARAM_KEY = "before_day";
+
+    private static final String CALLS_SUMMARY_CONTENT_TYPE =
+            "vnd.android.cursor.dir/calls_summary";
+
     private static final String UNHIDE_BY_PHONE_ACCOUNT_QUERY =
             "UPDATE " + Tables.CALLS + " SET " + Calls.PHONE_ACCOUNT_HIDDEN + "=0 WHERE " +
             Calls.PHONE_ACCOUNT_COMPONENT_NAME + "=? AND " + Calls.PHONE_ACCOUNT_ID + "=?;";
@@ -194,6 +270,9 @@ public class CallLogProvider extends ContentProvider {
         sURIMatcher.addURI(CallLog.AUTHORITY, "calls", CALLS);
         sURIMatcher.addURI(CallLog.AUTHORITY, "calls/#", CALLS_ID);
         sURIMatcher.addURI(CallLog.AUTHORITY, "calls/filter/*", CALLS_FILTER);
+        sURIMatcher.addURI(CallLog.AUTHORITY, CALLS_SUMMARY_BY_NUMBER_PATH,
+                CALLS_SUMMARY_BY_NUMBER);
+        sURIMatcher.addURI(CallLog.AUTHORITY, CALLS_SUMMARY_BY_DAY_PATH, CALLS_SUMMARY_BY_DAY);
         sURIMatcher.addURI(CallLog.AUTHORITY, CallLog.CALL_COMPOSER_SEGMENT,
                 CALL_COMPOSER_NEW_PICTURE);
         sURIMatcher.addURI(CallLog.AUTHORITY, CallLog.CALL_COMPOSER_SEGMENT + "/*",
@@ -320,8 +399,26 @@ public class CallLogProvider extends ContentProvider {
     private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<>();
     private final ThreadLocal<Integer> mCallingUid = new ThreadLocal<>();
     private final ProviderAccessStats mStats = new ProviderAccessStats();
+    private final OperationStats mOperationStats = new OperationStats();
     private final Set<PhoneAccountHandle> mMigratedPhoneAccountHandles = new HashSet<>();
 
+    private volatile boolean mDeferGeocoding;
+
+    // Calls inserted without their geocoded location, in the order they were inserted.
+    @GuardedBy("mPendingGeocodingIds")
+    private final ArrayList<Long> mPendingGeocodingIds = new ArrayList<>();
+
+    // Held while geocoding, so that only one thread does it at a time.
+    private final Object mGeocodingLock = new Object();
+
+    private CallLogRetention mRetention;
+    private volatile long mRetentionMaxAgeMillis;
+    private volatile int mRetentionMaxCalls;
+
+    // Elapsed realtime at which BACKGROUND_TASK_APPLY_RETENTION was last scheduled.
+    @GuardedBy("mRetention")
+    private long mRetentionScheduledMillis;
+
     protected boolean isShadow() {
         return false;
     }
@@ -351,6 +448,13 @@ public class CallLogProvider extends ContentProvider {
                     com.android.internal.R.integer.config_phonenumber_compare_min_match);
         mVoicemailPermissions = new VoicemailPermissions(context);
         mCallLogInsertionHelper = createCallLogInsertionHelper(context);
+        mDeferGeocoding = DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_CONTACTS_PROVIDER,
+                DEFER_GEOCODING_KEY, false);
+        mRetention = new CallLogRetention(mDbHelper);
+        mRetentionMaxAgeMillis = DateUtils.DAY_IN_MILLIS * DeviceConfig.getInt(
+                DeviceConfig.NAMESPACE_CONTACTS_PROVIDER, RETENTION_MAX_AGE_DAYS_KEY, 0);
+        mRetentionMaxCalls = DeviceConfig.getInt(DeviceConfig.NAMESPACE_CONTACTS_PROVIDER,
+                RETENTION_MAX_CALLS_KEY, 0);
 
         mReadAccessLatch = new CountDownLatch(1);
 
@@ -381,6 +485,17 @@ public class CallLogProvider extends ContentProvider {
         return DefaultCallLogInsertionHelper.getInstance(context);
     }
 
+    @VisibleForTesting
+    void setDeferGeocodingForTest(boolean deferGeocoding) {
+        mDeferGeocoding = deferGeocoding;
+    }
+
+    @VisibleForTesting
+    void setRetentionForTest(long maxAgeMillis, int maxCalls) {
+        mRetentionMaxAgeMillis = maxAgeMillis;
+        mRetentionMaxCalls = maxCalls;
+    }
+
     @VisibleForTesting
     public void setMinMatchForTest(int minMatch) {
         mMinMatch = minMatch;
@@ -425,6 +540,7 @@ public class CallLogProvider extends ContentProvider {
         final int callingUid = Binder.getCallingUid();
         mCallingUid.set(callingUid);
 
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         mStats.incrementBatchStats(callingUid);
         mApplyingBatch.set(true);
         try {
@@ -432,6 +548,8 @@ public class CallLogProvider extends ContentProvider {
         } finally {
             mApplyingBatch.set(false);
             mStats.finishOperation(callingUid);
+            mOperationStats.record(OperationType.APPLY_BATCH, OperationStats.NO_MATCH, startNanos,
+                    operations.size(), null, null);
         }
     }
 
@@ -440,13 +558,18 @@ public class CallLogProvider extends ContentProvider {
         final int callingUid = Binder.getCallingUid();
         mCallingUid.set(callingUid);
 
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         mStats.incrementBatchStats(callingUid);
         mApplyingBatch.set(true);
+        int inserted = 0;
         try {
-            return super.bulkInsert(uri, values);
+            inserted = super.bulkInsert(uri, values);
+            return inserted;
         } finally {
             mApplyingBatch.set(false);
             mStats.finishOperation(callingUid);
+            mOperationStats.record(OperationType.BULK_INSERT, sURIMatcher.match(uri), startNanos,
+                    inserted, null, null);
         }
     }
 
@@ -456,11 +579,15 @@ public class CallLogProvider extends ContentProvider {
         // Note don't use mCallingUid here. That's only used by mutation functions.
         final int callingUid = Binder.getCallingUid();
 
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         mStats.incrementQueryStats(callingUid);
         try {
             return queryInternal(uri, projection, selection, selectionArgs, sortOrder);
         } finally {
             mStats.finishOperation(callingUid);
+            // Don't count the rows, that would fill the cursor window on the binder thread.
+            mOperationStats.record(OperationType.QUERY, sURIMatcher.match(uri), startNanos,
+                    0, selection, sortOrder);
         }
     }
 
@@ -477,6 +604,11 @@ public class CallLogProvider extends ContentProvider {
         queryForTesting(uri);
 
         waitForAccess(mReadAccessLatch);
+        final int match = sURIMatcher.match(uri);
+        if (match == CALLS_SUMMARY_BY_NUMBER || match == CALLS_SUMMARY_BY_DAY) {
+            return querySummary(uri, match, selection, sortOrder);
+        }
+
         final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(Tables.CALLS);
         qb.setProjectionMap(sCallsProjectionMap);
@@ -493,7 +625,6 @@ public class CallLogProvider extends ContentProvider {
         checkVoicemailPermissionAndAddRestriction(uri, selectionBuilder, true /*isQuery*/);
         selectionBuilder.addClause(EXCLUDE_HIDDEN_SELECTION);
 
-        final int match = sURIMatcher.match(uri);
         switch (match) {
             case CALLS:
                 break;
@@ -546,6 +677,70 @@ public class CallLogProvider extends ContentProvider {
         return c;
     }
 
+    /**
+     * Queries the number of calls and their total duration per number or per day.  They are read
+     * from the summaries that {@link CallLogDatabaseHelper} keeps up to date rather than from the
+     * calls themselves.  Days are read in key order, so a page of them costs about as much as the
+     * rows returned.  Numbers are ordered by their aggregated call count, which is also what the
+     * page key is compared with, so every page groups and sorts the summaries of all numbers.
+     *
+     * <p>Pages of {@link Calls#LIMIT_PARAM_KEY} rows are fetched with the key of the last row of
+     * the previous page.  The projection is ignored, and there is no selection or sort order.
+     */
+    private Cursor querySummary(Uri uri, int match, String selection, String sortOrder) {
+        if (selection != null || sortOrder != null) {
+            throw new IllegalArgumentException(
+                    "Selection and sort order are not supported for " + uri);
+        }
+        final SelectionBuilder selectionBuilder = new SelectionBuilder(null);
+        checkVoicemailPermissionAndAddRestriction(uri, selectionBuilder, true /*isQuery*/);
+        final int type = getIntParam(uri, SUMMARY_TYPE_PARAM_KEY, -1);
+        if (type >= 0) {
+            selectionBuilder.addClause(getEqualityClause(Calls.TYPE, type));
+        }
+
+        final String callCount = "SUM(" + CallsSummaryColumns.CALL_COUNT + ")";
+        final String duration = "SUM(" + CallsSummaryColumns.DURATION + ")";
+        final String table;
+        final String keyColumn;
+        String having = null;
+        String[] havingArgs = null;
+        final String orderBy;
+        if (match == CALLS_SUMMARY_BY_NUMBER) {
+            table = Tables.CALLS_BY_NUMBER;
+            keyColumn = Calls.NUMBER;
+            final int afterCount = getIntParam(uri, SUMMARY_AFTER_COUNT_PARAM_KEY, -1);
+            if (afterCount >= 0) {
+                final String afterNumber = uri.getQueryParameter(SUMMARY_AFTER_NUMBER_PARAM_KEY);
+                having = callCount + "<" + afterCount + " OR (" + callCount + "=" + afterCount
+                        + " AND " + Calls.NUMBER + ">?)";
+                havingArgs = new String[] {afterNumber != null ? afterNumber : ""};
+            }
+            orderBy = callCount + " DESC, " + Calls.NUMBER;
+        } else {
+            table = Tables.CALLS_BY_DAY;
+            keyColumn = CallsSummaryColumns.DAY;
+            final int beforeDay = getIntParam(uri, SUMMARY_BEFORE_DAY_PARAM_KEY, -1);
+            if (beforeDay >= 0) {
+                selectionBuilder.addClause(CallsSummaryColumns.DAY + "<" + beforeDay);
+            }
+            orderBy = CallsSummaryColumns.DAY + " DESC";
+        }
+        final int limit = getIntParam(uri, Calls.LIMIT_PARAM_KEY, 0);
+
+        final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        final Cursor c = db.query(table, new String[] {
+                        keyColumn,
+                        callCount + " AS " + CallsSummaryColumns.CALL_COUNT,
+                        duration + " AS " + CallsSummaryColumns.DURATION},
+                selectionBuilder.build(), havingArgs, keyColumn, having, orderBy,
+                limit > 0 ? String.valueOf(limit) : null);
+        if (c != null) {
+            c.setNotificationUri(getContext().getContentResolver(), CallLog.CONTENT_URI);
+        }
+        return c;
+    }
+
     /**
      * Helper method for queryInternal that appends an extra argument to the existing selection
      * arguments array.
@@ -655,6 +850,9 @@ public class CallLogProvider extends ContentProvider {
                 return Calls.CONTENT_ITEM_TYPE;
             case CALLS_FILTER:
                 return Calls.CONTENT_TYPE;
+            case CALLS_SUMMARY_BY_NUMBER:
+            case CALLS_SUMMARY_BY_DAY:
+                return CALLS_SUMMARY_CONTENT_TYPE;
             case CALL_COMPOSER_NEW_PICTURE:
                 return null; // No type for newly created files
             case CALL_COMPOSER_PICTURE:
@@ -670,11 +868,16 @@ public class CallLogProvider extends ContentProvider {
         final int callingUid =
                 applyingBatch() ? mCallingUid.get() : Binder.getCallingUid();
 
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         mStats.incrementInsertStats(callingUid, applyingBatch());
+        Uri result = null;
         try {
-            return insertInternal(uri, values);
+            result = insertInternal(uri, values);
+            return result;
         } finally {
             mStats.finishOperation(callingUid);
+            mOperationStats.record(OperationType.INSERT, sURIMatcher.match(uri), startNanos,
+                    result == null ? 0 : 1, null, null);
         }
     }
 
@@ -683,11 +886,16 @@ public class CallLogProvider extends ContentProvider {
         final int callingUid =
                 applyingBatch() ? mCallingUid.get() : Binder.getCallingUid();
 
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         mStats.incrementUpdateStats(callingUid, applyingBatch());
+        int updated = 0;
         try {
-            return updateInternal(uri, values, selection, selectionArgs);
+            updated = updateInternal(uri, values, selection, selectionArgs);
+            return updated;
         } finally {
             mStats.finishOperation(callingUid);
+            mOperationStats.record(OperationType.UPDATE, sURIMatcher.match(uri), startNanos,
+                    updated, selection, null);
         }
     }
 
@@ -696,11 +904,16 @@ public class CallLogProvider extends ContentProvider {
         final int callingUid =
                 applyingBatch() ? mCallingUid.get() : Binder.getCallingUid();
 
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         mStats.incrementDeleteStats(callingUid, applyingBatch());
+        int deleted = 0;
         try {
-            return deleteInternal(uri, selection, selectionArgs);
+            deleted = deleteInternal(uri, selection, selectionArgs);
+            return deleted;
         } finally {
             mStats.finishOperation(callingUid);
+            mOperationStats.record(OperationType.DELETE, sURIMatcher.match(uri), startNanos,
+                    deleted, selection, null);
         }
     }
 
@@ -731,6 +944,9 @@ public class CallLogProvider extends ContentProvider {
                     throw new ParcelableException(e);
                 }
             }
+            case CALLS_SUMMARY_BY_NUMBER:
+            case CALLS_SUMMARY_BY_DAY:
+                throw new UnsupportedOperationException("Cannot insert into URL: " + uri);
             default:
                 // Fall through and execute the rest of the method for ordinary call log insertions.
         }
@@ -749,10 +965,27 @@ public class CallLogProvider extends ContentProvider {
 
         ContentValues copiedValues = new ContentValues(values);
 
-        // Add the computed fields to the copied values.
-        mCallLogInsertionHelper.addComputedValues(copiedValues);
+        // Add the computed fields to the copied values.  The geocoded location needs the
+        // geocoder's metadata, so it can be left for later to keep the insert fast.
+        final boolean deferGeocoding = mDeferGeocoding;
+        if (deferGeocoding) {
+            mCallLogInsertionHelper.addComputedValuesWithoutGeocoding(copiedValues);
+        } else {
+            mCallLogInsertionHelper.addComputedValues(copiedValues);
+        }
 
         long rowId = createDatabaseModifier(mCallsInserter).insert(copiedValues);
+        if (deferGeocoding && rowId > 0) {
+            synchronized (mPendingGeocodingIds) {
+                mPendingGeocodingIds.add(rowId);
+                if (mPendingGeocodingIds.size() == 1) {
+                    mTaskScheduler.scheduleTask(BACKGROUND_TASK_GEOCODE, null);
+                }
+            }
+        }
+        if (rowId > 0) {
+            maybeScheduleRetention();
+        }
         String insertLog = String.format(Locale.getDefault(),
                 "insert uid/pid=%d/%d, uri=%s, rowId=%d",
                 Binder.getCallingUid(), Binder.getCallingPid(), uri, rowId);
@@ -1375,6 +1608,10 @@ public class CallLogProvider extends ContentProvider {
             } finally {
                 mReadAccessLatch.countDown();
             }
+            if (mDeferGeocoding) {
+                requeueUngeocodedCalls();
+            }
+            maybeScheduleRetention();
         } else if (task == BACKGROUND_TASK_ADJUST_PHONE_ACCOUNT) {
             Log.i(TAG, "performBackgroundTask for unhide PhoneAccountHandles");
             adjustForNewPhoneAccountInternal((PhoneAccountHandle) arg);
@@ -1397,7 +1634,147 @@ public class CallLogProvider extends ContentProvider {
                         + " account handle SubId: " + phoneAccountHandle.getId());
                 mDbHelper.migratePendingPhoneAccountHandles(iccId, phoneAccountHandle.getId());
             }
+        } else if (task == BACKGROUND_TASK_GEOCODE) {
+            geocodePendingCalls();
+        } else if (task == BACKGROUND_TASK_APPLY_RETENTION) {
+            applyRetention();
+        }
+    }
+
+    /**
+     * Schedules {@link #BACKGROUND_TASK_APPLY_RETENTION} if a retention limit is set and it was
+     * not scheduled recently.
+     */
+    private void maybeScheduleRetention() {
+        if (mRetentionMaxAgeMillis <= 0 && mRetentionMaxCalls <= 0) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mRetention) {
+            if (mRetentionScheduledMillis != 0
+                    && now - mRetentionScheduledMillis < RETENTION_INTERVAL_MILLIS) {
+                return;
+            }
+            mRetentionScheduledMillis = now;
+        }
+        mTaskScheduler.scheduleTask(BACKGROUND_TASK_APPLY_RETENTION, null);
+    }
+
+    /**
+     * Deletes the calls beyond the retention limits, with their call composer pictures.
+     */
+    private void applyRetention() {
+        final Long timeForTest = getTimeForTestMillis();
+        final long now = timeForTest != null ? timeForTest : System.currentTimeMillis();
+        final int deleted = mRetention.run(mRetentionMaxAgeMillis, mRetentionMaxCalls, now,
+                picture -> {
+                    if (sURIMatcher.match(picture) == CALL_COMPOSER_PICTURE) {
+                        deleteCallComposerPicture(picture);
+                    }
+                });
+        if (deleted > 0) {
+            mLocalLog.log("retention deleted " + deleted + " calls");
+            DbModifierWithNotification.notifyCallLogChange(getContext());
+        }
+    }
+
+    /**
+     * Queues the recent calls which are still missing their geocoded location, for instance
+     * because the process died before {@link #BACKGROUND_TASK_GEOCODE} got to them.
+     */
+    private void requeueUngeocodedCalls() {
+        final ArrayList<Long> callIds = new ArrayList<>();
+        try (Cursor c = mDbHelper.getReadableDatabase().query(Tables.CALLS,
+                new String[] {Calls._ID},
+                Calls.GEOCODED_LOCATION + " IS NULL AND " + Calls.NUMBER + "!=''",
+                null, null, null, Calls._ID + " DESC",
+                String.valueOf(GEOCODING_RESCAN_LIMIT))) {
+            while (c.moveToNext()) {
+                callIds.add(c.getLong(0));
+            }
+        }
+        if (callIds.isEmpty()) {
+            return;
+        }
+        Collections.reverse(callIds);
+        synchronized (mPendingGeocodingIds) {
+            final boolean wasEmpty = mPendingGeocodingIds.isEmpty();
+            mPendingGeocodingIds.addAll(callIds);
+            if (wasEmpty) {
+                mTaskScheduler.scheduleTask(BACKGROUND_TASK_GEOCODE, null);
+            }
+        }
+    }
+
+    /**
+     * Fills in the geocoded location of the calls inserted without it, in batches, and notifies
+     * of the change once at the end.
+     */
+    private void geocodePendingCalls() {
+        synchronized (mGeocodingLock) {
+            int updated = 0;
+            while (true) {
+                final long[] callIds;
+                synchronized (mPendingGeocodingIds) {
+                    if (mPendingGeocodingIds.isEmpty()) {
+                        break;
+                    }
+                    callIds = new long[Math.min(mPendingGeocodingIds.size(),
+                            GEOCODING_BATCH_SIZE)];
+                    for (int i = 0; i < callIds.length; i++) {
+                        callIds[i] = mPendingGeocodingIds.get(i);
+                    }
+                    mPendingGeocodingIds.subList(0, callIds.length).clear();
+                }
+                updated += geocodeCalls(callIds);
+            }
+            if (updated > 0) {
+                DbModifierWithNotification.notifyCallLogChange(getContext());
+            }
+        }
+    }
+
+    private int geocodeCalls(long[] callIds) {
+        final StringBuilder selection = new StringBuilder();
+        selection.append(Calls._ID).append(" IN (");
+        for (int i = 0; i < callIds.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(callIds[i]);
         }
+        // Leave the location alone if it was set since the call was inserted.
+        selection.append(") AND ").append(Calls.GEOCODED_LOCATION).append(" IS NULL");
+
+        final Long timeForTest = getTimeForTestMillis();
+        final long now = timeForTest != null ? timeForTest : System.currentTimeMillis();
+        final ContentValues values = new ContentValues();
+        int updated = 0;
+
+        // The transaction also waits for the one the calls were inserted in, if any, to commit.
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            try (Cursor c = db.query(Tables.CALLS,
+                    new String[] {Calls._ID, Calls.NUMBER, Calls.COUNTRY_ISO},
+                    selection.toString(), null, null, null, null)) {
+                while (c.moveToNext()) {
+                    final String location = mCallLogInsertionHelper.getGeocodedLocationFor(
+                            c.getString(1), c.getString(2));
+                    if (location == null) {
+                        continue;
+                    }
+                    values.put(Calls.GEOCODED_LOCATION, location);
+                    values.put(Calls.LAST_MODIFIED, now);
+                    updated += db.update(Tables.CALLS, values, Calls._ID + "=?",
+                            new String[] {String.valueOf(c.getLong(0))});
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return updated;
     }
 
     @Override
@@ -1409,6 +1786,20 @@ public class CallLogProvider extends ContentProvider {
     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
         mStats.dump(writer, "  ");
         writer.println();
+        mOperationStats.dump(writer, "  ");
+        if (ArrayUtils.contains(args, OperationStats.DUMP_ARG_RESET)) {
+            mOperationStats.reset();
+        }
+        writer.println();
+        mCallLogInsertionHelper.dump(writer, "  ");
+        synchronized (mPendingGeocodingIds) {
+            writer.printf("  Deferred geocoding: enabled=%b  pending=%d\n", mDeferGeocoding,
+                    mPendingGeocodingIds.size());
+        }
+        writer.printf("  Retention: max age=%d days  max calls=%d\n",
+                mRetentionMaxAgeMillis / DateUtils.DAY_IN_MILLIS, mRetentionMaxCalls);
+        mRetention.dump(writer, "  ");
+        writer.println();
         writer.println("Latest call log activity:");
         mLocalLog.dump(writer);
     }
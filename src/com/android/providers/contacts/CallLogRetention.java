@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import static com.android.providers.contacts.util.DbQueryUtils.getInequalityClause;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.CallLog.Calls;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Trims the call log to a maximum age and number of calls, and gives the space back.
+ *
+ * <p>The oldest calls are deleted first, a few at a time, each chunk in its own transaction so
+ * that other users of the database are not held up for long.  Voicemails are left alone; they
+ * are owned by the voicemail source that inserted them.  The call composer pictures of deleted
+ * calls are removed once their chunk is committed.
+ *
+ * <p>The database is then vacuumed incrementally.  Only a database created with incremental
+ * vacuum turned on, see {@link CallLogDatabaseHelper}, can give space back; a full vacuum would
+ * rewrite the whole database while the provider is in use, so older databases keep their free
+ * pages for reuse.
+ *
+ * <p>This class is thread-safe; runs are serialized.
+ */
+public class CallLogRetention {
+    private static final String TAG = "CallLogRetention";
+
+    /** Calls deleted per transaction. */
+    @VisibleForTesting
+    static final int DELETE_CHUNK_SIZE = 100;
+
+    /** Pages freed per incremental vacuum step. */
+    private static final int INCREMENTAL_VACUUM_PAGES = 256;
+
+    /** Value of PRAGMA auto_vacuum for incremental vacuum. */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final String EXCLUDE_VOICEMAIL_SELECTION = getInequalityClause(
+            Calls.TYPE, Calls.VOICEMAIL_TYPE);
+
+    private static final String[] DELETE_PROJECTION = {Calls._ID, Calls.COMPOSER_PHOTO_URI};
+
+    private final CallLogDatabaseHelper mDbHelper;
+
+    // Held while running, so that only one thread does it at a time.
+    private final Object mRunLock = new Object();
+
+    private final Object mLock = new Object();
+
+    // All guarded by mLock.
+    private long mRunCount;
+    private long mDeletedCount;
+    private long mPictureCount;
+    private long mReclaimedBytes;
+    private long mLastRunMillis;
+    private long mTotalRunMillis;
+
+    public CallLogRetention(CallLogDatabaseHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Deletes the calls that are older than the given age or beyond the given number of calls,
+     * and vacuums the database.
+     *
+     * @param maxAgeMillis the maximum age of a call, or 0 for no limit
+     * @param maxCalls the maximum number of calls, or 0 for no limit
+     * @param nowMillis the current time
+     * @param pictureRemover called with the call composer picture of each deleted call
+     * @return the number of calls deleted
+     */
+    public int run(long maxAgeMillis, int maxCalls, long nowMillis,
+            Consumer<Uri> pictureRemover) {
+        synchronized (mRunLock) {
+            final long start = SystemClock.elapsedRealtime();
+            final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            final List<Uri> pictures = new ArrayList<>();
+            int deleted = 0;
+
+            if (maxAgeMillis > 0) {
+                final String selection = EXCLUDE_VOICEMAIL_SELECTION + " AND "
+                        + Calls.DATE + "<?";
+                final String[] selectionArgs = {String.valueOf(nowMillis - maxAgeMillis)};
+                int count;
+                do {
+                    count = deleteOldestCalls(db, selection, selectionArgs, DELETE_CHUNK_SIZE,
+                            pictures);
+                    deleted += count;
+                    removePictures(pictures, pictureRemover);
+                } while (count == DELETE_CHUNK_SIZE);
+            }
+
+            if (maxCalls > 0) {
+                long excess = DatabaseUtils.queryNumEntries(db, Tables.CALLS,
+                        EXCLUDE_VOICEMAIL_SELECTION) - maxCalls;
+                while (excess > 0) {
+                    final int count = deleteOldestCalls(db, EXCLUDE_VOICEMAIL_SELECTION, null,
+                            (int) Math.min(excess, DELETE_CHUNK_SIZE), pictures);
+                    if (count == 0) {
+                        break;
+                    }
+                    deleted += count;
+                    excess -= count;
+                    removePictures(pictures, pictureRemover);
+                }
+            }
+
+            final long reclaimedBytes = deleted > 0 ? vacuum(db) : 0;
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+            synchronized (mLock) {
+                mRunCount++;
+                mDeletedCount += deleted;
+                mReclaimedBytes += reclaimedBytes;
+                mLastRunMillis = elapsed;
+                mTotalRunMillis += elapsed;
+            }
+            Log.i(TAG, "Deleted " + deleted + " calls, reclaimed " + reclaimedBytes
+                    + " bytes in " + elapsed + " ms");
+            return deleted;
+        }
+    }
+
+    /**
+     * Deletes the oldest calls matching a selection, in one transaction.
+     *
+     * @param pictures the call composer pictures of the deleted calls are added to it
+     * @return the number of calls deleted
+     */
+    private int deleteOldestCalls(SQLiteDatabase db, String selection, String[] selectionArgs,
+            int limit, List<Uri> pictures) {
+        final StringBuilder ids = new StringBuilder();
+        db.beginTransaction();
+        try {
+            try (Cursor c = db.query(Tables.CALLS, DELETE_PROJECTION, selection, selectionArgs,
+                    null, null, Calls.DATE + " ASC, " + Calls._ID + " ASC",
+                    String.valueOf(limit))) {
+                while (c.moveToNext()) {
+                    if (ids.length() > 0) {
+                        ids.append(',');
+                    }
+                    ids.append(c.getLong(0));
+                    final String picture = c.getString(1);
+                    if (!TextUtils.isEmpty(picture)) {
+                        pictures.add(Uri.parse(picture));
+                    }
+                }
+            }
+            final int count = ids.length() == 0 ? 0
+                    : db.delete(Tables.CALLS, Calls._ID + " IN (" + ids + ")", null);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void removePictures(List<Uri> pictures, Consumer<Uri> pictureRemover) {
+        for (Uri picture : pictures) {
+            pictureRemover.accept(picture);
+        }
+        synchronized (mLock) {
+            mPictureCount += pictures.size();
+        }
+        pictures.clear();
+    }
+
+    /**
+     * Gives the free pages of a database created with incremental vacuum back to the file
+     * system.
+     *
+     * @return the number of bytes reclaimed
+     */
+    private long vacuum(SQLiteDatabase db) {
+        final long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        final long pagesBefore = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                == AUTO_VACUUM_INCREMENTAL) {
+            while (freePages > 0) {
+                db.execSQL("PRAGMA incremental_vacuum(" + INCREMENTAL_VACUUM_PAGES + ")");
+                final long remaining =
+                        DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+                if (remaining >= freePages) {
+                    break;
+                }
+                freePages = remaining;
+            }
+        }
+        final long pagesAfter = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        return Math.max(0, pagesBefore - pagesAfter) * pageSize;
+    }
+
+    @VisibleForTesting
+    long getDeletedCount() {
+        synchronized (mLock) {
+            return mDeletedCount;
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix);
+            pw.printf("Call log retention: runs=%d  deleted=%d  pictures=%d  reclaimed=%d bytes"
+                    + "  last run=%d ms  total=%d ms\n",
+                    mRunCount, mDeletedCount, mPictureCount, mReclaimedBytes, mLastRunMillis,
+                    mTotalRunMillis);
+        }
+    }
+}
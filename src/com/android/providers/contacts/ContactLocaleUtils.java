@@ -25,6 +25,7 @@ import android.provider.ContactsContract.PhoneticNameStyle;
 import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.providers.contacts.HanziToPinyin.Token;
 
@@ -32,6 +33,7 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.lang.Character.UnicodeBlock;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -505,11 +507,28 @@ public class ContactLocaleUtils {
         }
     }
 
+    /**
+     * Maximum number of names whose bucket index and lookup keys are memoized.
+     * Names are looked up repeatedly while (re)building the sort keys, name
+     * lookup and fast scroll index, and the ICU lookups dominate that cost.
+     */
+    @VisibleForTesting
+    static final int NAME_CACHE_SIZE = 512;
+
+    private static final String[] NO_LOOKUP_KEYS = new String[0];
+
     private static ContactLocaleUtils sSingleton;
 
     private final LocaleSet mLocales;
     private final ContactLocaleUtilsBase mUtils;
 
+    // The caches belong to this instance, which is replaced whenever the locales change, so
+    // memoized values never outlive the locale set they were computed for.
+    private final LruCache<String, Integer> mBucketIndexCache =
+            new LruCache<>(NAME_CACHE_SIZE);
+    private final LruCache<String, String[]> mNameLookupKeysCache =
+            new LruCache<>(NAME_CACHE_SIZE);
+
     private ContactLocaleUtils(LocaleSet locales) {
         if (locales == null) {
             mLocales = LocaleSet.newDefault();
@@ -562,7 +581,13 @@ public class ContactLocaleUtils {
     }
 
     public int getBucketIndex(String name) {
-        return mUtils.getBucketIndex(name);
+        final Integer cached = mBucketIndexCache.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        final int bucketIndex = mUtils.getBucketIndex(name);
+        mBucketIndexCache.put(name, bucketIndex);
+        return bucketIndex;
     }
 
     public int getNumberBucketIndex() {
@@ -598,6 +623,32 @@ public class ContactLocaleUtils {
      *  b. For Simplified Chinese locale, generate Pinyin lookup keys.
      */
     public Iterator<String> getNameLookupKeys(String name, int nameStyle) {
+        final String cacheKey = nameStyle + ":" + name;
+        String[] keys = mNameLookupKeysCache.get(cacheKey);
+        if (keys == null) {
+            keys = toArray(computeNameLookupKeys(name, nameStyle));
+            mNameLookupKeysCache.put(cacheKey, keys);
+        }
+        return keys == NO_LOOKUP_KEYS ? null : Arrays.asList(keys).iterator();
+    }
+
+    private static String[] toArray(Iterator<String> it) {
+        if (it == null) {
+            return NO_LOOKUP_KEYS;
+        }
+        final ArrayList<String> keys = new ArrayList<>();
+        while (it.hasNext()) {
+            keys.add(it.next());
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    @VisibleForTesting
+    int getNameCacheHitCount() {
+        return mBucketIndexCache.hitCount() + mNameLookupKeysCache.hitCount();
+    }
+
+    private Iterator<String> computeNameLookupKeys(String name, int nameStyle) {
         if (!mLocales.isPrimaryLocaleCJK()) {
             if (mLocales.shouldPreferSimplifiedChinese()) {
                 if (nameStyle == FullNameStyle.CHINESE ||
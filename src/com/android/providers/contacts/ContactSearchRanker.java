@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.provider.ContactsContract.PinnedPositions;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Ranks the contacts matching a search filter by relevance, keeping only the best ones.
+ *
+ * <p>Contacts are added one at a time, in the order of the underlying query, with the display
+ * name, the search index content that matched (see deferred snippeting) and the starred/pinned
+ * state.  The score of a contact is computed in a single pass over those values:
+ * <ul>
+ *   <li>a match at the start of a display name token scores highest, more so for the first
+ *       token, followed by a match inside a display name token;</li>
+ *   <li>then a match at the start of a token of the other searchable data, the earlier the line
+ *       the better.  Nicknames and organizations come first in the search index content, email
+ *       addresses score a little lower, and phone numbers in between;</li>
+ *   <li>starred and pinned contacts get a bonus, demoted ones a penalty.</li>
+ * </ul>
+ * Contacts with the same score keep the order in which they were added.
+ *
+ * <p>Only the best {@code maxResults} contacts are kept, in a heap, so ranking N matches costs
+ * O(N log maxResults) rather than a sort of all of them.
+ */
+public class ContactSearchRanker {
+
+    @VisibleForTesting
+    static final int SCORE_NAME_FIRST_TOKEN = 100;
+    @VisibleForTesting
+    static final int SCORE_NAME_TOKEN = 80;
+    private static final int SCORE_NAME_TOKEN_MIN = 60;
+    @VisibleForTesting
+    static final int SCORE_NAME_INFIX = 40;
+    @VisibleForTesting
+    static final int SCORE_DATA_TOKEN = 50;
+    private static final int SCORE_DATA_TOKEN_MIN = 30;
+    @VisibleForTesting
+    static final int SCORE_PHONE = 45;
+    @VisibleForTesting
+    static final int SCORE_EMAIL = 35;
+    @VisibleForTesting
+    static final int SCORE_OTHER = 10;
+
+    /** Lost for each token or line before the one that matched. */
+    private static final int POSITION_PENALTY = 5;
+
+    @VisibleForTesting
+    static final int BONUS_STARRED = 20;
+    @VisibleForTesting
+    static final int BONUS_PINNED = 30;
+
+    private static class Candidate {
+        final long contactId;
+        final int score;
+        final int order;
+
+        Candidate(long contactId, int score, int order) {
+            this.contactId = contactId;
+            this.score = score;
+            this.order = order;
+        }
+    }
+
+    private final String[] mQueryTokens;
+    private final String[] mNormalizedQueryTokens;
+    private final String mQueryDigits;
+    private final int mMaxResults;
+
+    // The worst candidate kept so far is at the head.
+    private final PriorityQueue<Candidate> mHeap;
+    private int mCount;
+
+    /**
+     * @param query the search filter
+     * @param maxResults the maximum number of contacts to return
+     */
+    public ContactSearchRanker(String query, int maxResults) {
+        mQueryTokens = tokenize(query);
+        mNormalizedQueryTokens = new String[mQueryTokens.length];
+        for (int i = 0; i < mQueryTokens.length; i++) {
+            mNormalizedQueryTokens[i] = NameNormalizer.normalize(mQueryTokens[i]);
+        }
+        mQueryDigits = hasLetters(query) ? null : PhoneNumberUtils.normalizeNumber(query);
+        mMaxResults = maxResults;
+        mHeap = new PriorityQueue<>(Math.max(1, Math.min(maxResults, 64)), (a, b) -> {
+            if (a.score != b.score) {
+                return Integer.compare(a.score, b.score);
+            }
+            return Integer.compare(b.order, a.order);
+        });
+    }
+
+    /**
+     * Adds a contact matching the query.
+     *
+     * @param content the search index content of the contact, or for email address and phone
+     *         number queries the matching address or number, as returned by a query with
+     *         deferred snippeting
+     */
+    public void add(long contactId, String displayName, String content, boolean starred,
+            int pinned) {
+        if (mMaxResults <= 0) {
+            return;
+        }
+        final Candidate candidate = new Candidate(contactId,
+                score(displayName, content, starred, pinned), mCount++);
+        if (mHeap.size() < mMaxResults) {
+            mHeap.add(candidate);
+        } else if (mHeap.comparator().compare(candidate, mHeap.peek()) > 0) {
+            mHeap.poll();
+            mHeap.add(candidate);
+        }
+    }
+
+    /**
+     * Returns the IDs of the best contacts, best first.
+     */
+    public long[] getRankedContactIds() {
+        final long[] contactIds = new long[mHeap.size()];
+        for (int i = contactIds.length - 1; i >= 0; i--) {
+            contactIds[i] = mHeap.poll().contactId;
+        }
+        return contactIds;
+    }
+
+    @VisibleForTesting
+    int score(String displayName, String content, boolean starred, int pinned) {
+        int score = 0;
+        if (mQueryTokens.length > 0) {
+            final String[] nameTokens = tokenize(displayName);
+            final String[] lines = TextUtils.isEmpty(content) ? new String[0] : content.split("\n");
+            for (int i = 0; i < mQueryTokens.length; i++) {
+                score += scoreToken(i, displayName, nameTokens, content, lines);
+            }
+            score /= mQueryTokens.length;
+        }
+        if (starred) {
+            score += BONUS_STARRED;
+        }
+        if (pinned > PinnedPositions.UNPINNED) {
+            score += BONUS_PINNED;
+        } else if (pinned == PinnedPositions.DEMOTED) {
+            score -= BONUS_PINNED;
+        }
+        return score;
+    }
+
+    private int scoreToken(int index, String displayName, String[] nameTokens, String content,
+            String[] lines) {
+        final String queryToken = mQueryTokens[index];
+
+        // Display name
+        for (int i = 0; i < nameTokens.length; i++) {
+            if (nameTokens[i].startsWith(queryToken)
+                    || startsWithNormalized(nameTokens[i], mNormalizedQueryTokens[index])) {
+                return i == 0 ? SCORE_NAME_FIRST_TOKEN
+                        : Math.max(SCORE_NAME_TOKEN_MIN,
+                                SCORE_NAME_TOKEN - (i - 1) * POSITION_PENALTY);
+            }
+        }
+        if (displayName != null && displayName.toLowerCase(Locale.ROOT).contains(queryToken)) {
+            return SCORE_NAME_INFIX;
+        }
+
+        // Phone numbers are only in the tokens column of the index, so the content is the
+        // matching number for phone number queries.
+        if (!TextUtils.isEmpty(mQueryDigits) && !TextUtils.isEmpty(content)
+                && PhoneNumberUtils.normalizeNumber(content).contains(mQueryDigits)) {
+            return SCORE_PHONE;
+        }
+
+        // Other searchable data, one line per data row
+        for (int i = 0; i < lines.length; i++) {
+            for (String token : tokenize(lines[i])) {
+                if (token.startsWith(queryToken)) {
+                    if (lines[i].indexOf('@') != -1) {
+                        return SCORE_EMAIL;
+                    }
+                    return Math.max(SCORE_DATA_TOKEN_MIN,
+                            SCORE_DATA_TOKEN - i * POSITION_PENALTY);
+                }
+            }
+        }
+
+        // Matched in a way we cannot tell from here, e.g. with a different normalization.
+        return SCORE_OTHER;
+    }
+
+    private static boolean hasLetters(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isLetter(s.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWithNormalized(String token, String normalizedQueryToken) {
+        return !TextUtils.isEmpty(normalizedQueryToken)
+                && NameNormalizer.normalize(token).startsWith(normalizedQueryToken);
+    }
+
+    private static String[] tokenize(String s) {
+        if (TextUtils.isEmpty(s)) {
+            return new String[0];
+        }
+        final ArrayList<String> tokens = new ArrayList<>();
+        for (String token :
+                s.toLowerCase(Locale.ROOT).split(ContactsProvider2.QUERY_TOKENIZER_REGEX)) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+}
@@ -97,12 +97,14 @@ import com.android.internal.R;
 import com.android.internal.R.bool;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.providers.contacts.aggregation.util.CommonNicknameCache;
+import com.android.providers.contacts.database.ChangeLogTableUtil;
 import com.android.providers.contacts.database.ContactsTableUtil;
 import com.android.providers.contacts.database.DeletedContactsTableUtil;
 import com.android.providers.contacts.database.MoreDatabaseUtils;
 import com.android.providers.contacts.sqlite.DatabaseAnalyzer;
 import com.android.providers.contacts.sqlite.SqlChecker;
 import com.android.providers.contacts.sqlite.SqlChecker.InvalidSqlException;
+import com.android.providers.contacts.sqlite.ValidatedSqlCache;
 import com.android.providers.contacts.util.NeededForTesting;
 import com.android.providers.contacts.util.PhoneAccountHandleMigrationUtils;
 import com.android.providers.contacts.util.PropertyUtils;
@@ -154,7 +156,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      *   1600-1699 T
      * </pre>
      */
-    static final int DATABASE_VERSION = 1604;
+    static final int DATABASE_VERSION = 1605;
     private static final int MINIMUM_SUPPORTED_VERSION = 700;
 
     @VisibleForTesting
@@ -187,6 +189,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     public interface Tables {
         public static final String CONTACTS = "contacts";
         public static final String DELETED_CONTACTS = "deleted_contacts";
+        public static final String CHANGE_LOG = "change_log";
         public static final String RAW_CONTACTS = "raw_contacts";
         public static final String STREAM_ITEMS = "stream_items";
         public static final String STREAM_ITEM_PHOTOS = "stream_item_photos";
@@ -639,6 +642,12 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         String CONTACT_ID = "presence_contact_id";
     }
 
+    public interface ChangeLogColumns extends BaseColumns {
+        String RAW_CONTACT_ID = "raw_contact_id";
+        String CHANGE_TYPE = "change_type";
+        String CHANGE_TIMESTAMP = "change_timestamp";
+    }
+
     public interface AggregatedPresenceColumns {
         String CONTACT_ID = "presence_contact_id";
         String CONCRETE_CONTACT_ID = Tables.AGGREGATED_PRESENCE + "." + CONTACT_ID;
@@ -1296,6 +1305,9 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         // deleted_contacts table
         DeletedContactsTableUtil.create(db);
 
+        // change_log table
+        ChangeLogTableUtil.create(db);
+
         // Raw_contacts table
         db.execSQL("CREATE TABLE " + Tables.RAW_CONTACTS + " (" +
                 RawContacts._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -2684,6 +2696,11 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             oldVersion = 1604;
         }
 
+        if (isUpgradeRequired(oldVersion, newVersion, 1605)) {
+            upgradeToVersion1605(db);
+            oldVersion = 1605;
+        }
+
         // We extracted "calls" and "voicemail_status" at this point, but we can't remove them here
         // yet, until CallLogDatabaseHelper moves the data.
 
@@ -3535,6 +3552,10 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         mPhoneAccountHandleMigrationUtils.migrateIccIdToSubId(db);
     }
 
+    private void upgradeToVersion1605(SQLiteDatabase db) {
+        ChangeLogTableUtil.create(db);
+    }
+
     protected void migrateIccIdToSubId() {
         mPhoneAccountHandleMigrationUtils.migrateIccIdToSubId(getWritableDatabase());
     }
@@ -3883,6 +3904,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DELETE FROM " + Tables.DIRECTORIES + ";");
         db.execSQL("DELETE FROM " + Tables.SEARCH_INDEX + ";");
         db.execSQL("DELETE FROM " + Tables.DELETED_CONTACTS + ";");
+        db.execSQL("DELETE FROM " + Tables.CHANGE_LOG + ";");
         db.execSQL("DELETE FROM " + Tables.MIMETYPES + ";");
         db.execSQL("DELETE FROM " + Tables.PACKAGES + ";");
         db.execSQL("DELETE FROM " + Tables.PRESENCE + ";");
@@ -4441,17 +4463,23 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    public void buildPhoneLookupAndContactQuery(
+    /**
+     * @return the query arguments to be passed in with the query, ahead of the selection
+     *     arguments
+     */
+    public String[] buildPhoneLookupAndContactQuery(
             SQLiteQueryBuilder qb, String normalizedNumber, String numberE164) {
 
+        final ArrayList<String> args = new ArrayList<>();
         String minMatch = PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber);
         StringBuilder sb = new StringBuilder();
-        appendPhoneLookupTables(sb, minMatch, true);
+        appendPhoneLookupTables(sb, minMatch, true, args);
         qb.setTables(sb.toString());
 
         sb = new StringBuilder();
-        appendPhoneLookupSelection(sb, normalizedNumber, numberE164);
+        appendPhoneLookupSelection(sb, normalizedNumber, numberE164, args);
         qb.appendWhere(sb.toString());
+        return args.toArray(new String[args.size()]);
     }
 
     /**
@@ -4459,8 +4487,11 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      * that serves as a fallback in case the regular lookup does not return any results.
      * @param qb The query builder.
      * @param number The phone number to search for.
+     * @return the query arguments to be passed in with the query, ahead of the selection
+     *     arguments
      */
-    public void buildFallbackPhoneLookupAndContactQuery(SQLiteQueryBuilder qb, String number) {
+    public String[] buildFallbackPhoneLookupAndContactQuery(SQLiteQueryBuilder qb,
+            String number) {
         final String minMatch = PhoneNumberUtils.toCallerIDMinMatch(number);
         final StringBuilder sb = new StringBuilder();
         // Append lookup tables.
@@ -4470,9 +4501,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 + "." + RawContacts.CONTACT_ID + ")" +
                 " JOIN (SELECT " + PhoneLookupColumns.DATA_ID + "," +
                 PhoneLookupColumns.NORMALIZED_NUMBER + " FROM "+ Tables.PHONE_LOOKUP + " "
-                + "WHERE (" + Tables.PHONE_LOOKUP + "." + PhoneLookupColumns.MIN_MATCH + " = '");
-        sb.append(minMatch);
-        sb.append("')) AS lookup " +
+                + "WHERE (" + Tables.PHONE_LOOKUP + "." + PhoneLookupColumns.MIN_MATCH + " = ?"
+                + ")) AS lookup " +
                 "ON lookup." + PhoneLookupColumns.DATA_ID + "=" + Tables.DATA + "." + Data._ID
                 + " JOIN " + Tables.DATA + " "
                 + "ON " + Tables.DATA + "." + Data.RAW_CONTACT_ID + "=" + Tables.RAW_CONTACTS + "."
@@ -4481,10 +4511,10 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         qb.setTables(sb.toString());
 
         sb.setLength(0);
-        sb.append("PHONE_NUMBERS_EQUAL(" + Tables.DATA + "." + Phone.NUMBER + ", ");
-        DatabaseUtils.appendEscapedSQLString(sb, number);
+        sb.append("PHONE_NUMBERS_EQUAL(" + Tables.DATA + "." + Phone.NUMBER + ", ?");
         sb.append(mUseStrictPhoneNumberComparison ? ", 1)" : ", 0, " + mMinMatch + ")");
         qb.appendWhere(sb.toString());
+        return new String[] {minMatch, number};
     }
 
     /**
@@ -4504,19 +4534,24 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         return new String[] {sipAddress};
     }
 
-    public String buildPhoneLookupAsNestedQuery(String number) {
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Appends a nested query selecting the raw contacts with the given phone number.
+     *
+     * @return the query arguments for the nested query
+     */
+    public String[] appendPhoneLookupAsNestedQuery(StringBuilder sb, String number) {
+        final ArrayList<String> args = new ArrayList<>();
         final String minMatch = PhoneNumberUtils.toCallerIDMinMatch(number);
         sb.append("(SELECT DISTINCT raw_contact_id" + " FROM ");
-        appendPhoneLookupTables(sb, minMatch, false);
+        appendPhoneLookupTables(sb, minMatch, false, args);
         sb.append(" WHERE ");
-        appendPhoneLookupSelection(sb, number, null);
+        appendPhoneLookupSelection(sb, number, null, args);
         sb.append(")");
-        return sb.toString();
+        return args.toArray(new String[args.size()]);
     }
 
-    private void appendPhoneLookupTables(
-            StringBuilder sb, final String minMatch, boolean joinContacts) {
+    private void appendPhoneLookupTables(StringBuilder sb, final String minMatch,
+            boolean joinContacts, List<String> args) {
 
         sb.append(Tables.RAW_CONTACTS);
         if (joinContacts) {
@@ -4525,20 +4560,24 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         }
         sb.append(", (SELECT data_id, normalized_number, length(normalized_number) as len "
                 + " FROM phone_lookup " + " WHERE (" + Tables.PHONE_LOOKUP + "."
-                + PhoneLookupColumns.MIN_MATCH + " = '");
-        sb.append(minMatch);
-        sb.append("')) AS lookup, " + Tables.DATA);
+                + PhoneLookupColumns.MIN_MATCH + " = ?)) AS lookup, " + Tables.DATA);
+        args.add(minMatch);
     }
 
-    private void appendPhoneLookupSelection(StringBuilder sb, String number, String numberE164) {
+    /**
+     * The length of the number is inlined, so there is one statement per number length; the
+     * numbers themselves are bound.
+     */
+    private void appendPhoneLookupSelection(StringBuilder sb, String number, String numberE164,
+            List<String> args) {
         sb.append("lookup.data_id=data._id AND data.raw_contact_id=raw_contacts._id");
         boolean hasNumberE164 = !TextUtils.isEmpty(numberE164);
         boolean hasNumber = !TextUtils.isEmpty(number);
         if (hasNumberE164 || hasNumber) {
             sb.append(" AND ( ");
             if (hasNumberE164) {
-                sb.append(" lookup.normalized_number = ");
-                DatabaseUtils.appendEscapedSQLString(sb, numberE164);
+                sb.append(" lookup.normalized_number = ?");
+                args.add(numberE164);
             }
             if (hasNumberE164 && hasNumber) {
                 sb.append(" OR ");
@@ -4549,9 +4588,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                     int numberLen = number.length();
                     sb.append(" lookup.len <= ");
                     sb.append(numberLen);
-                    sb.append(" AND substr(");
-                    DatabaseUtils.appendEscapedSQLString(sb, number);
-                    sb.append(',');
+                    sb.append(" AND substr(?,");
+                    args.add(number);
                     sb.append(numberLen);
                     sb.append(" - lookup.len + 1) = lookup.normalized_number");
 
@@ -4565,9 +4603,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                     sb.append(" AND substr(lookup.normalized_number,");
                     sb.append("lookup.len + 1 - ");
                     sb.append(numberLen);
-                    sb.append(") = ");
-                    DatabaseUtils.appendEscapedSQLString(sb, number);
-                    sb.append(")");
+                    sb.append(") = ?)");
+                    args.add(number);
                 } else {
                     sb.append("0");
                 }
@@ -5267,57 +5304,58 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         return mCachedSqlChecker;
     }
 
+    /** SQL pieces that passed {@link SqlChecker#ensureNoInvalidTokens}. */
+    private final ValidatedSqlCache mValidatedSql = new ValidatedSqlCache("Validated SQL");
+
+    /** Column names that passed {@link SqlChecker#ensureSingleTokenOnly}. */
+    private final ValidatedSqlCache mValidatedColumns =
+            new ValidatedSqlCache("Validated columns");
+
     /**
      * Ensure (a piece of) SQL is valid and doesn't contain disallowed tokens.
      */
     public void validateSql(String callerPackage, String sqlPiece) {
-        // TODO Replace the Runnable with a lambda -- which would crash right now due to an art bug?
-        runSqlValidation(callerPackage, new Runnable() {
-            @Override
-            public void run() {
-                ContactsDatabaseHelper.this.getSqlChecker().ensureNoInvalidTokens(sqlPiece);
-            }
-        });
+        if (sqlPiece == null || mValidatedSql.contains(callerPackage, sqlPiece)) {
+            return;
+        }
+        try {
+            getSqlChecker().ensureNoInvalidTokens(sqlPiece);
+        } catch (InvalidSqlException e) {
+            reportInvalidSql(callerPackage, e);
+        }
+        mValidatedSql.add(callerPackage, sqlPiece);
     }
 
     /**
      * Ensure all keys in {@code values} are valid. (i.e. they're all single token.)
      */
     public void validateContentValues(String callerPackage, ContentValues values) {
-        // TODO Replace the Runnable with a lambda -- which would crash right now due to an art bug?
-        runSqlValidation(callerPackage, new Runnable() {
-            @Override
-            public void run() {
-                for (String key : values.keySet()) {
-                    ContactsDatabaseHelper.this.getSqlChecker().ensureSingleTokenOnly(key);
-                }
-            }
-        });
-   }
+        for (String key : values.keySet()) {
+            validateColumn(callerPackage, key);
+        }
+    }
 
     /**
      * Ensure all column names in {@code projection} are valid. (i.e. they're all single token.)
      */
     public void validateProjection(String callerPackage, String[] projection) {
-        // TODO Replace the Runnable with a lambda -- which would crash right now due to an art bug?
         if (projection != null) {
-            runSqlValidation(callerPackage, new Runnable() {
-                @Override
-                public void run() {
-                    for (String column : projection) {
-                        ContactsDatabaseHelper.this.getSqlChecker().ensureSingleTokenOnly(column);
-                    }
-                }
-            });
+            for (String column : projection) {
+                validateColumn(callerPackage, column);
+            }
         }
     }
 
-    private void runSqlValidation(String callerPackage, Runnable r) {
+    private void validateColumn(String callerPackage, String column) {
+        if (column != null && mValidatedColumns.contains(callerPackage, column)) {
+            return;
+        }
         try {
-            r.run();
+            getSqlChecker().ensureSingleTokenOnly(column);
         } catch (InvalidSqlException e) {
             reportInvalidSql(callerPackage, e);
         }
+        mValidatedColumns.add(callerPackage, column);
     }
 
     private void reportInvalidSql(String callerPackage, InvalidSqlException e) {
@@ -5385,6 +5423,9 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         pw.print("UseStrictPhoneNumberComparisonKZ: ");
         pw.println(mUseStrictPhoneNumberComparisonForKazakhstan);
 
+        mValidatedSql.dump(pw);
+        mValidatedColumns.dump(pw);
+
         pw.println();
     }
 }
@@ -125,7 +125,10 @@ public class ContactsPackageMonitor {
             }
             if (VERBOSE_LOGGING) Log.d(TAG, "onPackageChanged: Scanning package: " + packageName);
 
-            // First, tell CP2.
+            // The package may have added or removed voicemail receivers, or changed permissions.
+            VoicemailBroadcastCache.getInstance().onPackageChanged(packageName);
+
+            // Then, tell CP2.
             final ContactsProvider2 provider = getProvider(mContext, ContactsContract.AUTHORITY);
             if (provider != null) {
                 provider.onPackageChanged(packageName);
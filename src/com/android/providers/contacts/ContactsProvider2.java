@@ -32,6 +32,7 @@ import android.annotation.WorkerThread;
 import android.app.AppOpsManager;
 import android.app.BroadcastOptions;
 import android.app.SearchManager;
+import android.app.admin.DevicePolicyManager;
 import android.content.BroadcastReceiver;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
@@ -55,6 +56,7 @@ import android.content.res.Resources;
 import android.content.res.Resources.NotFoundException;
 import android.database.AbstractCursor;
 import android.database.Cursor;
+import android.database.ContentObserver;
 import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.MatrixCursor.RowBuilder;
@@ -62,6 +64,7 @@ import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
@@ -137,7 +140,6 @@ import android.util.SparseArray;
 
 import com.android.common.content.ProjectionMap;
 import com.android.common.content.SyncStateContentProviderHelper;
-import com.android.common.io.MoreCloseables;
 import com.android.internal.R;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.config.appcloning.AppCloningDeviceConfigHelper;
@@ -146,6 +148,7 @@ import com.android.providers.contacts.ContactLookupKey.LookupKeySegment;
 import com.android.providers.contacts.ContactsDatabaseHelper.AccountsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.AggregatedPresenceColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.AggregationExceptionColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.ChangeLogColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Clauses;
 import com.android.providers.contacts.ContactsDatabaseHelper.ContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.ContactsStatusUpdatesColumns;
@@ -176,17 +179,23 @@ import com.android.providers.contacts.aggregation.ContactAggregator;
 import com.android.providers.contacts.aggregation.ContactAggregator2;
 import com.android.providers.contacts.aggregation.ProfileAggregator;
 import com.android.providers.contacts.aggregation.util.CommonNicknameCache;
+import com.android.providers.contacts.database.ChangeLogTableUtil;
 import com.android.providers.contacts.database.ContactsTableUtil;
 import com.android.providers.contacts.database.DeletedContactsTableUtil;
 import com.android.providers.contacts.database.MoreDatabaseUtils;
 import com.android.providers.contacts.enterprise.EnterpriseContactsCursorWrapper;
 import com.android.providers.contacts.enterprise.EnterprisePolicyGuard;
+import com.android.providers.contacts.enterprise.WorkProfileLookupCache;
 import com.android.providers.contacts.util.Clock;
+import com.android.providers.contacts.util.CommitStats;
+import com.android.providers.contacts.util.CommitStats.Phase;
 import com.android.providers.contacts.util.ContactsPermissions;
 import com.android.providers.contacts.util.DbQueryUtils;
 import com.android.providers.contacts.util.LogFields;
 import com.android.providers.contacts.util.LogUtils;
 import com.android.providers.contacts.util.NeededForTesting;
+import com.android.providers.contacts.util.OperationStats;
+import com.android.providers.contacts.util.OperationStats.OperationType;
 import com.android.providers.contacts.util.PhoneAccountHandleMigrationUtils;
 import com.android.providers.contacts.util.UserUtils;
 import com.android.vcard.VCardComposer;
@@ -275,6 +284,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
     protected static final int STATUS_CHANGING_LOCALE = 2;
     protected static final int STATUS_NO_ACCOUNTS_NO_CONTACTS = 3;
 
+    /** Number of raw contacts of removed accounts to delete per transaction. */
+    private static final int STALE_ACCOUNT_BATCH_SIZE = 500;
+
     /** Default for the maximum number of returned aggregation suggestions. */
     private static final int DEFAULT_MAX_SUGGESTIONS = 5;
 
@@ -314,6 +326,32 @@ public class ContactsProvider2 extends AbstractContactsProvider
      */
     private static final String PREAUTHORIZED_URI_TOKEN = "perm_token";
 
+    /**
+     * URI parameter carrying a caller-chosen token which identifies a type-ahead search session
+     * across {@link Contacts#CONTENT_FILTER_URI} or {@link Phone#CONTENT_FILTER_URI} queries.
+     * See {@link SearchSessionCache}.
+     */
+    /* package */ static final String SEARCH_SESSION_TOKEN = "search_session";
+
+    /**
+     * Boolean URI parameter of {@link Contacts#CONTENT_FILTER_URI} requesting that the matching
+     * contacts be sorted by relevance rather than by the sort order, see
+     * {@link ContactSearchRanker}.  Only the most relevant contacts are returned, so this
+     * requires a {@link ContactsContract#LIMIT_PARAM_KEY} of at most
+     * {@link #MAX_RANKED_CONTACTS}; otherwise the sort order is used as usual.
+     */
+    /* package */ static final String SORT_BY_RELEVANCE = "sort_by_relevance";
+
+    /** The largest limit for which {@link #SORT_BY_RELEVANCE} is honored. */
+    /* package */ static final int MAX_RANKED_CONTACTS = 500;
+
+    /**
+     * Boolean URI parameter of {@link Contacts#CONTENT_FILTER_URI} for callers which only read
+     * some of the rows they query, requesting that snippets be computed as rows are read rather
+     * than for every matching row in SQL.  See {@link LazySnippetCursor}.
+     */
+    /* package */ static final String LAZY_SNIPPETING = "lazy_snippeting";
+
     private static final String PREF_LOCALE = "locale";
 
     private static int PROPERTY_AGGREGATION_ALGORITHM_VERSION;
@@ -457,6 +495,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     public static final int DIRECTORY_FILE_ENTERPRISE = 24000;
 
+    public static final int CHANGE_LOG = 25000;
+
     // Inserts into URIs in this map will direct to the profile database if the parent record's
     // value (looked up from the ContentValues object with the key specified by the value in this
     // map) is in the profile ID-space (see {@link ProfileDatabaseHelper#PROFILE_ID_SPACE}).
@@ -1003,6 +1043,13 @@ public class ContactsProvider2 extends AbstractContactsProvider
             .add(DeletedContacts.CONTACT_DELETED_TIMESTAMP)
             .build();
 
+    private static final ProjectionMap sChangeLogProjectionMap = ProjectionMap.builder()
+            .add(ChangeLogColumns._ID)
+            .add(ChangeLogColumns.RAW_CONTACT_ID)
+            .add(ChangeLogColumns.CHANGE_TYPE)
+            .add(ChangeLogColumns.CHANGE_TIMESTAMP)
+            .build();
+
     /**
      * Contains {@link Groups} columns along with summary details.
      *
@@ -1367,6 +1414,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         matcher.addURI(ContactsContract.AUTHORITY, "directory_file_enterprise/*",
                 DIRECTORY_FILE_ENTERPRISE);
+
+        matcher.addURI(ContactsContract.AUTHORITY, "change_log", CHANGE_LOG);
     }
 
     private static class DirectoryInfo {
@@ -1511,6 +1560,17 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private boolean mVisibleTouched = false;
 
+    /** Timing of the phases of {@link #onCommitTransactionInternal}. */
+    private final CommitStats mCommitStats = new CommitStats();
+
+    private final SearchSessionCache mSearchSessions = new SearchSessionCache();
+
+    /** Contact IDs of lookup keys, only used for the contacts database, not the profile. */
+    private final LookupKeyCache mLookupKeyCache = new LookupKeyCache();
+
+    /** Raw contacts of removed accounts deleted per transaction. */
+    private int mStaleAccountBatchSize = STALE_ACCOUNT_BATCH_SIZE;
+
     private boolean mSyncToNetwork;
 
     private LocaleSet mCurrentLocales;
@@ -1537,6 +1597,38 @@ public class ContactsProvider2 extends AbstractContactsProvider
     // Enterprise members
     private EnterprisePolicyGuard mEnterprisePolicyGuard;
 
+    /** Phone lookups in the work profile, see {@link #queryCorpContactsProviderCached}. */
+    private final WorkProfileLookupCache mWorkProfileLookupCache = new WorkProfileLookupCache();
+
+    /** Drops the cached work profile lookups when the work profile's contacts change. */
+    private final ContentObserver mCorpContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mWorkProfileLookupCache.invalidateAll();
+        }
+    };
+
+    // The work profile mCorpContactsObserver is registered for, or -1.
+    @GuardedBy("mCorpContactsObserver")
+    private int mObservedCorpUserId = -1;
+
+    /**
+     * Drops the cached work profile lookups when the work profile is added, removed, paused,
+     * resumed or unlocked, or when the device policy changes.
+     */
+    private final BroadcastReceiver mWorkProfileReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (VERBOSE_LOGGING) {
+                Log.v(TAG, "Work profile lookups invalidated by " + intent.getAction());
+            }
+            if (Intent.ACTION_MANAGED_PROFILE_REMOVED.equals(intent.getAction())) {
+                stopObservingCorpContacts();
+            }
+            mWorkProfileLookupCache.invalidateAll();
+        }
+    };
+
     private Set<PhoneAccountHandle> mMigratedPhoneAccountHandles;
 
     private AppCloningDeviceConfigHelper mAppCloningDeviceConfigHelper;
@@ -1632,6 +1724,15 @@ public class ContactsProvider2 extends AbstractContactsProvider
             getContext().registerReceiver(mBroadcastReceiver, filter);
         }
 
+        final IntentFilter workProfileFilter = new IntentFilter();
+        workProfileFilter.addAction(Intent.ACTION_MANAGED_PROFILE_ADDED);
+        workProfileFilter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
+        workProfileFilter.addAction(Intent.ACTION_MANAGED_PROFILE_AVAILABLE);
+        workProfileFilter.addAction(Intent.ACTION_MANAGED_PROFILE_UNAVAILABLE);
+        workProfileFilter.addAction(Intent.ACTION_MANAGED_PROFILE_UNLOCKED);
+        workProfileFilter.addAction(DevicePolicyManager.ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED);
+        getContext().registerReceiver(mWorkProfileReceiver, workProfileFilter);
+
         // The provider is closed for business until fully initialized
         mReadAccessLatch = new CountDownLatch(1);
         mWriteAccessLatch = new CountDownLatch(1);
@@ -1904,6 +2005,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             case BACKGROUND_TASK_CLEAN_DELETE_LOG: {
                 final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
                 DeletedContactsTableUtil.deleteOldLogs(db);
+                ChangeLogTableUtil.deleteOldLogs(db);
                 break;
             }
 
@@ -1918,6 +2020,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 break;
             }
         }
+        // Background tasks write to the database outside of the provider transactions.
+        mSearchSessions.invalidateAll();
+        mLookupKeyCache.invalidateAll();
     }
 
     public void onLocaleChanged() {
@@ -2249,6 +2354,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mContactsPhotoStore.clear();
         mProfilePhotoStore.clear();
         mProviderStatus = STATUS_NO_ACCOUNTS_NO_CONTACTS;
+        mLookupKeyCache.invalidateAll();
         initForDefaultLocale();
     }
 
@@ -2362,12 +2468,15 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        final int match = sUriMatcher.match(uri);
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final long lockWaitStartNanos = OperationStats.getThreadLockWaitNanos();
         LogFields.Builder logBuilder = LogFields.Builder.aLogFields()
                 .setApiType(LogUtils.ApiType.INSERT)
-                .setUriType(sUriMatcher.match(uri))
+                .setUriType(match)
                 .setCallerIsSyncAdapter(readBooleanQueryParameter(
                         uri, ContactsContract.CALLER_IS_SYNCADAPTER, false))
-                .setStartNanos(SystemClock.elapsedRealtimeNanos())
+                .setStartNanos(startNanos)
                 .setUid(Binder.getCallingUid());
         Uri resultUri = null;
 
@@ -2394,20 +2503,24 @@ public class ContactsProvider2 extends AbstractContactsProvider
             logBuilder.setException(e);
             throw e;
         } finally {
-            LogUtils.log(
-                    logBuilder.setResultUri(resultUri).setResultCount(resultUri == null ? 0 : 1)
-                            .build());
+            final int resultCount = resultUri == null ? 0 : 1;
+            LogUtils.log(logBuilder.setResultUri(resultUri).setResultCount(resultCount).build());
+            mOperationStats.record(OperationType.INSERT, match, startNanos, lockWaitStartNanos,
+                    resultCount, null, null);
         }
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final long lockWaitStartNanos = OperationStats.getThreadLockWaitNanos();
         LogFields.Builder logBuilder = LogFields.Builder.aLogFields()
                 .setApiType(LogUtils.ApiType.UPDATE)
-                .setUriType(sUriMatcher.match(uri))
+                .setUriType(match)
                 .setCallerIsSyncAdapter(readBooleanQueryParameter(
                         uri, ContactsContract.CALLER_IS_SYNCADAPTER, false))
-                .setStartNanos(SystemClock.elapsedRealtimeNanos())
+                .setStartNanos(startNanos)
                 .setUid(Binder.getCallingUid());
         int updates = 0;
 
@@ -2436,17 +2549,22 @@ public class ContactsProvider2 extends AbstractContactsProvider
             throw e;
         } finally {
             LogUtils.log(logBuilder.setResultCount(updates).build());
+            mOperationStats.record(OperationType.UPDATE, match, startNanos, lockWaitStartNanos,
+                    updates, selection, null);
         }
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final long lockWaitStartNanos = OperationStats.getThreadLockWaitNanos();
         LogFields.Builder logBuilder = LogFields.Builder.aLogFields()
                 .setApiType(LogUtils.ApiType.DELETE)
-                .setUriType(sUriMatcher.match(uri))
+                .setUriType(match)
                 .setCallerIsSyncAdapter(readBooleanQueryParameter(
                         uri, ContactsContract.CALLER_IS_SYNCADAPTER, false))
-                .setStartNanos(SystemClock.elapsedRealtimeNanos())
+                .setStartNanos(startNanos)
                 .setUid(Binder.getCallingUid());
         int deletes = 0;
 
@@ -2474,6 +2592,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
             throw e;
         } finally {
             LogUtils.log(logBuilder.setResultCount(deletes).build());
+            mOperationStats.record(OperationType.DELETE, match, startNanos, lockWaitStartNanos,
+                    deletes, selection, null);
         }
     }
 
@@ -2695,32 +2815,63 @@ public class ContactsProvider2 extends AbstractContactsProvider
         // the transaction without risking a deadlock.
         SQLiteDatabase profileDb = transaction.removeDbForTag(PROFILE_DB_TAG);
         if (profileDb != null) {
+            flushDeletedContacts(profileDb, mProfileTransactionContext);
             profileDb.setTransactionSuccessful();
             profileDb.endTransaction();
         }
 
         // Now proceed with the Contacts DB yield.
         SQLiteDatabase contactsDb = transaction.getDbForTag(CONTACTS_DB_TAG);
-        return contactsDb != null && contactsDb.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY);
+        if (contactsDb == null) {
+            return false;
+        }
+        // A yield commits what was done so far, which has to include its deleted contacts log.
+        flushDeletedContacts(contactsDb, mContactTransactionContext);
+        return contactsDb.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY);
+    }
+
+    /**
+     * Logs the contacts deleted so far in a transaction.  They are gathered so that a sync
+     * adapter removing an account writes them with a few statements instead of one each.
+     */
+    private static void flushDeletedContacts(SQLiteDatabase db, TransactionContext context) {
+        DeletedContactsTableUtil.insertDeletedContacts(db, context.getDeletedContacts());
+        context.clearDeletedContacts();
     }
 
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
-        waitForAccess(mWriteAccessLatch);
-        return super.applyBatch(operations);
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final long lockWaitStartNanos = OperationStats.getThreadLockWaitNanos();
+        try {
+            waitForAccess(mWriteAccessLatch);
+            return super.applyBatch(operations);
+        } finally {
+            mOperationStats.record(OperationType.APPLY_BATCH, OperationStats.NO_MATCH,
+                    startNanos, lockWaitStartNanos, operations.size(), null, null);
+        }
     }
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        waitForAccess(mWriteAccessLatch);
-        if (!areContactWritesEnabled()) {
-            // Returning 0, no rows were affected since writes are disabled
-            Log.w(TAG, "Blocked bulkInsert with uri [" + uri + "]. Contact writes not enabled "
-                    + "for the user");
-            return 0;
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final long lockWaitStartNanos = OperationStats.getThreadLockWaitNanos();
+        int inserted = 0;
+        try {
+            waitForAccess(mWriteAccessLatch);
+            if (!areContactWritesEnabled()) {
+                // Returning 0, no rows were affected since writes are disabled
+                Log.w(TAG, "Blocked bulkInsert with uri [" + uri + "]. Contact writes not enabled "
+                        + "for the user");
+                return 0;
+            }
+            inserted = super.bulkInsert(uri, values);
+            return inserted;
+        } finally {
+            mOperationStats.record(OperationType.BULK_INSERT, sUriMatcher.match(uri), startNanos,
+                    lockWaitStartNanos, inserted, null, null);
         }
-        return super.bulkInsert(uri, values);
     }
 
     @Override
@@ -2733,14 +2884,18 @@ public class ContactsProvider2 extends AbstractContactsProvider
             Log.i(TAG, "onBeginTransaction: " + (forProfile ? "profile" : "contacts"),
                     new RuntimeException("onBeginTransactionInternal"));
         }
+        // A yield may have just committed the previous part of the batch.
+        mSearchSessions.invalidateAll();
         if (forProfile) {
             switchToProfileMode();
             mProfileAggregator.clearPendingAggregations();
             mProfileTransactionContext.clearExceptSearchIndexUpdates();
+            mProfileTransactionContext.clearDeletedContacts();
         } else {
             switchToContactMode();
             mContactAggregator.clearPendingAggregations();
             mContactTransactionContext.clearExceptSearchIndexUpdates();
+            mContactTransactionContext.clearDeletedContacts();
         }
     }
 
@@ -2760,22 +2915,52 @@ public class ContactsProvider2 extends AbstractContactsProvider
             switchToContactMode();
         }
 
-        flushTransactionalChanges();
-        final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
-        mAggregator.get().aggregateInTransaction(mTransactionContext.get(), db);
-        if (mVisibleTouched) {
-            mVisibleTouched = false;
-            mDbHelper.get().updateAllVisible();
+        mSearchSessions.invalidateAll();
 
-            // Need to rebuild the fast-indxer bundle.
-            invalidateFastScrollingIndexCache();
-        }
+        int rawContactsFlushed = 0;
+        int contactsAggregated = 0;
+        int searchRowsRebuilt = 0;
+        mCommitStats.beginCommit();
+        try {
+            mCommitStats.beginPhase(Phase.FLUSH);
+            rawContactsFlushed = flushTransactionalChanges();
+            final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
+            mCommitStats.endPhase();
+
+            mCommitStats.beginPhase(Phase.AGGREGATE);
+            contactsAggregated =
+                    mAggregator.get().aggregateInTransaction(mTransactionContext.get(), db);
+            mCommitStats.endPhase();
+
+            if (mVisibleTouched) {
+                mVisibleTouched = false;
+                mCommitStats.beginPhase(Phase.UPDATE_VISIBLE);
+                mDbHelper.get().updateAllVisible();
+                mCommitStats.endPhase();
+
+                // Need to rebuild the fast-indxer bundle.
+                mCommitStats.beginPhase(Phase.INVALIDATE_FAST_SCROLL);
+                invalidateFastScrollingIndexCache();
+                mCommitStats.endPhase();
+            }
+
+            mCommitStats.beginPhase(Phase.SEARCH_INDEX);
+            searchRowsRebuilt = updateSearchIndexInTransaction();
+            mCommitStats.endPhase();
 
-        updateSearchIndexInTransaction();
+            if (mProviderStatusUpdateNeeded) {
+                mCommitStats.beginPhase(Phase.PROVIDER_STATUS);
+                updateProviderStatus();
+                mProviderStatusUpdateNeeded = false;
+                mCommitStats.endPhase();
+            }
 
-        if (mProviderStatusUpdateNeeded) {
-            updateProviderStatus();
-            mProviderStatusUpdateNeeded = false;
+            // Last, so that the contacts deleted by aggregation are logged too.
+            flushDeletedContacts(db, mTransactionContext.get());
+        } finally {
+            // Closes the trace section of a phase that threw.
+            mCommitStats.endPhase();
+            mCommitStats.endCommit(rawContactsFlushed, contactsAggregated, searchRowsRebuilt);
         }
     }
 
@@ -2796,16 +2981,24 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
-    private void updateSearchIndexInTransaction() {
+    /**
+     * @return the number of search index rows rebuilt
+     */
+    private int updateSearchIndexInTransaction() {
         Set<Long> staleContacts = mTransactionContext.get().getStaleSearchIndexContactIds();
         Set<Long> staleRawContacts = mTransactionContext.get().getStaleSearchIndexRawContactIds();
+        int count = 0;
         if (!staleContacts.isEmpty() || !staleRawContacts.isEmpty()) {
-            mSearchIndexManager.updateIndexForRawContacts(staleContacts, staleRawContacts);
+            count = mSearchIndexManager.updateIndexForRawContacts(staleContacts, staleRawContacts);
             mTransactionContext.get().clearSearchIndexUpdates();
         }
+        return count;
     }
 
-    private void flushTransactionalChanges() {
+    /**
+     * @return the number of distinct raw contacts whose changes were flushed
+     */
+    private int flushTransactionalChanges() {
         if (VERBOSE_LOGGING) {
             Log.v(TAG, "flushTransactionalChanges: " + (inProfileMode() ? "profile" : "contacts"));
         }
@@ -2837,6 +3030,27 @@ public class ContactsProvider2 extends AbstractContactsProvider
         final Set<Long> changedRawContacts = mTransactionContext.get().getChangedRawContactIds();
         ContactsTableUtil.updateContactLastUpdateByRawContactId(db, changedRawContacts);
 
+        // Sync clients only read the change log of the contacts database.
+        if (!inProfileMode()) {
+            final Set<Long> loggedRawContacts;
+            if (updatedRawContacts.isEmpty()) {
+                loggedRawContacts = changedRawContacts;
+            } else {
+                loggedRawContacts = new ArraySet<>(changedRawContacts);
+                loggedRawContacts.addAll(updatedRawContacts);
+            }
+            ChangeLogTableUtil.insertChanges(db,
+                    mTransactionContext.get().getInsertedRawContactIds(), loggedRawContacts);
+        }
+
+        // Inserted and dirty raw contacts are always marked as changed as well.
+        int flushedCount = changedRawContacts.size();
+        for (long rawContactId : updatedRawContacts) {
+            if (!changedRawContacts.contains(rawContactId)) {
+                flushedCount++;
+            }
+        }
+
         // Update sync states.
         for (Map.Entry<Long, Object> entry : mTransactionContext.get().getUpdatedSyncStates()) {
             long id = entry.getKey();
@@ -2847,6 +3061,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
 
         mTransactionContext.get().clearExceptSearchIndexUpdates();
+        return flushedCount;
     }
 
     /**
@@ -2863,6 +3078,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     @Override
     protected void notifyChange() {
+        // Search sessions can also be cached between onCommit() and the actual commit.
+        mSearchSessions.invalidateAll();
+        mLookupKeyCache.onTransactionCommitted();
         notifyChange(mSyncToNetwork);
         mSyncToNetwork = false;
     }
@@ -2933,6 +3151,452 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return handler;
     }
 
+    @Override
+    protected BulkInserter newBulkInserter(Uri uri) {
+        final int match = sUriMatcher.match(uri);
+        if (match == DATA || match == RAW_CONTACTS) {
+            return new ContactsBulkInserter(uri, match);
+        }
+        if (match == STATUS_UPDATES) {
+            return new StatusUpdatesBulkInserter(uri);
+        }
+        return super.newBulkInserter(uri);
+    }
+
+    /**
+     * Bulk inserter for {@link Data} and {@link RawContacts} rows.  The URI, the sync adapter
+     * flag and the calling package are resolved once for the whole batch, the fast scrolling
+     * index is invalidated once instead of per row.  Every row is still validated and logged
+     * like {@link #insert} does, and rows which belong to the profile go to the profile provider.
+     */
+    private class ContactsBulkInserter implements BulkInserter {
+        private final Uri mUri;
+        private final int mMatch;
+        private final boolean mCallerIsSyncAdapter;
+        private final String mCallingPackage;
+        private final int mCallingUid;
+
+        ContactsBulkInserter(Uri uri, int match) {
+            mUri = uri;
+            mMatch = match;
+            mCallerIsSyncAdapter =
+                    readBooleanQueryParameter(uri, ContactsContract.CALLER_IS_SYNCADAPTER, false);
+            mCallingPackage = getCallingPackage();
+            mCallingUid = Binder.getCallingUid();
+            invalidateFastScrollingIndexCache();
+        }
+
+        @Override
+        public Uri insert(ContentValues values) {
+            LogFields.Builder logBuilder = LogFields.Builder.aLogFields()
+                    .setApiType(LogUtils.ApiType.INSERT)
+                    .setUriType(mMatch)
+                    .setCallerIsSyncAdapter(mCallerIsSyncAdapter)
+                    .setStartNanos(SystemClock.elapsedRealtimeNanos())
+                    .setUid(mCallingUid);
+            Uri resultUri = null;
+
+            try {
+                mContactsHelper.validateContentValues(mCallingPackage, values);
+
+                if (mapsToProfileDbWithInsertedValues(mUri, values)) {
+                    switchToProfileMode();
+                    resultUri = mProfileProvider.insert(mUri, values);
+                    return resultUri;
+                }
+                switchToContactMode();
+                resultUri = insertRow(values);
+                return resultUri;
+            } catch (Exception e) {
+                logBuilder.setException(e);
+                throw e;
+            } finally {
+                LogUtils.log(logBuilder.setResultUri(resultUri)
+                        .setResultCount(resultUri == null ? 0 : 1).build());
+            }
+        }
+
+        private Uri insertRow(ContentValues values) {
+            mStats.incrementInsertStats(mCallingUid, true);
+            try {
+                final long id = mMatch == DATA
+                        ? insertData(values, mCallerIsSyncAdapter)
+                        : insertRawContact(mUri, values, mCallerIsSyncAdapter);
+                mSyncToNetwork |= !mCallerIsSyncAdapter;
+                return id < 0 ? null : ContentUris.withAppendedId(mUri, id);
+            } finally {
+                mStats.finishOperation(mCallingUid);
+            }
+        }
+
+        @Override
+        public void close() {
+            // Readers may have rebuilt the index while the batch yielded.
+            invalidateFastScrollingIndexCache();
+        }
+    }
+
+    /**
+     * Resolves the IM handles and email addresses of a presence batch to data rows, along with
+     * the presence currently stored for them.  The candidates for a handle come in the order
+     * {@link #insertStatusUpdate} picks them in.
+     */
+    private interface PresenceHandleQuery {
+        String TABLE = DataContactsQuery.TABLE
+                + " LEFT OUTER JOIN " + Tables.PRESENCE + " ON ("
+                + Tables.PRESENCE + "." + StatusUpdates.DATA_ID + "=" + DataColumns.CONCRETE_ID
+                + ")";
+
+        String[] COLUMNS = new String[] {
+                DataColumns.CONCRETE_ID,
+                RawContactsColumns.CONCRETE_ID,
+                ContactsColumns.CONCRETE_ID,
+                DataColumns.CONCRETE_MIMETYPE_ID,
+                DataColumns.CONCRETE_DATA1,
+                DataColumns.CONCRETE_DATA5,
+                DataColumns.CONCRETE_DATA6,
+                Tables.PRESENCE + "." + StatusUpdates.DATA_ID,
+                Tables.PRESENCE + "." + PresenceColumns.RAW_CONTACT_ID,
+                Tables.PRESENCE + "." + PresenceColumns.CONTACT_ID,
+                Tables.PRESENCE + "." + StatusUpdates.PROTOCOL,
+                Tables.PRESENCE + "." + StatusUpdates.CUSTOM_PROTOCOL,
+                Tables.PRESENCE + "." + StatusUpdates.IM_HANDLE,
+                Tables.PRESENCE + "." + StatusUpdates.IM_ACCOUNT,
+                Tables.PRESENCE + "." + StatusUpdates.PRESENCE,
+                Tables.PRESENCE + "." + StatusUpdates.CHAT_CAPABILITY,
+        };
+
+        int DATA_ID = 0;
+        int RAW_CONTACT_ID = 1;
+        int CONTACT_ID = 2;
+        int MIMETYPE_ID = 3;
+        int HANDLE = 4; // Im.DATA and Email.ADDRESS
+        int PROTOCOL = 5; // Im.PROTOCOL
+        int CUSTOM_PROTOCOL = 6; // Im.CUSTOM_PROTOCOL
+        int PRESENCE_DATA_ID = 7;
+        int PRESENCE_RAW_CONTACT_ID = 8;
+        int PRESENCE_CONTACT_ID = 9;
+        int PRESENCE_PROTOCOL = 10;
+        int PRESENCE_CUSTOM_PROTOCOL = 11;
+        int PRESENCE_IM_HANDLE = 12;
+        int PRESENCE_IM_ACCOUNT = 13;
+        int PRESENCE_PRESENCE = 14;
+        int PRESENCE_CHAT_CAPABILITY = 15;
+
+        /** Handles per query, well below the limit of bind arguments. */
+        int MAX_HANDLES = 200;
+    }
+
+    /** A data row a presence update can be attached to. */
+    private static class PresenceCandidate {
+        final long dataId;
+        final long rawContactId;
+        final long contactId;
+        final boolean isEmail;
+        final String protocol;
+        final String customProtocol;
+
+        PresenceCandidate(long dataId, long rawContactId, long contactId, boolean isEmail,
+                String protocol, String customProtocol) {
+            this.dataId = dataId;
+            this.rawContactId = rawContactId;
+            this.contactId = contactId;
+            this.isEmail = isEmail;
+            this.protocol = protocol;
+            this.customProtocol = customProtocol;
+        }
+    }
+
+    /**
+     * Bulk inserter for {@link StatusUpdates} rows that only carry presence, which chat apps push
+     * for many buddies at once.  The IM handles of the whole batch are resolved to data rows with
+     * a few queries up front, and again for the remaining rows whenever the batch yields, and
+     * presence rows are written with a single compiled statement.  Rows whose presence is already
+     * stored, or which are overwritten by a later row of the batch, are not written, so the
+     * triggers maintaining {@link Tables#AGGREGATED_PRESENCE} only run for actual changes.  Rows
+     * with a status, a data ID or missing values go through {@link #insert} as usual.
+     */
+    private class StatusUpdatesBulkInserter implements BulkInserter {
+        private final Uri mUri;
+        private final String mCallingPackage;
+        private final int mCallingUid;
+
+        /** Candidate data rows by handle, in the order of {@link PresenceHandleQuery}. */
+        private final ArrayMap<String, ArrayList<PresenceCandidate>> mCandidates =
+                new ArrayMap<>();
+        /** Presence stored or written so far, by data ID. */
+        private final ArrayMap<Long, ContentValues> mStoredPresence = new ArrayMap<>();
+        /** Index of the last row of the batch for each presence key. */
+        private final ArrayMap<String, Integer> mLastRows = new ArrayMap<>();
+        private int mRow = -1;
+        private SQLiteStatement mReplaceStatement;
+
+        StatusUpdatesBulkInserter(Uri uri) {
+            mUri = uri;
+            mCallingPackage = getCallingPackage();
+            mCallingUid = Binder.getCallingUid();
+        }
+
+        @Override
+        public void prepare(ContentValues[] values) {
+            for (int i = 0; i < values.length; i++) {
+                if (isPresenceOnly(values[i])) {
+                    mLastRows.put(getPresenceKey(values[i]), i);
+                }
+            }
+            lookUpHandles(values, 0);
+        }
+
+        @Override
+        public void onYielded(ContentValues[] values, int next) {
+            // Contacts and presence may have changed in the meantime.
+            mCandidates.clear();
+            mStoredPresence.clear();
+            lookUpHandles(values, next);
+        }
+
+        /**
+         * Looks up the candidates and the stored presence for the handles of the presence-only
+         * rows from {@code first} on.
+         */
+        private void lookUpHandles(ContentValues[] values, int first) {
+            final ArraySet<String> handles = new ArraySet<>();
+            for (int i = first; i < values.length; i++) {
+                if (isPresenceOnly(values[i])) {
+                    handles.add(values[i].getAsString(StatusUpdates.IM_HANDLE));
+                }
+            }
+            if (handles.isEmpty()) {
+                return;
+            }
+
+            switchToContactMode();
+            final ContactsDatabaseHelper dbHelper = mContactsHelper;
+            final SQLiteDatabase db = dbHelper.getReadableDatabase();
+            final long mimeTypeIdIm = dbHelper.getMimeTypeIdForIm();
+            final long mimeTypeIdEmail = dbHelper.getMimeTypeIdForEmail();
+            for (int start = 0; start < handles.size();
+                    start += PresenceHandleQuery.MAX_HANDLES) {
+                final int end = Math.min(start + PresenceHandleQuery.MAX_HANDLES, handles.size());
+                final String[] args = new String[end - start + 2];
+                args[0] = String.valueOf(mimeTypeIdIm);
+                args[1] = String.valueOf(mimeTypeIdEmail);
+                for (int i = start; i < end; i++) {
+                    args[i - start + 2] = handles.valueAt(i);
+                }
+                // Relies on Im.DATA and Email.ADDRESS being the same column, see
+                // insertStatusUpdate.
+                final Cursor cursor = db.query(PresenceHandleQuery.TABLE,
+                        PresenceHandleQuery.COLUMNS,
+                        DataColumns.CONCRETE_MIMETYPE_ID + " IN (?,?)"
+                                + " AND " + DataColumns.CONCRETE_DATA1 + " IN ("
+                                + MoreDatabaseUtils.buildBindArgString(end - start) + ")",
+                        args, null, null,
+                        Clauses.CONTACT_VISIBLE + " DESC, "
+                                + DataColumns.CONCRETE_RAW_CONTACT_ID);
+                try {
+                    while (cursor.moveToNext()) {
+                        addCandidate(cursor, mimeTypeIdEmail);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+
+        private void addCandidate(Cursor cursor, long mimeTypeIdEmail) {
+            final long dataId = cursor.getLong(PresenceHandleQuery.DATA_ID);
+            final String handle = cursor.getString(PresenceHandleQuery.HANDLE);
+            ArrayList<PresenceCandidate> candidates = mCandidates.get(handle);
+            if (candidates == null) {
+                candidates = new ArrayList<>(1);
+                mCandidates.put(handle, candidates);
+            }
+            candidates.add(new PresenceCandidate(dataId,
+                    cursor.getLong(PresenceHandleQuery.RAW_CONTACT_ID),
+                    cursor.getLong(PresenceHandleQuery.CONTACT_ID),
+                    cursor.getLong(PresenceHandleQuery.MIMETYPE_ID) == mimeTypeIdEmail,
+                    cursor.getString(PresenceHandleQuery.PROTOCOL),
+                    cursor.getString(PresenceHandleQuery.CUSTOM_PROTOCOL)));
+
+            if (!cursor.isNull(PresenceHandleQuery.PRESENCE_DATA_ID)) {
+                final ContentValues presence = new ContentValues();
+                presence.put(PresenceColumns.RAW_CONTACT_ID,
+                        cursor.getString(PresenceHandleQuery.PRESENCE_RAW_CONTACT_ID));
+                presence.put(PresenceColumns.CONTACT_ID,
+                        cursor.getString(PresenceHandleQuery.PRESENCE_CONTACT_ID));
+                presence.put(StatusUpdates.PROTOCOL,
+                        cursor.getString(PresenceHandleQuery.PRESENCE_PROTOCOL));
+                presence.put(StatusUpdates.CUSTOM_PROTOCOL,
+                        cursor.getString(PresenceHandleQuery.PRESENCE_CUSTOM_PROTOCOL));
+                presence.put(StatusUpdates.IM_HANDLE,
+                        cursor.getString(PresenceHandleQuery.PRESENCE_IM_HANDLE));
+                presence.put(StatusUpdates.IM_ACCOUNT,
+                        cursor.getString(PresenceHandleQuery.PRESENCE_IM_ACCOUNT));
+                presence.put(StatusUpdates.PRESENCE,
+                        cursor.getString(PresenceHandleQuery.PRESENCE_PRESENCE));
+                presence.put(StatusUpdates.CHAT_CAPABILITY,
+                        cursor.getString(PresenceHandleQuery.PRESENCE_CHAT_CAPABILITY));
+                mStoredPresence.put(dataId, presence);
+            }
+        }
+
+        @Override
+        public Uri insert(ContentValues values) {
+            mRow++;
+            if (!isPresenceOnly(values)) {
+                // The row may replace presence as well.
+                mStoredPresence.clear();
+                return ContactsProvider2.this.insert(mUri, values);
+            }
+            mContactsHelper.validateContentValues(mCallingPackage, values);
+            switchToContactMode();
+
+            mStats.incrementInsertStats(mCallingUid, true);
+            try {
+                final PresenceCandidate candidate = findCandidate(values);
+                if (candidate == null) {
+                    // No contact found, return a null URI.
+                    return null;
+                }
+                if (mLastRows.get(getPresenceKey(values)) == mRow) {
+                    updatePresence(candidate, values);
+                }
+                return ContentUris.withAppendedId(mUri, candidate.dataId);
+            } finally {
+                mStats.finishOperation(mCallingUid);
+            }
+        }
+
+        /**
+         * Returns the data row {@link #insertStatusUpdate} would attach the presence update to.
+         */
+        private PresenceCandidate findCandidate(ContentValues values) {
+            final ArrayList<PresenceCandidate> candidates =
+                    mCandidates.get(values.getAsString(StatusUpdates.IM_HANDLE));
+            if (candidates == null) {
+                return null;
+            }
+            final int protocol = values.getAsInteger(StatusUpdates.PROTOCOL);
+            final String customProtocol = protocol == Im.PROTOCOL_CUSTOM
+                    ? values.getAsString(StatusUpdates.CUSTOM_PROTOCOL) : null;
+            // TODO: generalize to allow other providers to match against email.
+            final boolean matchEmail = Im.PROTOCOL_GOOGLE_TALK == protocol;
+            for (PresenceCandidate candidate : candidates) {
+                if (candidate.isEmail) {
+                    if (matchEmail) {
+                        return candidate;
+                    }
+                } else if (String.valueOf(protocol).equals(candidate.protocol)
+                        && (customProtocol == null
+                                || customProtocol.equals(candidate.customProtocol))) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+
+        private void updatePresence(PresenceCandidate candidate, ContentValues inputValues) {
+            final String customProtocol =
+                    inputValues.getAsInteger(StatusUpdates.PROTOCOL) == Im.PROTOCOL_CUSTOM
+                            ? inputValues.getAsString(StatusUpdates.CUSTOM_PROTOCOL)
+                            // We cannot allow a null in the custom protocol field, because SQLite3
+                            // does not properly enforce uniqueness of null values
+                            : "";
+            final ContentValues presence = new ContentValues();
+            presence.put(PresenceColumns.RAW_CONTACT_ID, String.valueOf(candidate.rawContactId));
+            presence.put(PresenceColumns.CONTACT_ID, String.valueOf(candidate.contactId));
+            presence.put(StatusUpdates.PROTOCOL,
+                    inputValues.getAsString(StatusUpdates.PROTOCOL));
+            presence.put(StatusUpdates.CUSTOM_PROTOCOL, customProtocol);
+            presence.put(StatusUpdates.IM_HANDLE, inputValues.getAsString(StatusUpdates.IM_HANDLE));
+            presence.put(StatusUpdates.IM_ACCOUNT,
+                    inputValues.getAsString(StatusUpdates.IM_ACCOUNT));
+            presence.put(StatusUpdates.PRESENCE, inputValues.getAsString(StatusUpdates.PRESENCE));
+            presence.put(StatusUpdates.CHAT_CAPABILITY,
+                    inputValues.getAsString(StatusUpdates.CHAT_CAPABILITY));
+
+            if (presence.equals(mStoredPresence.get(candidate.dataId))) {
+                return;
+            }
+
+            if (mReplaceStatement == null) {
+                mReplaceStatement = mContactsHelper.getWritableDatabase().compileStatement(
+                        "INSERT OR REPLACE INTO " + Tables.PRESENCE + "("
+                                + StatusUpdates.DATA_ID + ","
+                                + PresenceColumns.RAW_CONTACT_ID + ","
+                                + PresenceColumns.CONTACT_ID + ","
+                                + StatusUpdates.PROTOCOL + ","
+                                + StatusUpdates.CUSTOM_PROTOCOL + ","
+                                + StatusUpdates.IM_HANDLE + ","
+                                + StatusUpdates.IM_ACCOUNT + ","
+                                + StatusUpdates.PRESENCE + ","
+                                + StatusUpdates.CHAT_CAPABILITY
+                                + ") VALUES (" + MoreDatabaseUtils.buildBindArgString(9) + ")");
+            }
+            final SQLiteStatement statement = mReplaceStatement;
+            try {
+                statement.bindLong(1, candidate.dataId);
+                DatabaseUtils.bindObjectToProgram(statement, 2,
+                        presence.get(PresenceColumns.RAW_CONTACT_ID));
+                DatabaseUtils.bindObjectToProgram(statement, 3,
+                        presence.get(PresenceColumns.CONTACT_ID));
+                DatabaseUtils.bindObjectToProgram(statement, 4,
+                        presence.get(StatusUpdates.PROTOCOL));
+                DatabaseUtils.bindObjectToProgram(statement, 5,
+                        presence.get(StatusUpdates.CUSTOM_PROTOCOL));
+                DatabaseUtils.bindObjectToProgram(statement, 6,
+                        presence.get(StatusUpdates.IM_HANDLE));
+                DatabaseUtils.bindObjectToProgram(statement, 7,
+                        presence.get(StatusUpdates.IM_ACCOUNT));
+                DatabaseUtils.bindObjectToProgram(statement, 8,
+                        presence.get(StatusUpdates.PRESENCE));
+                DatabaseUtils.bindObjectToProgram(statement, 9,
+                        presence.get(StatusUpdates.CHAT_CAPABILITY));
+                statement.executeInsert();
+            } finally {
+                statement.clearBindings();
+            }
+            mStoredPresence.put(candidate.dataId, presence);
+        }
+
+        @Override
+        public void close() {
+            if (mReplaceStatement != null) {
+                mReplaceStatement.close();
+            }
+        }
+    }
+
+    /**
+     * Returns whether a status update row only carries presence for an IM handle, as opposed to
+     * a status or a data ID, and has all the values {@link #insertStatusUpdate} requires.
+     */
+    private static boolean isPresenceOnly(ContentValues values) {
+        if (values.containsKey(StatusUpdates.STATUS)
+                || values.getAsLong(StatusUpdates.DATA_ID) != null
+                || values.getAsString(StatusUpdates.PRESENCE) == null
+                || TextUtils.isEmpty(values.getAsString(StatusUpdates.IM_HANDLE))) {
+            return false;
+        }
+        final Integer protocol = values.getAsInteger(StatusUpdates.PROTOCOL);
+        return protocol != null && (protocol != Im.PROTOCOL_CUSTOM
+                || !TextUtils.isEmpty(values.getAsString(StatusUpdates.CUSTOM_PROTOCOL)));
+    }
+
+    /**
+     * Returns the key of the presence row a presence-only status update replaces, see the unique
+     * constraint of {@link Tables#PRESENCE}.
+     */
+    private static String getPresenceKey(ContentValues values) {
+        final Integer protocol = values.getAsInteger(StatusUpdates.PROTOCOL);
+        return protocol + "\n"
+                + (protocol == Im.PROTOCOL_CUSTOM
+                        ? values.getAsString(StatusUpdates.CUSTOM_PROTOCOL) : "") + "\n"
+                + values.getAsString(StatusUpdates.IM_ACCOUNT) + "\n"
+                + values.getAsString(StatusUpdates.IM_HANDLE);
+    }
+
     @Override
     protected Uri insertInTransaction(Uri uri, ContentValues values) {
         if (VERBOSE_LOGGING) {
@@ -3186,6 +3850,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
         // Trigger creation of a Contact based on this RawContact at the end of transaction.
         mTransactionContext.get().rawContactInserted(rawContactId, accountId);
 
+        final String sourceId = values.getAsString(RawContacts.SOURCE_ID);
+        if (sourceId != null && !inProfileMode()) {
+            mLookupKeyCache.invalidateSourceId(sourceId);
+        }
+
         if (!callerIsSyncAdapter) {
             addAutoAddMembership(rawContactId);
             if (flagIsSet(values, RawContacts.STARRED)) {
@@ -4144,7 +4813,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         mProviderStatusUpdateNeeded = true;
 
-        int result = ContactsTableUtil.deleteContact(db, contactId);
+        int result = ContactsTableUtil.deleteContact(db, mTransactionContext.get(), contactId);
 
         // Now purge the local raw contacts
         deleteRawContactsImmediately(db, localRawContactIds);
@@ -4178,7 +4847,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
         // This has to happen before the raw contact is deleted since it relies on the number
         // of raw contacts.
         final boolean contactIsSingleton =
-                ContactsTableUtil.deleteContactIfSingleton(db, rawContactId) == 1;
+                ContactsTableUtil.deleteContactIfSingleton(db, mTransactionContext.get(),
+                        rawContactId) == 1;
         final int count;
 
         if (callerIsSyncAdapter || rawContactIsLocal(rawContactId)) {
@@ -4225,6 +4895,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         if (result > 0) {
             for (Long rawContactId : rawContactIds) {
                 mTransactionContext.get().markRawContactChangedOrDeletedOrInserted(rawContactId);
+                invalidateLookupKeysForRawContact(rawContactId);
             }
         }
 
@@ -4972,6 +5643,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
             if (values.containsKey(RawContacts.SOURCE_ID)) {
                 aggregator.updateLookupKeyForRawContact(db, rawContactId);
             }
+            if (!inProfileMode()) {
+                invalidateLookupKeysForRawContactUpdate(db, rawContactId, values,
+                        isAccountChanging);
+            }
             if (requestUndoDelete && previousDeleted == 1) {
                 // Note before the accounts refactoring, we used to use the *old* account here,
                 // which doesn't make sense, so now we pass the *new* account.
@@ -4984,6 +5659,30 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return count;
     }
 
+    /**
+     * Drops the cached lookup keys that an update of a raw contact may resolve differently.
+     */
+    private void invalidateLookupKeysForRawContactUpdate(SQLiteDatabase db, long rawContactId,
+            ContentValues values, boolean isAccountChanging) {
+        final boolean isSourceIdChanging = values.containsKey(RawContacts.SOURCE_ID);
+        if (isSourceIdChanging || isAccountChanging
+                || values.containsKey(RawContacts.CONTACT_ID)) {
+            mLookupKeyCache.invalidateRawContact(rawContactId);
+        }
+        if (isSourceIdChanging || isAccountChanging) {
+            // The raw contact may now match keys naming its source ID.
+            final String sourceId = isSourceIdChanging
+                    ? values.getAsString(RawContacts.SOURCE_ID)
+                    : DatabaseUtils.stringForQuery(db,
+                            "SELECT " + RawContacts.SOURCE_ID + " FROM " + Tables.RAW_CONTACTS
+                            + " WHERE " + RawContacts._ID + "=?",
+                            new String[] {String.valueOf(rawContactId)});
+            if (sourceId != null) {
+                mLookupKeyCache.invalidateSourceId(sourceId);
+            }
+        }
+    }
+
     private int updateData(Uri uri, ContentValues inputValues, String selection,
             String[] selectionArgs, boolean callerIsSyncAdapter) {
 
@@ -5394,10 +6093,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         final ContactsDatabaseHelper dbHelper = mDbHelper.get();
         final SQLiteDatabase db = dbHelper.getWritableDatabase();
-        db.beginTransaction();
 
         // WARNING: This method can be run in either contacts mode or profile mode.  It is
-        // absolutely imperative that no calls be made inside the following try block that can
+        // absolutely imperative that no calls be made inside the following code that can
         // interact with a specific contacts or profile DB.  Otherwise it is quite possible for a
         // deadlock to occur.  i.e. always use the current database in mDbHelper and do not access
         // mContactsHelper or mProfileHelper directly.
@@ -5407,158 +6105,38 @@ public class ContactsProvider2 extends AbstractContactsProvider
         // SearchIndexManager which upon construction, stores the current db. In this case,
         // SearchIndexManager always contains the contact DB. This is why the
         // updateSearchIndexInTransaction is protected with !isInProfileMode now.
-        try {
-            // First, remove stale rows from raw_contacts, groups, and related tables.
-
-            // All accounts that are used in raw_contacts and/or groups.
-            final Set<AccountWithDataSet> knownAccountsWithDataSets
-                    = dbHelper.getAllAccountsWithDataSets();
-            // All known SIM accounts
-            final List<SimAccount> simAccounts = getDatabaseHelper().getAllSimAccounts();
-            // Find the accounts that have been removed.
-            final List<AccountWithDataSet> accountsWithDataSetsToDelete = Lists.newArrayList();
-            for (AccountWithDataSet knownAccountWithDataSet : knownAccountsWithDataSets) {
-                if (knownAccountWithDataSet.isLocalAccount()
-                        || knownAccountWithDataSet.inSystemAccounts(systemAccounts)
-                        || knownAccountWithDataSet.inSimAccounts(simAccounts)) {
-                    continue;
-                }
-                accountsWithDataSetsToDelete.add(knownAccountWithDataSet);
-            }
-
-            if (!accountsWithDataSetsToDelete.isEmpty()) {
-                for (AccountWithDataSet accountWithDataSet : accountsWithDataSetsToDelete) {
-                    final Long accountIdOrNull = dbHelper.getAccountIdOrNull(accountWithDataSet);
-
-                    if (accountIdOrNull != null) {
-                        final String accountId = Long.toString(accountIdOrNull);
-                        final String[] accountIdParams =
-                                new String[] {accountId};
-                        db.execSQL(
-                                "DELETE FROM " + Tables.GROUPS +
-                                " WHERE " + GroupsColumns.ACCOUNT_ID + " = ?",
-                                accountIdParams);
-                        db.execSQL(
-                                "DELETE FROM " + Tables.PRESENCE +
-                                " WHERE " + PresenceColumns.RAW_CONTACT_ID + " IN (" +
-                                        "SELECT " + RawContacts._ID +
-                                        " FROM " + Tables.RAW_CONTACTS +
-                                        " WHERE " + RawContactsColumns.ACCOUNT_ID + " = ?)",
-                                        accountIdParams);
-                        db.execSQL(
-                                "DELETE FROM " + Tables.STREAM_ITEM_PHOTOS +
-                                " WHERE " + StreamItemPhotos.STREAM_ITEM_ID + " IN (" +
-                                        "SELECT " + StreamItems._ID +
-                                        " FROM " + Tables.STREAM_ITEMS +
-                                        " WHERE " + StreamItems.RAW_CONTACT_ID + " IN (" +
-                                                "SELECT " + RawContacts._ID +
-                                                " FROM " + Tables.RAW_CONTACTS +
-                                                " WHERE " + RawContactsColumns.ACCOUNT_ID + "=?))",
-                                                accountIdParams);
-                        db.execSQL(
-                                "DELETE FROM " + Tables.STREAM_ITEMS +
-                                " WHERE " + StreamItems.RAW_CONTACT_ID + " IN (" +
-                                        "SELECT " + RawContacts._ID +
-                                        " FROM " + Tables.RAW_CONTACTS +
-                                        " WHERE " + RawContactsColumns.ACCOUNT_ID + " = ?)",
-                                        accountIdParams);
-
-                        // Delta API is only needed for regular contacts.
-                        if (!inProfileMode()) {
-                            // Contacts are deleted by a trigger on the raw_contacts table.
-                            // But we also need to insert the contact into the delete log.
-                            // This logic is being consolidated into the ContactsTableUtil.
-
-                            // deleteContactIfSingleton() does not work in this case because raw
-                            // contacts will be deleted in a single batch below.  Contacts with
-                            // multiple raw contacts in the same account will be missed.
-
-                            // Find all contacts that do not have raw contacts in other accounts.
-                            // These should be deleted.
-                            Cursor cursor = db.rawQuery(
-                                    "SELECT " + RawContactsColumns.CONCRETE_CONTACT_ID +
-                                            " FROM " + Tables.RAW_CONTACTS +
-                                            " WHERE " + RawContactsColumns.ACCOUNT_ID + " = ?1" +
-                                            " AND " + RawContactsColumns.CONCRETE_CONTACT_ID +
-                                            " IS NOT NULL" +
-                                            " AND " + RawContactsColumns.CONCRETE_CONTACT_ID +
-                                            " NOT IN (" +
-                                            "    SELECT " + RawContactsColumns.CONCRETE_CONTACT_ID +
-                                            "    FROM " + Tables.RAW_CONTACTS +
-                                            "    WHERE " + RawContactsColumns.ACCOUNT_ID + " != ?1"
-                                            + "  AND " + RawContactsColumns.CONCRETE_CONTACT_ID +
-                                            "    IS NOT NULL"
-                                            + ")", accountIdParams);
-                            try {
-                                while (cursor.moveToNext()) {
-                                    final long contactId = cursor.getLong(0);
-                                    ContactsTableUtil.deleteContact(db, contactId);
-                                }
-                            } finally {
-                                MoreCloseables.closeQuietly(cursor);
-                            }
-
-                            // If the contact was not deleted, its last updated timestamp needs to
-                            // be refreshed since one of its raw contacts got removed.
-                            // Find all contacts that will not be deleted (i.e. contacts with
-                            // raw contacts in other accounts)
-                            cursor = db.rawQuery(
-                                    "SELECT DISTINCT " + RawContactsColumns.CONCRETE_CONTACT_ID +
-                                            " FROM " + Tables.RAW_CONTACTS +
-                                            " WHERE " + RawContactsColumns.ACCOUNT_ID + " = ?1" +
-                                            " AND " + RawContactsColumns.CONCRETE_CONTACT_ID +
-                                            " IN (" +
-                                            "    SELECT " + RawContactsColumns.CONCRETE_CONTACT_ID +
-                                            "    FROM " + Tables.RAW_CONTACTS +
-                                            "    WHERE " + RawContactsColumns.ACCOUNT_ID + " != ?1"
-                                            + ")", accountIdParams);
-                            try {
-                                while (cursor.moveToNext()) {
-                                    final long contactId = cursor.getLong(0);
-                                    ContactsTableUtil.updateContactLastUpdateByContactId(
-                                            db, contactId);
-                                }
-                            } finally {
-                                MoreCloseables.closeQuietly(cursor);
-                            }
-                        }
 
-                        db.execSQL(
-                                "DELETE FROM " + Tables.RAW_CONTACTS +
-                                " WHERE " + RawContactsColumns.ACCOUNT_ID + " = ?",
-                                accountIdParams);
-                        db.execSQL(
-                                "DELETE FROM " + Tables.ACCOUNTS +
-                                " WHERE " + AccountsColumns._ID + "=?",
-                                accountIdParams);
-                    }
-                }
+        // First, remove the raw contacts of the accounts that have been removed, a batch per
+        // transaction so that other writers are not blocked for the whole removal.  The accounts
+        // themselves are only removed at the end, so if we get killed halfway the remaining rows
+        // are removed the next time.
+        final String accountIdsToDelete = getStaleAccountIds(dbHelper, systemAccounts);
+        if (accountIdsToDelete != null) {
+            while (removeStaleAccountRawContactsBatch(db, accountIdsToDelete,
+                    mStaleAccountBatchSize)) {
+                // Let readers see the committed batch.
+                invalidateFastScrollingIndexCache();
+                mSearchSessions.invalidateAll();
+                mLookupKeyCache.invalidateAll();
+            }
+        }
 
-                // Find all aggregated contacts that used to contain the raw contacts
-                // we have just deleted and see if they are still referencing the deleted
-                // names or photos.  If so, fix up those contacts.
-                ArraySet<Long> orphanContactIds = new ArraySet<>();
-                Cursor cursor = db.rawQuery("SELECT " + Contacts._ID +
-                        " FROM " + Tables.CONTACTS +
-                        " WHERE (" + Contacts.NAME_RAW_CONTACT_ID + " NOT NULL AND " +
-                                Contacts.NAME_RAW_CONTACT_ID + " NOT IN " +
-                                        "(SELECT " + RawContacts._ID +
-                                        " FROM " + Tables.RAW_CONTACTS + "))" +
-                        " OR (" + Contacts.PHOTO_ID + " NOT NULL AND " +
-                                Contacts.PHOTO_ID + " NOT IN " +
-                                        "(SELECT " + Data._ID +
-                                        " FROM " + Tables.DATA + "))", null);
-                try {
-                    while (cursor.moveToNext()) {
-                        orphanContactIds.add(cursor.getLong(0));
-                    }
-                } finally {
-                    cursor.close();
-                }
+        db.beginTransaction();
+        try {
+            if (accountIdsToDelete != null) {
+                // Raw contacts may have been inserted into the removed accounts since the last
+                // batch; remove them in this transaction.
+                while (removeStaleAccountRawContactsBatch(db, accountIdsToDelete,
+                        mStaleAccountBatchSize)) {
+                    // Nested in this transaction, so nothing is committed yet.
+                }
+                db.execSQL(
+                        "DELETE FROM " + Tables.GROUPS +
+                        " WHERE " + GroupsColumns.ACCOUNT_ID + " IN (" + accountIdsToDelete + ")");
+                db.execSQL(
+                        "DELETE FROM " + Tables.ACCOUNTS +
+                        " WHERE " + AccountsColumns._ID + " IN (" + accountIdsToDelete + ")");
 
-                for (Long contactId : orphanContactIds) {
-                    mAggregator.get().updateAggregateData(mTransactionContext.get(), contactId);
-                }
                 dbHelper.updateAllVisible();
 
                 // Don't bother updating the search index if we're in profile mode - there is no
@@ -5596,18 +6174,173 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return true;
     }
 
-    private void updateContactsAccountCount(Account[] accounts) {
-        int count = 0;
-        for (Account account : accounts) {
-            if (isContactsAccount(account)) {
-                count++;
-            }
-        }
-        mContactsAccountCount = count;
-    }
+    /**
+     * Returns the comma separated IDs of the accounts used in raw_contacts and/or groups that
+     * are neither local, nor system nor SIM accounts, or null if there are none.
+     */
+    private String getStaleAccountIds(ContactsDatabaseHelper dbHelper,
+            Account[] systemAccounts) {
+        // All accounts that are used in raw_contacts and/or groups.
+        final Set<AccountWithDataSet> knownAccountsWithDataSets
+                = dbHelper.getAllAccountsWithDataSets();
+        // All known SIM accounts
+        final List<SimAccount> simAccounts = dbHelper.getAllSimAccounts();
+        // Find the accounts that have been removed.
+        final List<Long> accountIds = Lists.newArrayList();
+        for (AccountWithDataSet knownAccountWithDataSet : knownAccountsWithDataSets) {
+            if (knownAccountWithDataSet.isLocalAccount()
+                    || knownAccountWithDataSet.inSystemAccounts(systemAccounts)
+                    || knownAccountWithDataSet.inSimAccounts(simAccounts)) {
+                continue;
+            }
+            final Long accountIdOrNull = dbHelper.getAccountIdOrNull(knownAccountWithDataSet);
+            if (accountIdOrNull != null) {
+                accountIds.add(accountIdOrNull);
+            }
+        }
+        return accountIds.isEmpty() ? null : TextUtils.join(",", accountIds);
+    }
+
+    private interface StaleRawContactsQuery {
+        String TABLE = Tables.RAW_CONTACTS;
 
-    // Overridden in SynchronousContactsProvider2.java
-    protected boolean isContactsAccount(Account account) {
+        String[] COLUMNS = new String[] {
+                RawContacts._ID,
+                RawContactsColumns.CONCRETE_CONTACT_ID,
+        };
+
+        int _ID = 0;
+        int CONTACT_ID = 1;
+    }
+
+    /**
+     * Removes up to {@code batchSize} raw contacts of the given accounts, with their presence and
+     * stream items, in a transaction.  Contacts left without raw contacts are deleted, the other
+     * contacts that lost raw contacts are re-aggregated.
+     *
+     * @param accountIds comma separated account IDs
+     * @return whether there may be more raw contacts to remove
+     */
+    private boolean removeStaleAccountRawContactsBatch(SQLiteDatabase db, String accountIds,
+            int batchSize) {
+        db.beginTransaction();
+        try {
+            final ArrayList<Long> rawContactIds = new ArrayList<>(batchSize);
+            final ArraySet<Long> contactIds = new ArraySet<>();
+            final Cursor cursor = db.query(StaleRawContactsQuery.TABLE,
+                    StaleRawContactsQuery.COLUMNS,
+                    RawContactsColumns.ACCOUNT_ID + " IN (" + accountIds + ")",
+                    null, null, null, null, String.valueOf(batchSize));
+            try {
+                while (cursor.moveToNext()) {
+                    rawContactIds.add(cursor.getLong(StaleRawContactsQuery._ID));
+                    if (!cursor.isNull(StaleRawContactsQuery.CONTACT_ID)) {
+                        contactIds.add(cursor.getLong(StaleRawContactsQuery.CONTACT_ID));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            if (rawContactIds.isEmpty()) {
+                db.setTransactionSuccessful();
+                return false;
+            }
+
+            final String rawContactIdList = TextUtils.join(",", rawContactIds);
+            db.execSQL(
+                    "DELETE FROM " + Tables.PRESENCE +
+                    " WHERE " + PresenceColumns.RAW_CONTACT_ID +
+                            " IN (" + rawContactIdList + ")");
+            db.execSQL(
+                    "DELETE FROM " + Tables.STREAM_ITEM_PHOTOS +
+                    " WHERE " + StreamItemPhotos.STREAM_ITEM_ID + " IN (" +
+                            "SELECT " + StreamItems._ID +
+                            " FROM " + Tables.STREAM_ITEMS +
+                            " WHERE " + StreamItems.RAW_CONTACT_ID +
+                                    " IN (" + rawContactIdList + "))");
+            db.execSQL(
+                    "DELETE FROM " + Tables.STREAM_ITEMS +
+                    " WHERE " + StreamItems.RAW_CONTACT_ID + " IN (" + rawContactIdList + ")");
+
+            // Contacts that keep raw contacts outside of this batch.
+            final ArraySet<Long> remainingContactIds = new ArraySet<>();
+            if (!contactIds.isEmpty()) {
+                final Cursor c = db.rawQuery(
+                        "SELECT DISTINCT " + RawContactsColumns.CONCRETE_CONTACT_ID +
+                        " FROM " + Tables.RAW_CONTACTS +
+                        " WHERE " + RawContactsColumns.CONCRETE_CONTACT_ID +
+                                " IN (" + TextUtils.join(",", contactIds) + ")" +
+                        " AND " + RawContactsColumns.CONCRETE_ID +
+                                " NOT IN (" + rawContactIdList + ")", null);
+                try {
+                    while (c.moveToNext()) {
+                        remainingContactIds.add(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+
+            // Delta API is only needed for regular contacts.
+            if (!inProfileMode()) {
+                // Contacts are deleted by a trigger on the raw_contacts table.
+                // But we also need to insert the contact into the delete log.
+                // This logic is being consolidated into the ContactsTableUtil.
+
+                // deleteContactIfSingleton() does not work in this case because raw
+                // contacts will be deleted in a single batch below.  Contacts with
+                // multiple raw contacts in the batch will be missed.
+                // This transaction is not a provider transaction, so the delete log is
+                // written before it commits rather than on commit.
+                final TransactionContext deletedContactsContext = new TransactionContext(false);
+                for (int i = 0; i < contactIds.size(); i++) {
+                    final long contactId = contactIds.valueAt(i);
+                    if (remainingContactIds.contains(contactId)) {
+                        // If the contact was not deleted, its last updated timestamp needs to
+                        // be refreshed since one of its raw contacts got removed.
+                        ContactsTableUtil.updateContactLastUpdateByContactId(db, contactId);
+                    } else {
+                        ContactsTableUtil.deleteContact(db, deletedContactsContext, contactId);
+                    }
+                }
+                flushDeletedContacts(db, deletedContactsContext);
+            }
+
+            db.execSQL(
+                    "DELETE FROM " + Tables.RAW_CONTACTS +
+                    " WHERE " + RawContacts._ID + " IN (" + rawContactIdList + ")");
+
+            // The remaining contacts may still be referencing the deleted names or photos, fix
+            // them up.  No other contacts are affected by this batch.
+            for (int i = 0; i < remainingContactIds.size(); i++) {
+                mAggregator.get().updateAggregateData(mTransactionContext.get(),
+                        remainingContactIds.valueAt(i));
+            }
+
+            db.setTransactionSuccessful();
+            return rawContactIds.size() == batchSize;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @VisibleForTesting
+    void setStaleAccountBatchSizeForTest(int batchSize) {
+        mStaleAccountBatchSize = batchSize;
+    }
+
+    private void updateContactsAccountCount(Account[] accounts) {
+        int count = 0;
+        for (Account account : accounts) {
+            if (isContactsAccount(account)) {
+                count++;
+            }
+        }
+        mContactsAccountCount = count;
+    }
+
+    // Overridden in SynchronousContactsProvider2.java
+    protected boolean isContactsAccount(Account account) {
         final IContentService cs = ContentResolver.getContentService();
         try {
             return cs.getIsSyncable(account, ContactsContract.AUTHORITY) > 0;
@@ -5660,12 +6393,15 @@ public class ContactsProvider2 extends AbstractContactsProvider
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder, CancellationSignal cancellationSignal) {
+        final int match = sUriMatcher.match(uri);
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final long lockWaitStartNanos = OperationStats.getThreadLockWaitNanos();
         LogFields.Builder logBuilder = LogFields.Builder.aLogFields()
                 .setApiType(LogUtils.ApiType.QUERY)
-                .setUriType(sUriMatcher.match(uri))
+                .setUriType(match)
                 .setCallerIsSyncAdapter(readBooleanQueryParameter(
                         uri, ContactsContract.CALLER_IS_SYNCADAPTER, false))
-                .setStartNanos(SystemClock.elapsedRealtimeNanos())
+                .setStartNanos(startNanos)
                 .setUid(Binder.getCallingUid());
 
         Cursor cursor = null;
@@ -5677,8 +6413,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
             logBuilder.setException(e);
             throw e;
         } finally {
-            LogUtils.log(
-                    logBuilder.setResultCount(cursor == null ? 0 : cursor.getCount()).build());
+            final int resultCount = cursor == null ? 0 : cursor.getCount();
+            LogUtils.log(logBuilder.setResultCount(resultCount).build());
+            mOperationStats.record(OperationType.QUERY, match, startNanos, lockWaitStartNanos,
+                    resultCount, selection, sortOrder);
         }
     }
 
@@ -6034,18 +6772,135 @@ public class ContactsProvider2 extends AbstractContactsProvider
         if (corpUserId < 0) {
             return createEmptyCursor(localUri, projection);
         }
+        Cursor cursor = queryCorpUser(corpUserId, localUri, projection, selection,
+                selectionArgs, sortOrder, cancellationSignal);
+        if (cursor == null) {
+            return createEmptyCursor(localUri, projection);
+        }
+        return cursor;
+    }
+
+    /**
+     * Queries the contacts provider of the given work profile.
+     *
+     * @return the result, or null if the work profile's provider didn't return one
+     */
+    private Cursor queryCorpUser(int corpUserId, Uri localUri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder,
+            CancellationSignal cancellationSignal) {
         // Make sure authority is CP2 not other providers
         validateAuthority(localUri.getAuthority());
         // Add the "user-id @" to the URI, and also pass the caller package name.
         final Uri remoteUri = maybeAddUserId(localUri, corpUserId).buildUpon()
                 .appendQueryParameter(Directory.CALLER_PACKAGE_PARAM_KEY, getCallingPackage())
                 .build();
-        Cursor cursor = getContext().getContentResolver().query(remoteUri, projection, selection,
+        return getContext().getContentResolver().query(remoteUri, projection, selection,
+                selectionArgs, sortOrder, cancellationSignal);
+    }
+
+    /**
+     * Same as {@link #queryCorpContactsProvider}, but phone lookups in the work profile's own
+     * directories are answered from {@link #mWorkProfileLookupCache} when possible.
+     *
+     * <p>A cached result was allowed by the work profile's policy when it was fetched, so the
+     * caller ID policy is checked again here before the cache is used, and lookups it doesn't
+     * allow always go to the work profile.  The cache is only used while we are notified of
+     * changes to the work profile's contacts.
+     */
+    private Cursor queryCorpContactsProviderCached(Uri localUri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder,
+            CancellationSignal cancellationSignal) {
+        final int corpUserId = UserUtils.getCorpUserId(getContext());
+        final String callingPackage = getCallingPackage();
+        if (corpUserId < 0 || !isCachedCorpLookup(localUri)
+                || !isCorpCallerIdAllowed(corpUserId, callingPackage)
+                || !observeCorpContacts(corpUserId)) {
+            return queryCorpContactsProvider(localUri, projection, selection, selectionArgs,
+                    sortOrder, cancellationSignal);
+        }
+
+        final String key = WorkProfileLookupCache.buildKey(callingPackage, corpUserId, localUri,
+                projection, selection, selectionArgs, sortOrder);
+        final Cursor cached = mWorkProfileLookupCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final long generation = mWorkProfileLookupCache.getGeneration();
+        final Cursor cursor = queryCorpUser(corpUserId, localUri, projection, selection,
                 selectionArgs, sortOrder, cancellationSignal);
         if (cursor == null) {
+            // The work profile may not be running; don't remember that as an empty result.
             return createEmptyCursor(localUri, projection);
         }
-        return cursor;
+        return mWorkProfileLookupCache.put(key, cursor, generation);
+    }
+
+    /**
+     * Returns whether a query of the work profile is a phone lookup that can be cached.  Lookups
+     * in remote directories are not; their results don't come from the work profile's database.
+     */
+    private static boolean isCachedCorpLookup(Uri localUri) {
+        if (sUriMatcher.match(localUri) != PHONE_LOOKUP) {
+            return false;
+        }
+        final String directory = getQueryParameter(localUri, ContactsContract.DIRECTORY_PARAM_KEY);
+        return directory == null || !Directory.isRemoteDirectoryId(Long.parseLong(directory));
+    }
+
+    /**
+     * Makes sure {@link #mCorpContactsObserver} is registered for the given work profile.
+     *
+     * @return false if it cannot be, in which case work profile lookups must not be cached
+     */
+    private boolean observeCorpContacts(int corpUserId) {
+        synchronized (mCorpContactsObserver) {
+            if (mObservedCorpUserId == corpUserId) {
+                return true;
+            }
+            stopObservingCorpContacts();
+            // Results cached for the previous work profile, if any, are no longer valid.
+            mWorkProfileLookupCache.invalidateAll();
+            if (!registerCorpContactsObserver(corpUserId, mCorpContactsObserver)) {
+                return false;
+            }
+            mObservedCorpUserId = corpUserId;
+            return true;
+        }
+    }
+
+    /**
+     * Unregisters {@link #mCorpContactsObserver}, if it is registered.
+     */
+    private void stopObservingCorpContacts() {
+        synchronized (mCorpContactsObserver) {
+            if (mObservedCorpUserId >= 0) {
+                getContext().getContentResolver().unregisterContentObserver(mCorpContactsObserver);
+                mObservedCorpUserId = -1;
+            }
+        }
+    }
+
+    /**
+     * Registers an observer of all changes to the contacts of the given work profile.
+     *
+     * @return false if the observer could not be registered
+     */
+    @VisibleForTesting
+    protected boolean registerCorpContactsObserver(int corpUserId, ContentObserver observer) {
+        try {
+            getContext().getContentResolver().registerContentObserver(
+                    ContactsContract.AUTHORITY_URI, true, observer, corpUserId);
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot observe contacts of user " + corpUserId, e);
+            return false;
+        }
+    }
+
+    @VisibleForTesting
+    protected boolean isCorpCallerIdAllowed(int corpUserId, String callingPackage) {
+        return callingPackage != null
+                && mEnterprisePolicyGuard.isCorpCallerIdAllowed(corpUserId, callingPackage);
     }
 
     private Uri getParentProviderUri(Uri uri, @NonNull UserInfo parentUserInfo) {
@@ -6210,6 +7065,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
         String having = null;
         String limit = getLimit(uri);
         boolean snippetDeferred = false;
+        String lazySnippetQuery = null;
+        SnippetArgs lazySnippetArgs = null;
+        SearchSessionQuery searchSession = null;
+        long[] rankedContactIds = null;
 
         // The expression used in bundleLetterCountExtras() to get count.
         String addressBookIndexerCountExpression = null;
@@ -6377,9 +7236,51 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 // a performance boost. Otherwise, we can't defer.
                 snippetDeferred = isSingleWordQuery(filterParam)
                         && deferredSnipRequested && snippetNeeded(projection);
+                if (!snippetDeferred
+                        && readBooleanQueryParameter(uri, LAZY_SNIPPETING, false)
+                        && (directoryId == -1 || directoryId == Directory.DEFAULT)) {
+                    // Otherwise snippet only the rows that the client actually reads.
+                    lazySnippetQuery = filterParam.trim();
+                    lazySnippetArgs = getLazySnippetArgs(uri, projection, lazySnippetQuery);
+                }
+                final ArrayList<String> joinArgs = new ArrayList<>();
                 setTablesAndProjectionMapForContactsWithSnippet(
                         qb, uri, projection, filterParam, directoryId,
-                        snippetDeferred);
+                        snippetDeferred || lazySnippetArgs != null, joinArgs);
+                if (directoryId == -1 || directoryId == Directory.DEFAULT) {
+                    final String filter = filterParam.trim();
+                    searchSession = startSearchSession(uri, match, filter,
+                            getContactsFilterClass(filter), selection, selectionArgs, sortOrder,
+                            Contacts._ID);
+                }
+                if (searchSession != null && searchSession.candidateContactIds != null) {
+                    final ArrayList<String> idArgs = new ArrayList<>();
+                    selection = DbQueryUtils.concatenateClauses(selection,
+                            buildContactIdInClause(Contacts._ID,
+                                    searchSession.candidateContactIds, idArgs));
+                    selectionArgs = DbQueryUtils.concatenateSelectionArgs(selectionArgs,
+                            idArgs.toArray(new String[idArgs.size()]));
+                }
+                if (readBooleanQueryParameter(uri, SORT_BY_RELEVANCE, false)
+                        && limit != null && Integer.parseInt(limit) <= MAX_RANKED_CONTACTS
+                        && (directoryId == -1 || directoryId == Directory.DEFAULT)
+                        && !TextUtils.isEmpty(filterParam.trim())) {
+                    // Rank all matches first, then only query the best ones.
+                    rankedContactIds = rankContacts(db, uri, filterParam.trim(), directoryId,
+                            selection, selectionArgs, sortOrder, Integer.parseInt(limit),
+                            cancellationSignal);
+                    final ArrayList<String> idArgs = new ArrayList<>();
+                    selection = DbQueryUtils.concatenateClauses(selection,
+                            buildContactIdInClause(Contacts._ID, rankedContactIds, idArgs));
+                    selectionArgs = DbQueryUtils.concatenateSelectionArgs(selectionArgs,
+                            idArgs.toArray(new String[idArgs.size()]));
+                    // The result is not all the matches, so it cannot narrow the session.
+                    searchSession = null;
+                    limit = null;
+                }
+                // The join comes before the selection in the statement.
+                selectionArgs = DbQueryUtils.concatenateSelectionArgs(
+                        joinArgs.toArray(new String[joinArgs.size()]), selectionArgs);
                 break;
             }
             case CONTACTS_STREQUENT_FILTER:
@@ -6713,6 +7614,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                             Phone.SEARCH_PHONE_NUMBER_KEY, true);
 
                     final StringBuilder sb = new StringBuilder();
+                    final ArrayList<String> filterArgs = new ArrayList<>();
                     sb.append(" AND (");
 
                     boolean hasCondition = false;
@@ -6729,9 +7631,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
                                 " JOIN " + Tables.RAW_CONTACTS +
                                 " ON (" + Tables.SEARCH_INDEX + "." + SearchIndexColumns.CONTACT_ID
                                         + "=" + RawContactsColumns.CONCRETE_CONTACT_ID + ")" +
-                                " WHERE " + SearchIndexColumns.NAME + " MATCH '");
-                        sb.append(ftsMatchQuery);
-                        sb.append("')");
+                                " WHERE " + SearchIndexColumns.NAME + " MATCH ?)");
+                        filterArgs.add(ftsMatchQuery);
                         hasCondition = true;
                     }
 
@@ -6744,9 +7645,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
                             sb.append(Data._ID +
                                     " IN (SELECT DISTINCT " + PhoneLookupColumns.DATA_ID
                                     + " FROM " + Tables.PHONE_LOOKUP
-                                    + " WHERE " + PhoneLookupColumns.NORMALIZED_NUMBER + " LIKE '");
-                            sb.append(number);
-                            sb.append("%')");
+                                    + " WHERE " + PhoneLookupColumns.NORMALIZED_NUMBER
+                                    + " LIKE ?)");
+                            filterArgs.add(number + "%");
                             hasCondition = true;
                         }
 
@@ -6758,11 +7659,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
                             }
                             sb.append("(");
                             sb.append(mimeTypeIsSipExpression);
-                            sb.append(" AND ((" + Data.DATA1 + " LIKE ");
-                            DatabaseUtils.appendEscapedSQLString(sb, filterParam + '%');
-                            sb.append(") OR (" + Data.DATA1 + " LIKE ");
+                            sb.append(" AND ((" + Data.DATA1 + " LIKE ?");
+                            filterArgs.add(filterParam + '%');
+                            sb.append(") OR (" + Data.DATA1 + " LIKE ?");
                             // Users may want SIP URIs starting from "sip:"
-                            DatabaseUtils.appendEscapedSQLString(sb, "sip:"+ filterParam + '%');
+                            filterArgs.add("sip:" + filterParam + '%');
                             sb.append(")))");
                             hasCondition = true;
                         }
@@ -6774,7 +7675,27 @@ public class ContactsProvider2 extends AbstractContactsProvider
                         sb.append("0");
                     }
                     sb.append(")");
+
+                    if (match == PHONES_FILTER) {
+                        // Which of the name and number conditions are used is part of the
+                        // session shape, as switching one on can widen the result.
+                        final String filterClass =
+                                (TextUtils.isEmpty(ftsMatchQuery) ? "" : "n")
+                                + (searchPhoneNumber && !TextUtils.isEmpty(
+                                        PhoneNumberUtils.normalizeNumber(filterParam))
+                                        ? "p" : "");
+                        searchSession = startSearchSession(uri, match, filterParam,
+                                filterClass, selection, selectionArgs, sortOrder,
+                                Phone.CONTACT_ID);
+                        if (searchSession != null && searchSession.candidateContactIds != null) {
+                            sb.append(" AND ");
+                            sb.append(buildContactIdInClause(RawContacts.CONTACT_ID,
+                                    searchSession.candidateContactIds, filterArgs));
+                        }
+                    }
                     qb.appendWhere(sb);
+                    selectionArgs = DbQueryUtils.concatenateSelectionArgs(
+                            filterArgs.toArray(new String[filterArgs.size()]), selectionArgs);
                 }
                 if (match == CALLABLES_FILTER) {
                     // If the row is for a phone number that has a normalized form, we should use
@@ -7201,7 +8122,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     String numberE164 = PhoneNumberUtils.formatNumberToE164(
                             number, mDbHelper.get().getCurrentCountryIso());
                     String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
-                    mDbHelper.get().buildPhoneLookupAndContactQuery(
+                    final String[] lookupArgs = mDbHelper.get().buildPhoneLookupAndContactQuery(
                             qb, normalizedNumber, numberE164);
                     qb.setProjectionMap(sPhoneLookupProjectionMap);
 
@@ -7221,7 +8142,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     // phone_number_compare_loose.
                     qb.setStrict(true);
                     boolean foundResult = false;
-                    Cursor cursor = doQuery(db, qb, projectionWithNumber, selection, selectionArgs,
+                    Cursor cursor = doQuery(db, qb, projectionWithNumber, selection,
+                            DbQueryUtils.concatenateSelectionArgs(lookupArgs, selectionArgs),
                             sortOrder, groupBy, null, limit, cancellationSignal);
 
                     try {
@@ -7244,11 +8166,13 @@ public class ContactsProvider2 extends AbstractContactsProvider
                         // use the raw number instead of the normalized number because
                         // phone_number_compare_loose in SQLite works only with non-normalized
                         // numbers
-                        mDbHelper.get().buildFallbackPhoneLookupAndContactQuery(qb, number);
+                        final String[] fallbackArgs =
+                                mDbHelper.get().buildFallbackPhoneLookupAndContactQuery(
+                                        qb, number);
 
-                        Cursor fallbackCursor = doQuery(db, qb, projectionWithNumber,
-                                selection, selectionArgs, sortOrder, groupBy, having, limit,
-                                cancellationSignal);
+                        Cursor fallbackCursor = doQuery(db, qb, projectionWithNumber, selection,
+                                DbQueryUtils.concatenateSelectionArgs(fallbackArgs, selectionArgs),
+                                sortOrder, groupBy, having, limit, cancellationSignal);
                         fallbackCursor = PhoneLookupWithStarPrefix.removeNonStarMatchesFromCursor(
                                 number, fallbackCursor);
                         return PhoneLookupWithStarPrefix.removeNoMatchPhoneNumber(number,
@@ -7469,6 +8393,40 @@ public class ContactsProvider2 extends AbstractContactsProvider
             case DELETED_CONTACTS: {
                 qb.setTables(Tables.DELETED_CONTACTS);
                 qb.setProjectionMap(sDeletedContactsProjectionMap);
+                final String afterTimestamp = getQueryParameter(uri,
+                        DeletedContactsTableUtil.AFTER_TIMESTAMP_PARAM_KEY);
+                if (afterTimestamp != null) {
+                    final String afterContactId = getQueryParameter(uri,
+                            DeletedContactsTableUtil.AFTER_CONTACT_ID_PARAM_KEY);
+                    try {
+                        qb.appendWhere(DeletedContactsTableUtil.buildPageSelection(
+                                Long.parseLong(afterTimestamp),
+                                afterContactId != null ? Long.parseLong(afterContactId)
+                                        : Long.MAX_VALUE));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid page of " + uri, e);
+                    }
+                    if (TextUtils.isEmpty(sortOrder)) {
+                        sortOrder = DeletedContactsTableUtil.PAGE_SORT_ORDER;
+                    }
+                }
+                break;
+            }
+
+            case CHANGE_LOG: {
+                qb.setTables(Tables.CHANGE_LOG);
+                qb.setProjectionMap(sChangeLogProjectionMap);
+                final String since = getQueryParameter(uri, ChangeLogTableUtil.SINCE_PARAM_KEY);
+                if (since != null) {
+                    try {
+                        qb.appendWhere(ChangeLogColumns._ID + ">" + Long.parseLong(since));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid sequence number in " + uri, e);
+                    }
+                }
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = ChangeLogColumns._ID;
+                }
                 break;
             }
 
@@ -7488,11 +8446,29 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         qb.setStrict(true);
 
-        // Auto-rewrite SORT_KEY_{PRIMARY, ALTERNATIVE} sort orders.
-        String localizedSortOrder = getLocalizedSortOrder(sortOrder);
+        // Auto-rewrite SORT_KEY_{PRIMARY, ALTERNATIVE} sort orders.  Ranked rows are read in
+        // contact ID order and put in rank order afterwards.
+        String localizedSortOrder = rankedContactIds != null
+                ? Contacts._ID : getLocalizedSortOrder(sortOrder);
         Cursor cursor =
                 doQuery(db, qb, projection, selection, selectionArgs, localizedSortOrder, groupBy,
                         having, limit, cancellationSignal);
+        if (rankedContactIds != null && cursor != null) {
+            final Cursor ranked = reorderByRank(cursor, rankedContactIds);
+            if (ranked == null) {
+                // A ranked contact was deleted in the meantime; use the sort order instead.
+                cursor.close();
+                cursor = doQuery(db, qb, projection, selection, selectionArgs,
+                        getLocalizedSortOrder(sortOrder), groupBy, having, limit,
+                        cancellationSignal);
+            } else {
+                cursor = ranked;
+            }
+        }
+
+        if (searchSession != null && limit == null) {
+            updateSearchSession(searchSession, cursor);
+        }
 
         if (readBooleanQueryParameter(uri, Contacts.EXTRA_ADDRESS_BOOK_INDEX, false)) {
             bundleFastScrollingIndexExtras(cursor, uri, db, qb, selection,
@@ -7502,6 +8478,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
         if (snippetDeferred) {
             cursor = addDeferredSnippetingExtra(cursor);
         }
+        if (lazySnippetArgs != null) {
+            cursor = new LazySnippetCursor(cursor, lazySnippetQuery,
+                    lazySnippetArgs.startMatch.charAt(0), lazySnippetArgs.endMatch.charAt(0),
+                    lazySnippetArgs.ellipsis, lazySnippetArgs.maxTokens);
+        }
 
         return cursor;
     }
@@ -7533,6 +8514,209 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return localizedSortOrder;
     }
 
+    /**
+     * State of a filter query which is part of a type-ahead search session.
+     */
+    private static final class SearchSessionQuery {
+        final String token;
+        final String shape;
+        final String filter;
+        final String contactIdColumn;
+        final long generation;
+        final long[] candidateContactIds;
+
+        SearchSessionQuery(String token, String shape, String filter, String contactIdColumn,
+                long generation, long[] candidateContactIds) {
+            this.token = token;
+            this.shape = shape;
+            this.filter = filter;
+            this.contactIdColumn = contactIdColumn;
+            this.generation = generation;
+            this.candidateContactIds = candidateContactIds;
+        }
+    }
+
+    /**
+     * Returns the search session state of a filter query, or null if the query doesn't belong
+     * to a session or can't use one.
+     *
+     * @param filterClass describes how the filter is matched, or null if the kind of matching
+     *     is not known to only narrow down as the filter grows
+     * @param contactIdColumn the result column holding the contact ID
+     */
+    private SearchSessionQuery startSearchSession(Uri uri, int match, String filter,
+            String filterClass, String selection, String[] selectionArgs, String sortOrder,
+            String contactIdColumn) {
+        final String token = getQueryParameter(uri, SEARCH_SESSION_TOKEN);
+        if (TextUtils.isEmpty(token) || TextUtils.isEmpty(filter) || filterClass == null
+                || inProfileMode()
+                || readBooleanQueryParameter(uri, Contacts.EXTRA_ADDRESS_BOOK_INDEX, false)) {
+            return null;
+        }
+        if (sortOrder != null && sortOrder.toUpperCase(Locale.ROOT).contains("LIMIT")) {
+            // A limit in the sort order would leave a truncated result in the session.
+            return null;
+        }
+        // Everything besides the filter which decides which rows are returned.
+        final String shape = match + "|" + filterClass + "|" + Binder.getCallingUid()
+                + "|" + uri.getEncodedQuery() + "|" + selection
+                + "|" + Arrays.toString(selectionArgs);
+        final long generation = mSearchSessions.getGeneration();
+        return new SearchSessionQuery(token, shape, filter, contactIdColumn, generation,
+                mSearchSessions.getCandidateContactIds(token, shape, filter));
+    }
+
+    /**
+     * Returns how {@link #appendSearchIndexJoin} will match the given trimmed filter, or null
+     * for email addresses, whose matching doesn't always narrow down as the filter grows.
+     */
+    private String getContactsFilterClass(String filter) {
+        if (filter.indexOf('@') != -1) {
+            return null;
+        }
+        if (isPhoneNumber(filter)) {
+            // The international form of the number adds a criterion once it can be formatted.
+            final String numberE164 = PhoneNumberUtils.formatNumberToE164(
+                    PhoneNumberUtils.normalizeNumber(filter),
+                    mDbHelper.get().getCurrentCountryIso());
+            return TextUtils.isEmpty(numberE164) ? "p" : "pe";
+        }
+        return "n";
+    }
+
+    /**
+     * Returns a clause restricting the given column to the contact IDs, whose values are added
+     * to {@code args}.
+     */
+    private static String buildContactIdInClause(String column, long[] contactIds,
+            List<String> args) {
+        final StringBuilder sb = new StringBuilder(column);
+        sb.append(" IN (");
+        for (int i = 0; i < contactIds.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('?');
+            args.add(String.valueOf(contactIds[i]));
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+
+    private interface RankingQuery {
+        String[] COLUMNS = new String[] {
+                Contacts._ID,
+                Contacts.DISPLAY_NAME,
+                Contacts.STARRED,
+                Contacts.PINNED,
+                SearchSnippets.SNIPPET,
+        };
+
+        int _ID = 0;
+        int DISPLAY_NAME = 1;
+        int STARRED = 2;
+        int PINNED = 3;
+        int SNIPPET = 4;
+    }
+
+    /**
+     * Ranks the contacts matching a filter query with a {@link ContactSearchRanker}.
+     *
+     * <p>The query uses deferred snippeting, so that the snippet column holds what matched the
+     * filter without computing any snippets.
+     *
+     * @return the IDs of the most relevant contacts, at most {@code limit} of them, best first
+     */
+    private long[] rankContacts(SQLiteDatabase db, Uri uri, String filter, long directoryId,
+            String selection, String[] selectionArgs, String sortOrder, int limit,
+            CancellationSignal cancellationSignal) {
+        final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        final ArrayList<String> joinArgs = new ArrayList<>();
+        setTablesAndProjectionMapForContactsWithSnippet(qb, uri, RankingQuery.COLUMNS, filter,
+                directoryId, true, joinArgs);
+        qb.setStrict(true);
+
+        final ContactSearchRanker ranker = new ContactSearchRanker(filter, limit);
+        final Cursor cursor = qb.query(db, RankingQuery.COLUMNS, selection,
+                DbQueryUtils.concatenateSelectionArgs(
+                        joinArgs.toArray(new String[joinArgs.size()]), selectionArgs),
+                null, null, getLocalizedSortOrder(sortOrder), null, cancellationSignal);
+        try {
+            while (cursor.moveToNext()) {
+                ranker.add(cursor.getLong(RankingQuery._ID),
+                        cursor.getString(RankingQuery.DISPLAY_NAME),
+                        cursor.getString(RankingQuery.SNIPPET),
+                        cursor.getInt(RankingQuery.STARRED) != 0,
+                        cursor.getInt(RankingQuery.PINNED));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ranker.getRankedContactIds();
+    }
+
+    /**
+     * Orders the rows of a cursor sorted by contact ID like the given ranked contact IDs.
+     *
+     * @return the reordered cursor, or null if the cursor doesn't hold exactly the ranked
+     *     contacts
+     */
+    private Cursor reorderByRank(Cursor cursor, long[] rankedContactIds) {
+        if (cursor.getCount() != rankedContactIds.length) {
+            return null;
+        }
+        final long[] sortedContactIds = rankedContactIds.clone();
+        Arrays.sort(sortedContactIds);
+        final int[] positionMap = new int[rankedContactIds.length];
+        for (int i = 0; i < positionMap.length; i++) {
+            positionMap[i] = Arrays.binarySearch(sortedContactIds, rankedContactIds[i]);
+        }
+        final ReorderingCursorWrapper wrapper = new ReorderingCursorWrapper(cursor, positionMap);
+        wrapper.setExtras(cursor.getExtras());
+        wrapper.setNotificationUri(getContext().getContentResolver(),
+                ContactsContract.AUTHORITY_URI);
+        return wrapper;
+    }
+
+    /**
+     * Remembers the contacts returned by a search session query, if there are few enough.
+     */
+    private void updateSearchSession(SearchSessionQuery session, Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        final int idIndex = cursor.getColumnIndex(session.contactIdColumn);
+        if (idIndex == -1) {
+            return;
+        }
+        // Only read as many rows as a session can remember, rather than counting them all.
+        long[] contactIds = new long[SearchSessionCache.MAX_CANDIDATES];
+        int count = 0;
+        try {
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                if (count == contactIds.length) {
+                    return;
+                }
+                contactIds[count++] = cursor.getLong(idIndex);
+            }
+        } finally {
+            cursor.moveToPosition(-1);
+        }
+
+        // Phone rows can repeat a contact.
+        Arrays.sort(contactIds, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || contactIds[i] != contactIds[unique - 1]) {
+                contactIds[unique++] = contactIds[i];
+            }
+        }
+        contactIds = Arrays.copyOf(contactIds, unique);
+        mSearchSessions.update(session.token, session.shape, session.filter, contactIds,
+                session.generation);
+    }
+
     private Cursor doQuery(final SQLiteDatabase db, SQLiteQueryBuilder qb, String[] projection,
             String selection, String[] selectionArgs, String sortOrder, String groupBy,
             String having, String limit, CancellationSignal cancellationSignal) {
@@ -7683,7 +8867,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         // Projection is changed only when projection is non-null and does not have contact id
         final boolean isContactIdAdded = (projection == null) ? false
                 : (workProjection.length != projection.length);
-        final Cursor managedCursor = queryCorpContactsProvider(localUri, workProjection,
+        final Cursor managedCursor = queryCorpContactsProviderCached(localUri, workProjection,
                 selection, selectionArgs, sortOrder, cancellationSignal);
         int[] columnIdIndices = getContactIdColumnIndices(managedCursor, contactIdColumnNames);
         if (columnIdIndices.length == 0) {
@@ -8123,8 +9307,18 @@ public class ContactsProvider2 extends AbstractContactsProvider
      * key.
      */
     public long lookupContactIdByLookupKey(SQLiteDatabase db, String lookupKey) {
+        final boolean useCache = !inProfileMode();
+        if (useCache) {
+            final long cachedContactId = mLookupKeyCache.get(lookupKey);
+            if (cachedContactId != -1) {
+                return cachedContactId;
+            }
+        }
+        final long generation = mLookupKeyCache.getGeneration();
+
         ContactLookupKey key = new ContactLookupKey();
         ArrayList<LookupKeySegment> segments = key.parse(lookupKey);
+        final ArrayList<Long> matchedRawContactIds = new ArrayList<>();
 
         long contactId = -1;
         if (lookupKeyContainsType(segments, ContactLookupKey.LOOKUP_TYPE_PROFILE)) {
@@ -8133,8 +9327,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
 
         if (lookupKeyContainsType(segments, ContactLookupKey.LOOKUP_TYPE_SOURCE_ID)) {
-            contactId = lookupContactIdBySourceIds(db, segments);
+            contactId = lookupContactIdBySourceIds(db, segments, matchedRawContactIds);
             if (contactId != -1) {
+                if (useCache) {
+                    cacheLookupKey(lookupKey, contactId, segments, matchedRawContactIds,
+                            generation);
+                }
                 return contactId;
             }
         }
@@ -8142,12 +9340,18 @@ public class ContactsProvider2 extends AbstractContactsProvider
         boolean hasRawContactIds =
                 lookupKeyContainsType(segments, ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID);
         if (hasRawContactIds) {
-            contactId = lookupContactIdByRawContactIds(db, segments);
+            contactId = lookupContactIdByRawContactIds(db, segments, matchedRawContactIds);
             if (contactId != -1) {
+                if (useCache) {
+                    cacheLookupKey(lookupKey, contactId, segments, matchedRawContactIds,
+                            generation);
+                }
                 return contactId;
             }
         }
 
+        // Resolutions by display name are not cached: they depend on the names of all contacts.
+
         if (hasRawContactIds
                 || lookupKeyContainsType(segments, ContactLookupKey.LOOKUP_TYPE_DISPLAY_NAME)) {
             contactId = lookupContactIdByDisplayNames(db, segments);
@@ -8156,6 +9360,45 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return contactId;
     }
 
+    /**
+     * Caches a resolved lookup key.  Besides the raw contacts that matched, it depends on every
+     * raw contact and source ID named in the key, since a segment that didn't match can start
+     * matching and change the most referenced contact.
+     */
+    private void cacheLookupKey(String lookupKey, long contactId,
+            ArrayList<LookupKeySegment> segments, ArrayList<Long> matchedRawContactIds,
+            long generation) {
+        final ArraySet<Long> rawContactIdSet = new ArraySet<>(matchedRawContactIds);
+        final ArrayList<String> sourceIds = new ArrayList<>();
+        for (LookupKeySegment segment : segments) {
+            if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_SOURCE_ID) {
+                sourceIds.add(segment.key);
+            } else if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID) {
+                try {
+                    rawContactIdSet.add(Long.parseLong(segment.rawContactId));
+                } catch (NumberFormatException e) {
+                    return; // Can't tell what the segment depends on.
+                }
+            }
+        }
+        final long[] rawContactIds = new long[rawContactIdSet.size()];
+        for (int i = 0; i < rawContactIds.length; i++) {
+            rawContactIds[i] = rawContactIdSet.valueAt(i);
+        }
+        mLookupKeyCache.put(lookupKey, contactId, rawContactIds,
+                sourceIds.toArray(new String[sourceIds.size()]), generation);
+    }
+
+    /**
+     * Drops the cached resolutions of lookup keys that depend on the given raw contact.  Called
+     * when the raw contact is reassigned to another contact.
+     */
+    public void invalidateLookupKeysForRawContact(long rawContactId) {
+        if (!inProfileMode()) {
+            mLookupKeyCache.invalidateRawContact(rawContactId);
+        }
+    }
+
     private long lookupSingleContactId(SQLiteDatabase db) {
         Cursor c = db.query(
                 Tables.CONTACTS, new String[] {Contacts._ID}, null, null, null, null, null, "1");
@@ -8175,31 +9418,37 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 RawContacts.CONTACT_ID,
                 RawContacts.ACCOUNT_TYPE_AND_DATA_SET,
                 RawContacts.ACCOUNT_NAME,
-                RawContacts.SOURCE_ID
+                RawContacts.SOURCE_ID,
+                RawContacts._ID,
         };
 
         int CONTACT_ID = 0;
         int ACCOUNT_TYPE_AND_DATA_SET = 1;
         int ACCOUNT_NAME = 2;
         int SOURCE_ID = 3;
+        int ID = 4;
     }
 
-    private long lookupContactIdBySourceIds(
-            SQLiteDatabase db, ArrayList<LookupKeySegment> segments) {
+    /**
+     * @param matchedRawContactIds receives the IDs of the raw contacts matching a segment
+     */
+    private long lookupContactIdBySourceIds(SQLiteDatabase db,
+            ArrayList<LookupKeySegment> segments, ArrayList<Long> matchedRawContactIds) {
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(RawContacts.SOURCE_ID + " IN (");
+        final ArrayList<String> sourceIds = new ArrayList<>();
         for (LookupKeySegment segment : segments) {
             if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_SOURCE_ID) {
-                DatabaseUtils.appendEscapedSQLString(sb, segment.key);
-                sb.append(",");
+                sourceIds.add(segment.key);
             }
         }
-        sb.setLength(sb.length() - 1);  // Last comma.
-        sb.append(") AND " + RawContacts.CONTACT_ID + " NOT NULL");
+        final ArrayList<String> args = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        sb.append(RawContacts.SOURCE_ID + " IN ");
+        DbQueryUtils.appendInListWithBindArgs(sb, sourceIds, args);
+        sb.append(" AND " + RawContacts.CONTACT_ID + " NOT NULL");
 
         Cursor c = db.query(LookupBySourceIdQuery.TABLE, LookupBySourceIdQuery.COLUMNS,
-                 sb.toString(), null, null, null, null);
+                 sb.toString(), args.toArray(new String[args.size()]), null, null, null);
         try {
             while (c.moveToNext()) {
                 String accountTypeAndDataSet =
@@ -8214,6 +9463,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                             && accountHashCode == segment.accountHashCode
                             && segment.key.equals(sourceId)) {
                         segment.contactId = c.getLong(LookupBySourceIdQuery.CONTACT_ID);
+                        matchedRawContactIds.add(c.getLong(LookupBySourceIdQuery.ID));
                         break;
                     }
                 }
@@ -8241,8 +9491,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
         int ID = 3;
     }
 
+    /**
+     * @param matchedRawContactIds receives the IDs of the raw contacts matching a segment
+     */
     private long lookupContactIdByRawContactIds(SQLiteDatabase db,
-            ArrayList<LookupKeySegment> segments) {
+            ArrayList<LookupKeySegment> segments, ArrayList<Long> matchedRawContactIds) {
         StringBuilder sb = new StringBuilder();
         sb.append(RawContacts._ID + " IN (");
         for (LookupKeySegment segment : segments) {
@@ -8269,6 +9522,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                             && accountHashCode == segment.accountHashCode
                             && segment.rawContactId.equals(rawContactId)) {
                         segment.contactId = c.getLong(LookupByRawContactIdQuery.CONTACT_ID);
+                        matchedRawContactIds.add(c.getLong(LookupByRawContactIdQuery.ID));
                         break;
                     }
                 }
@@ -8420,9 +9674,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
     /**
      * Finds name lookup records matching the supplied filter, picks one arbitrary match per
      * contact and joins that with other contacts tables.
+     *
+     * @param joinArgs receives the arguments for the placeholders in the tables
      */
     private void setTablesAndProjectionMapForContactsWithSnippet(SQLiteQueryBuilder qb, Uri uri,
-            String[] projection, String filter, long directoryId, boolean deferSnippeting) {
+            String[] projection, String filter, long directoryId, boolean deferSnippeting,
+            List<String> joinArgs) {
 
         StringBuilder sb = new StringBuilder();
         sb.append(Views.CONTACTS);
@@ -8434,7 +9691,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         if (TextUtils.isEmpty(filter) || (directoryId != -1 && directoryId != Directory.DEFAULT)) {
             sb.append(" JOIN (SELECT NULL AS " + SearchSnippets.SNIPPET + " WHERE 0)");
         } else {
-            appendSearchIndexJoin(sb, uri, projection, filter, deferSnippeting);
+            appendSearchIndexJoin(sb, uri, projection, filter, deferSnippeting, joinArgs);
         }
         appendContactPresenceJoin(sb, projection, Contacts._ID);
         appendContactStatusUpdateJoin(sb, projection, ContactsColumns.LAST_STATUS_UPDATE_ID);
@@ -8444,9 +9701,28 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private void appendSearchIndexJoin(
             StringBuilder sb, Uri uri, String[] projection, String filter,
-            boolean  deferSnippeting) {
+            boolean  deferSnippeting, List<String> args) {
 
         if (snippetNeeded(projection)) {
+            final SnippetArgs snippetArgs = new SnippetArgs(uri);
+            appendSearchIndexJoin(sb, filter, true, snippetArgs.startMatch,
+                    snippetArgs.endMatch, snippetArgs.ellipsis, snippetArgs.maxTokens,
+                    deferSnippeting, args);
+        } else {
+            appendSearchIndexJoin(sb, filter, false, null, null, null, 0, false, args);
+        }
+    }
+
+    /**
+     * Snippet format requested with {@link SearchSnippets#SNIPPET_ARGS_PARAM_KEY}.
+     */
+    private static class SnippetArgs {
+        final String startMatch;
+        final String endMatch;
+        final String ellipsis;
+        final int maxTokens;
+
+        SnippetArgs(Uri uri) {
             String[] args = null;
             String snippetArgs =
                     getQueryParameter(uri, SearchSnippets.SNIPPET_ARGS_PARAM_KEY);
@@ -8454,25 +9730,52 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 args = snippetArgs.split(",");
             }
 
-            String startMatch = args != null && args.length > 0 ? args[0]
+            startMatch = args != null && args.length > 0 ? args[0]
                     : DEFAULT_SNIPPET_ARG_START_MATCH;
-            String endMatch = args != null && args.length > 1 ? args[1]
+            endMatch = args != null && args.length > 1 ? args[1]
                     : DEFAULT_SNIPPET_ARG_END_MATCH;
-            String ellipsis = args != null && args.length > 2 ? args[2]
+            ellipsis = args != null && args.length > 2 ? args[2]
                     : DEFAULT_SNIPPET_ARG_ELLIPSIS;
-            int maxTokens = args != null && args.length > 3 ? Integer.parseInt(args[3])
+            maxTokens = args != null && args.length > 3 ? Integer.parseInt(args[3])
                     : DEFAULT_SNIPPET_ARG_MAX_TOKENS;
+        }
+    }
 
-            appendSearchIndexJoin(
-                    sb, filter, true, startMatch, endMatch, ellipsis, maxTokens, deferSnippeting);
-        } else {
-            appendSearchIndexJoin(sb, filter, false, null, null, null, 0, false);
+    /**
+     * Returns the format of the snippets of a contact filter query if they can be computed by
+     * a {@link LazySnippetCursor} instead of for every matching row in SQL, or null otherwise.
+     *
+     * <p>Like deferred snippeting, this requires a single-word query.  It is also limited to
+     * filters that are neither email addresses nor phone numbers, whose snippets are built from
+     * the matching address or number rather than the search index content, and to match markers
+     * of a single character, which is all {@link ContactsContract#snippetize} supports.
+     */
+    private SnippetArgs getLazySnippetArgs(Uri uri, String[] projection, String filter) {
+        if (!snippetNeeded(projection)
+                || !ContactsDatabaseHelper.isInProjection(projection, Contacts.DISPLAY_NAME)
+                || !isSingleWordQuery(filter)
+                || filter.indexOf('@') != -1
+                || isPhoneNumber(filter)
+                || TextUtils.isEmpty(NameNormalizer.normalize(filter))) {
+            return null;
         }
+        final SnippetArgs snippetArgs = new SnippetArgs(uri);
+        if (snippetArgs.startMatch.length() != 1 || snippetArgs.endMatch.length() != 1) {
+            return null;
+        }
+        return snippetArgs;
     }
 
+    /**
+     * Appends a join with the contacts matching the filter in the search index.  The filter is
+     * always bound rather than inlined, so that the statement only depends on the kind of filter
+     * and the snippet arguments.
+     *
+     * @param args receives the arguments for the placeholders appended to {@code sb}, in order
+     */
     public void appendSearchIndexJoin(StringBuilder sb, String filter,
             boolean snippetNeeded, String startMatch, String endMatch, String ellipsis,
-            int maxTokens, boolean deferSnippeting) {
+            int maxTokens, boolean deferSnippeting, List<String> args) {
         boolean isEmailAddress = false;
         String emailAddress = null;
         boolean isPhoneNumber = false;
@@ -8506,8 +9809,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 sb.append("(SELECT MIN(" + Email.ADDRESS + ")");
                 sb.append(" FROM " + Tables.DATA_JOIN_RAW_CONTACTS);
                 sb.append(" WHERE  " + Tables.SEARCH_INDEX + "." + SearchIndexColumns.CONTACT_ID);
-                sb.append("=" + RawContacts.CONTACT_ID + " AND " + Email.ADDRESS + " LIKE ");
-                DatabaseUtils.appendEscapedSQLString(sb, filter + "%");
+                sb.append("=" + RawContacts.CONTACT_ID + " AND " + Email.ADDRESS + " LIKE ?");
+                args.add(filter + "%");
                 sb.append(")");
                 if (!deferSnippeting) {
                     sb.append("||");
@@ -8535,13 +9838,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 sb.append("=" + Tables.PHONE_LOOKUP + "." + PhoneLookupColumns.DATA_ID);
                 sb.append(" WHERE  " + Tables.SEARCH_INDEX + "." + SearchIndexColumns.CONTACT_ID);
                 sb.append("=" + RawContacts.CONTACT_ID);
-                sb.append(" AND " + PhoneLookupColumns.NORMALIZED_NUMBER + " LIKE '");
-                sb.append(phoneNumber);
-                sb.append("%'");
+                sb.append(" AND " + PhoneLookupColumns.NORMALIZED_NUMBER + " LIKE ?");
+                args.add(phoneNumber + "%");
                 if (!TextUtils.isEmpty(numberE164)) {
-                    sb.append(" OR " + PhoneLookupColumns.NORMALIZED_NUMBER + " LIKE '");
-                    sb.append(numberE164);
-                    sb.append("%'");
+                    sb.append(" OR " + PhoneLookupColumns.NORMALIZED_NUMBER + " LIKE ?");
+                    args.add(numberE164 + "%");
                 }
                 sb.append(")");
                 if (! deferSnippeting) {
@@ -8567,7 +9868,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
                         sb.append(Tables.NAME_LOOKUP + " AS nl ON (rc." + RawContacts._ID);
                         sb.append("=nl." + NameLookupColumns.RAW_CONTACT_ID);
                         sb.append(") WHERE nl." + NameLookupColumns.NORMALIZED_NAME);
-                        sb.append(" GLOB '" + normalizedFilter + "*' AND ");
+                        sb.append(" GLOB ? AND ");
+                        args.add(normalizedFilter + "*");
                         sb.append("nl." + NameLookupColumns.NAME_TYPE + "=");
                         sb.append(NameLookupType.NAME_COLLATION_KEY + " AND ");
                         sb.append(Tables.SEARCH_INDEX + "." + SearchIndexColumns.CONTACT_ID);
@@ -8585,7 +9887,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         sb.append(" FROM " + Tables.SEARCH_INDEX);
         sb.append(" WHERE ");
-        sb.append(Tables.SEARCH_INDEX + " MATCH '");
+        sb.append(Tables.SEARCH_INDEX + " MATCH ?");
+        final String matchQuery;
         if (isEmailAddress) {
             // we know that the emailAddress contains a @. This phrase search should be
             // scoped against "content:" only, but unfortunately SQLite doesn't support
@@ -8594,9 +9897,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             //  - We can't match against tokens, because phone-numbers can't contain @
             final String sanitizedEmailAddress =
                     emailAddress == null ? "" : sanitizeMatch(emailAddress);
-            sb.append("\"");
-            sb.append(sanitizedEmailAddress);
-            sb.append("*\"");
+            matchQuery = "\"" + sanitizedEmailAddress + "*\"";
         } else if (isPhoneNumber) {
             // normalized version of the phone number (phoneNumber can only have + and digits)
             final String phoneNumberCriteria = " OR tokens:" + phoneNumber + "*";
@@ -8612,15 +9913,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     phoneNumberCriteria + numberE164Criteria;
 
             // search in content
-            sb.append(SearchIndexManager.getFtsMatchQuery(filter,
-                    FtsQueryBuilder.getDigitsQueryBuilder(commonCriteria)));
+            matchQuery = SearchIndexManager.getFtsMatchQuery(filter,
+                    FtsQueryBuilder.getDigitsQueryBuilder(commonCriteria));
         } else {
             // general case: not a phone number, not an email-address
-            sb.append(SearchIndexManager.getFtsMatchQuery(filter,
-                    FtsQueryBuilder.SCOPED_NAME_NORMALIZING));
+            matchQuery = SearchIndexManager.getFtsMatchQuery(filter,
+                    FtsQueryBuilder.SCOPED_NAME_NORMALIZING);
         }
+        args.add(matchQuery);
         // Omit results in "Other Contacts".
-        sb.append("' AND " + SNIPPET_CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY + ")");
+        sb.append(" AND " + SNIPPET_CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY + ")");
         sb.append(" ON (" + Contacts._ID + "=" + SNIPPET_CONTACT_ID + ")");
     }
 
@@ -9009,6 +10311,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     @Override
     public AssetFileDescriptor openAssetFile(Uri uri, String mode) throws FileNotFoundException {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final long lockWaitStartNanos = OperationStats.getThreadLockWaitNanos();
         boolean success = false;
         try {
             if (!mode.equals("r") && !areContactWritesEnabled()) {
@@ -9041,6 +10345,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
             success = true;
             return ret;
         } finally {
+            mOperationStats.record(OperationType.OPEN_ASSET_FILE, sUriMatcher.match(uri),
+                    startNanos, lockWaitStartNanos, 0, null, null);
             if (VERBOSE_LOGGING) {
                 Log.v(TAG, "openAssetFile uri=" + uri + " mode=" + mode + " success=" + success +
                         " CPID=" + Binder.getCallingPid() +
@@ -10336,6 +11642,14 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return mBroadcastReceiver;
     }
 
+    /**
+     * @return the BroadcastReceiver for work profile and device policy changes.
+     */
+    @VisibleForTesting
+    BroadcastReceiver getWorkProfileReceiverForTest() {
+        return mWorkProfileReceiver;
+    }
+
     @Override
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (mContactAggregator != null) {
@@ -10356,6 +11670,19 @@ public class ContactsProvider2 extends AbstractContactsProvider
             mContactsHelper.dump(pw);
         }
 
+        pw.println();
+        mCommitStats.dump(pw, "");
+        mSearchSessions.dump(pw, "");
+        mLookupKeyCache.dump(pw, "");
+        mWorkProfileLookupCache.dump(pw, "");
+        pw.println();
+        mOperationStats.dump(pw, "");
+        if (ArrayUtils.contains(args, OperationStats.DUMP_ARG_RESET)) {
+            mOperationStats.reset();
+            mCommitStats.reset();
+        }
+        pw.println();
+
         // DB queries may be blocked and timed out, so do it at the end.
 
         dump(pw, "Contacts");
@@ -10432,4 +11759,19 @@ public class ContactsProvider2 extends AbstractContactsProvider
     public ProfileProvider getProfileProviderForTest() {
         return mProfileProvider;
     }
+
+    @VisibleForTesting
+    public CommitStats getCommitStatsForTest() {
+        return mCommitStats;
+    }
+
+    @VisibleForTesting
+    SearchSessionCache getSearchSessionsForTest() {
+        return mSearchSessions;
+    }
+
+    @VisibleForTesting
+    LookupKeyCache getLookupKeyCacheForTest() {
+        return mLookupKeyCache;
+    }
 }
@@ -55,4 +55,10 @@ public interface DatabaseModifier {
     void yieldBulkOperation();
 
     void finishBulkOperation();
+
+    /**
+     * Ends a bulk operation started by {@link #startBulkOperation} without committing the
+     * changes made since its last yield point, and drops their pending notifications.
+     */
+    void abortBulkOperation();
 }
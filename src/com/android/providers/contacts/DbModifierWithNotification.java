@@ -74,6 +74,7 @@ public class DbModifierWithNotification implements DatabaseModifier {
     private final VoicemailNotifier mVoicemailNotifier;
 
     private boolean mIsBulkOperation = false;
+    private boolean mHasPendingNotification = false;
 
     private static VoicemailNotifier sVoicemailNotifierForTest;
 
@@ -166,6 +167,8 @@ public class DbModifierWithNotification implements DatabaseModifier {
         mVoicemailNotifier.addIntentActions(Intent.ACTION_PROVIDER_CHANGED);
         if (!mIsBulkOperation) {
             mVoicemailNotifier.sendNotification();
+        } else {
+            mHasPendingNotification = true;
         }
     }
 
@@ -330,7 +333,18 @@ public class DbModifierWithNotification implements DatabaseModifier {
         mDb.setTransactionSuccessful();
         mDb.endTransaction();
         mIsBulkOperation = false;
-        mVoicemailNotifier.sendNotification();
+        if (mHasPendingNotification) {
+            mHasPendingNotification = false;
+            mVoicemailNotifier.sendNotification();
+        }
+    }
+
+    @Override
+    public void abortBulkOperation() {
+        mDb.endTransaction();
+        mIsBulkOperation = false;
+        mHasPendingNotification = false;
+        mVoicemailNotifier.clearNotification();
     }
 
     /**
@@ -19,16 +19,15 @@ package com.android.providers.contacts;
 import android.content.ContentValues;
 import android.content.Context;
 import android.provider.CallLog.Calls;
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 
-import com.android.i18n.phonenumbers.NumberParseException;
-import com.android.i18n.phonenumbers.PhoneNumberUtil;
-import com.android.i18n.phonenumbers.Phonenumber.PhoneNumber;
 import com.android.i18n.phonenumbers.geocoding.PhoneNumberOfflineGeocoder;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.PhoneNumberCache.ParsedNumber;
 
 import com.google.android.collect.Sets;
 
+import java.io.PrintWriter;
 import java.util.Locale;
 import java.util.Set;
 
@@ -39,6 +38,8 @@ import java.util.Set;
  * It checks for legacy unknown numbers and updates number presentation.
  * <p>
  * It uses {@link PhoneNumberOfflineGeocoder} to compute the geocoded location of a phone number.
+ * Parsed numbers and their locations are kept in a {@link PhoneNumberCache}, which is shared by
+ * the call log and the voicemail provider since they use the same instance of this class.
  */
 /*package*/ class DefaultCallLogInsertionHelper implements CallLogInsertionHelper {
     private static DefaultCallLogInsertionHelper sInstance;
@@ -46,8 +47,7 @@ import java.util.Set;
     private static final Set<String> LEGACY_UNKNOWN_NUMBERS = Sets.newHashSet("-1", "-2", "-3");
 
     private final CountryMonitor mCountryMonitor;
-    private PhoneNumberUtil mPhoneNumberUtil;
-    private PhoneNumberOfflineGeocoder mPhoneNumberOfflineGeocoder;
+    private final PhoneNumberCache mPhoneNumberCache = new PhoneNumberCache();
     private final Locale mLocale;
 
     public static synchronized DefaultCallLogInsertionHelper getInstance(Context context) {
@@ -64,14 +64,32 @@ import java.util.Set;
 
     @Override
     public void addComputedValues(ContentValues values) {
+        addComputedValues(values, true);
+    }
+
+    @Override
+    public void addComputedValuesWithoutGeocoding(ContentValues values) {
+        addComputedValues(values, false);
+    }
+
+    private void addComputedValues(ContentValues values, boolean geocode) {
         // Insert the current country code, so we know the country the number belongs to.
         String countryIso = getCurrentCountryIso();
         values.put(Calls.COUNTRY_ISO, countryIso);
-        // Insert the geocoded location, so that we do not need to compute it on the fly.
-        values.put(Calls.GEOCODED_LOCATION,
-                getGeocodedLocationFor(values.getAsString(Calls.NUMBER), countryIso));
 
+        // The number is only parsed once for both the geocoded location and the normalized
+        // number, and repeated numbers not at all.
         final String number = values.getAsString(Calls.NUMBER);
+        final ParsedNumber parsedNumber = mPhoneNumberCache.parse(number, countryIso);
+
+        // Insert the geocoded location, so that we do not need to compute it on the fly.
+        if (geocode) {
+            values.put(Calls.GEOCODED_LOCATION,
+                    mPhoneNumberCache.getGeocodedLocation(parsedNumber, mLocale));
+        } else {
+            values.remove(Calls.GEOCODED_LOCATION);
+        }
+
         if (LEGACY_UNKNOWN_NUMBERS.contains(number)) {
             values.put(Calls.NUMBER_PRESENTATION, Calls.PRESENTATION_UNKNOWN);
             values.put(Calls.NUMBER, "");
@@ -80,7 +98,7 @@ import java.util.Set;
         // Check for a normalized number; if not present attempt to determine one now.
         if (!values.containsKey(Calls.CACHED_NORMALIZED_NUMBER) &&
                 !TextUtils.isEmpty(number)) {
-            String normalizedNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+            String normalizedNumber = parsedNumber.e164Number;
             if (!TextUtils.isEmpty(normalizedNumber)) {
                 values.put(Calls.CACHED_NORMALIZED_NUMBER, normalizedNumber);
             }
@@ -91,36 +109,19 @@ import java.util.Set;
         return mCountryMonitor.getCountryIso();
     }
 
-    private synchronized PhoneNumberUtil getPhoneNumberUtil() {
-        if (mPhoneNumberUtil == null) {
-            mPhoneNumberUtil = PhoneNumberUtil.getInstance();
-        }
-        return mPhoneNumberUtil;
-    }
-
-    private PhoneNumber parsePhoneNumber(String number, String countryIso) {
-        try {
-            return getPhoneNumberUtil().parse(number, countryIso);
-        } catch (NumberParseException e) {
-            return null;
-        }
+    @Override
+    public String getGeocodedLocationFor(String number, String countryIso) {
+        return mPhoneNumberCache.getGeocodedLocation(
+                mPhoneNumberCache.parse(number, countryIso), mLocale);
     }
 
-    private synchronized PhoneNumberOfflineGeocoder getPhoneNumberOfflineGeocoder() {
-        if (mPhoneNumberOfflineGeocoder == null) {
-            mPhoneNumberOfflineGeocoder = PhoneNumberOfflineGeocoder.getInstance();
-        }
-        return mPhoneNumberOfflineGeocoder;
+    @Override
+    public void dump(PrintWriter pw, String prefix) {
+        mPhoneNumberCache.dump(pw, prefix);
     }
 
-    @Override
-    public String getGeocodedLocationFor(String number, String countryIso) {
-        PhoneNumber structuredPhoneNumber = parsePhoneNumber(number, countryIso);
-        if (structuredPhoneNumber != null) {
-            return getPhoneNumberOfflineGeocoder().getDescriptionForNumber(
-                    structuredPhoneNumber, mLocale);
-        } else {
-            return null;
-        }
+    @VisibleForTesting
+    PhoneNumberCache getPhoneNumberCacheForTest() {
+        return mPhoneNumberCache;
     }
 }
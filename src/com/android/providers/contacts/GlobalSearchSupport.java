@@ -225,6 +225,7 @@ public class GlobalSearchSupport {
             String[] projection, String selection, String filter, String limit,
             CancellationSignal cancellationSignal) {
         StringBuilder sb = new StringBuilder();
+        final ArrayList<String> args = new ArrayList<>();
         final boolean haveFilter = !TextUtils.isEmpty(filter);
         sb.append("SELECT "
                         + Contacts._ID + ", "
@@ -242,7 +243,7 @@ public class GlobalSearchSupport {
         if (haveFilter) {
             mContactsProvider.appendSearchIndexJoin(sb, filter, true,
                     String.valueOf(SNIPPET_START_MATCH), String.valueOf(SNIPPET_END_MATCH),
-                    SNIPPET_ELLIPSIS, SNIPPET_MAX_TOKENS, false);
+                    SNIPPET_ELLIPSIS, SNIPPET_MAX_TOKENS, false, args);
         }
         sb.append(" WHERE " + Contacts.LOOKUP_KEY + " IS NOT NULL");
         if (selection != null) {
@@ -251,7 +252,8 @@ public class GlobalSearchSupport {
         if (limit != null) {
             sb.append(" LIMIT " + limit);
         }
-        Cursor c = db.rawQuery(sb.toString(), null, cancellationSignal);
+        Cursor c = db.rawQuery(sb.toString(), args.toArray(new String[args.size()]),
+                cancellationSignal);
         SearchSuggestion suggestion = new SearchSuggestion();
         suggestion.filter = filter;
         try {
@@ -33,10 +33,28 @@ import java.util.Locale;
 public class HanziToPinyin {
     private static final String TAG = "HanziToPinyin";
 
+    /**
+     * Characters are cached in pages of this many entries, so that only the
+     * blocks that actually show up in names (typically CJK unified ideographs
+     * and a few Latin supplements) are ever allocated.
+     */
+    private static final int CHAR_PAGE_SHIFT = 8;
+    private static final int CHAR_PAGE_SIZE = 1 << CHAR_PAGE_SHIFT;
+    private static final int CHAR_PAGE_MASK = CHAR_PAGE_SIZE - 1;
+
     private static HanziToPinyin sInstance;
     private Transliterator mPinyinTransliterator;
     private Transliterator mAsciiTransliterator;
 
+    /**
+     * Char-indexed table of already transliterated characters, so that each
+     * distinct character goes through the ICU transliterator only once.
+     * Entries are immutable and the table is filled lazily; racing writers can
+     * at worst transliterate the same character twice.
+     */
+    private final CharToken[][] mCharTokens =
+            new CharToken[(Character.MAX_VALUE + 1) >> CHAR_PAGE_SHIFT][];
+
     public static class Token {
         /**
          * Separator between target string for each source char
@@ -71,6 +89,21 @@ public class HanziToPinyin {
         public String target;
     }
 
+    /**
+     * Immutable result of transliterating a single character.
+     */
+    private static final class CharToken {
+        final int type;
+        final String source;
+        final String target;
+
+        CharToken(int type, String source, String target) {
+            this.type = type;
+            this.source = source;
+            this.target = target;
+        }
+    }
+
     private HanziToPinyin() {
         try {
             mPinyinTransliterator = Transliterator.getInstance(
@@ -95,31 +128,41 @@ public class HanziToPinyin {
         }
     }
 
-    private void tokenize(char character, Token token) {
-        token.source = Character.toString(character);
+    private CharToken tokenize(char character) {
+        final int pageIndex = character >> CHAR_PAGE_SHIFT;
+        CharToken[] page = mCharTokens[pageIndex];
+        if (page == null) {
+            page = new CharToken[CHAR_PAGE_SIZE];
+            mCharTokens[pageIndex] = page;
+        }
+        final int offset = character & CHAR_PAGE_MASK;
+        CharToken token = page[offset];
+        if (token == null) {
+            token = computeToken(character);
+            page[offset] = token;
+        }
+        return token;
+    }
+
+    private CharToken computeToken(char character) {
+        final String source = Character.toString(character);
 
         // ASCII
         if (character < 128) {
-            token.type = Token.LATIN;
-            token.target = token.source;
-            return;
+            return new CharToken(Token.LATIN, source, source);
         }
 
         // Extended Latin. Transcode these to ASCII equivalents
         if (character < 0x250 || (0x1e00 <= character && character < 0x1eff)) {
-            token.type = Token.LATIN;
-            token.target = mAsciiTransliterator == null ? token.source :
-                mAsciiTransliterator.transliterate(token.source);
-            return;
+            return new CharToken(Token.LATIN, source, mAsciiTransliterator == null ? source :
+                    mAsciiTransliterator.transliterate(source));
         }
 
-        token.type = Token.PINYIN;
-        token.target = mPinyinTransliterator.transliterate(token.source);
-        if (TextUtils.isEmpty(token.target) ||
-            TextUtils.equals(token.source, token.target)) {
-            token.type = Token.UNKNOWN;
-            token.target = token.source;
+        final String target = mPinyinTransliterator.transliterate(source);
+        if (TextUtils.isEmpty(target) || TextUtils.equals(source, target)) {
+            return new CharToken(Token.UNKNOWN, source, source);
         }
+        return new CharToken(Token.PINYIN, source, target);
     }
 
     public String transliterate(final String input) {
@@ -144,7 +187,6 @@ public class HanziToPinyin {
         final int inputLength = input.length();
         final StringBuilder sb = new StringBuilder();
         int tokenType = Token.LATIN;
-        Token token = new Token();
 
         // Go through the input, create a new token when
         // a. Token type changed
@@ -157,13 +199,12 @@ public class HanziToPinyin {
                     addToken(sb, tokens, tokenType);
                 }
             } else {
-                tokenize(character, token);
+                final CharToken token = tokenize(character);
                 if (token.type == Token.PINYIN) {
                     if (sb.length() > 0) {
                         addToken(sb, tokens, tokenType);
                     }
-                    tokens.add(token);
-                    token = new Token();
+                    tokens.add(new Token(token.type, token.source, token.target));
                 } else {
                     if (tokenType != token.type && sb.length() > 0) {
                         addToken(sb, tokens, tokenType);
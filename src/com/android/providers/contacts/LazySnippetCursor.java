@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.SearchSnippets;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Cursor wrapper that computes the {@link SearchSnippets#SNIPPET} column of a contact filter
+ * query only when it is read.
+ *
+ * <p>The wrapped cursor must come from a query with deferred snippeting, where the snippet column
+ * holds the raw search index content.  The snippet of a row is computed from that content and
+ * the row's {@link Contacts#DISPLAY_NAME} with {@link ContactsContract#snippetize}, the same way
+ * clients that request deferred snippeting do it, so it is only correct for single-word queries.
+ * Rows that are never read, for example when the cursor is only counted or a client only looks at
+ * the first few rows, are never snippeted.
+ */
+public class LazySnippetCursor extends CursorWrapper {
+
+    private final int mSnippetColumn;
+    private final int mDisplayNameColumn;
+    private final String mQuery;
+    private final char mStartMatch;
+    private final char mEndMatch;
+    private final String mEllipsis;
+    private final int mMaxTokens;
+
+    // Snippet of the row at mSnippetPosition, if any.
+    private int mSnippetPosition = -1;
+    private String mSnippet;
+
+    private int mSnippetizeCount;
+
+    /**
+     * @param cursor cursor with both the {@link SearchSnippets#SNIPPET} and the
+     *         {@link Contacts#DISPLAY_NAME} columns
+     */
+    public LazySnippetCursor(Cursor cursor, String query, char startMatch, char endMatch,
+            String ellipsis, int maxTokens) {
+        super(cursor);
+        mSnippetColumn = cursor.getColumnIndexOrThrow(SearchSnippets.SNIPPET);
+        mDisplayNameColumn = cursor.getColumnIndexOrThrow(Contacts.DISPLAY_NAME);
+        mQuery = query;
+        mStartMatch = startMatch;
+        mEndMatch = endMatch;
+        mEllipsis = ellipsis;
+        mMaxTokens = maxTokens;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        if (columnIndex == mSnippetColumn) {
+            return getSnippet();
+        }
+        return super.getString(columnIndex);
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        if (columnIndex == mSnippetColumn) {
+            return getSnippet() == null ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+        }
+        return super.getType(columnIndex);
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        if (columnIndex == mSnippetColumn) {
+            return getSnippet() == null;
+        }
+        return super.isNull(columnIndex);
+    }
+
+    private String getSnippet() {
+        final int position = getPosition();
+        if (position != mSnippetPosition) {
+            mSnippet = ContactsContract.snippetize(super.getString(mSnippetColumn),
+                    super.getString(mDisplayNameColumn), mQuery, mStartMatch, mEndMatch,
+                    mEllipsis, mMaxTokens);
+            mSnippetPosition = position;
+            mSnippetizeCount++;
+        }
+        return mSnippet;
+    }
+
+    /**
+     * Returns how many times a snippet was computed.
+     */
+    @VisibleForTesting
+    int getSnippetizeCount() {
+        return mSnippetizeCount;
+    }
+}
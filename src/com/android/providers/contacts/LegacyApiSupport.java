@@ -67,6 +67,7 @@ import com.android.providers.contacts.ContactsDatabaseHelper.StatusUpdatesColumn
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.android.providers.contacts.ContactsDatabaseHelper.Views;
 import com.android.providers.contacts.database.MoreDatabaseUtils;
+import com.android.providers.contacts.util.DbQueryUtils;
 
 import java.util.Locale;
 
@@ -1689,9 +1690,13 @@ public class LegacyApiSupport {
                 applyRawContactsAccount(qb);
                 if (uri.getPathSegments().size() > 2) {
                     String filterParam = uri.getLastPathSegment();
-                    qb.appendWhere(" AND person =");
-                    qb.appendWhere(mDbHelper.buildPhoneLookupAsNestedQuery(filterParam));
+                    final StringBuilder sb = new StringBuilder(" AND person =");
+                    final String[] lookupArgs =
+                            mDbHelper.appendPhoneLookupAsNestedQuery(sb, filterParam);
+                    qb.appendWhere(sb);
                     qb.setDistinct(true);
+                    selectionArgs = DbQueryUtils.concatenateSelectionArgs(
+                            lookupArgs, selectionArgs);
                 }
                 break;
 
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Contact IDs that lookup keys were resolved to.
+ *
+ * <p>Each entry records what the resolution depended on: the raw contacts whose rows matched the
+ * key or which the key names, and the source IDs named in the key.  An entry is dropped when one of those raw contacts is
+ * reassigned to another contact, deleted or changes account, or when any raw contact gets one of
+ * those source IDs, see {@link #invalidateRawContact} and {@link #invalidateSourceId}.
+ *
+ * <p>Invalidations happen in the middle of a transaction, while other threads can still read the
+ * old data until it commits.  Resolutions are therefore only stored if no invalidation happened
+ * since they started (see {@link #getGeneration}), and the invalidations of a transaction are
+ * applied again by {@link #onTransactionCommitted}.
+ *
+ * <p>This class is thread-safe.
+ */
+public class LookupKeyCache {
+
+    public static final int MAX_ENTRIES = 256;
+
+    private static final class Entry {
+        final long contactId;
+        final String[] dependencies;
+
+        Entry(long contactId, String[] dependencies) {
+            this.contactId = contactId;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    // All guarded by mLock.
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_ENTRIES) {
+        @Override
+        protected void entryRemoved(boolean evicted, String lookupKey, Entry oldValue,
+                Entry newValue) {
+            removeDependencies(lookupKey, oldValue);
+        }
+    };
+    private final ArrayMap<String, ArraySet<String>> mLookupKeysByDependency = new ArrayMap<>();
+    private final ArraySet<String> mPendingInvalidations = new ArraySet<>();
+    private long mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+    private long mInvalidatedCount;
+
+    /**
+     * Returns the current generation, which a resolution must pass back to {@link #put}.
+     */
+    public long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Returns the contact ID the lookup key was resolved to, or -1 if it is not cached.
+     */
+    public long get(String lookupKey) {
+        synchronized (mLock) {
+            final Entry entry = mEntries.get(lookupKey);
+            if (entry == null) {
+                mMissCount++;
+                return -1;
+            }
+            mHitCount++;
+            return entry.contactId;
+        }
+    }
+
+    /**
+     * Remembers the contact ID a lookup key was resolved to.
+     *
+     * @param rawContactIds the raw contacts whose rows matched the key or which it names
+     * @param sourceIds the source IDs named in the key
+     * @param generation the value of {@link #getGeneration} when the resolution started
+     */
+    public void put(String lookupKey, long contactId, long[] rawContactIds, String[] sourceIds,
+            long generation) {
+        final String[] dependencies = new String[rawContactIds.length + sourceIds.length];
+        for (int i = 0; i < rawContactIds.length; i++) {
+            dependencies[i] = rawContactDependency(rawContactIds[i]);
+        }
+        for (int i = 0; i < sourceIds.length; i++) {
+            dependencies[rawContactIds.length + i] = sourceIdDependency(sourceIds[i]);
+        }
+
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                return; // Something the resolution may depend on changed under it.
+            }
+            mEntries.put(lookupKey, new Entry(contactId, dependencies));
+            for (String dependency : dependencies) {
+                ArraySet<String> lookupKeys = mLookupKeysByDependency.get(dependency);
+                if (lookupKeys == null) {
+                    lookupKeys = new ArraySet<>();
+                    mLookupKeysByDependency.put(dependency, lookupKeys);
+                }
+                lookupKeys.add(lookupKey);
+            }
+        }
+    }
+
+    /**
+     * Drops the lookup keys resolved with the given raw contact.  Called when its contact ID,
+     * account or source ID changes, or when it is deleted.
+     */
+    public void invalidateRawContact(long rawContactId) {
+        invalidate(rawContactDependency(rawContactId));
+    }
+
+    /**
+     * Drops the lookup keys naming the given source ID.  Called when a raw contact gets it.
+     */
+    public void invalidateSourceId(String sourceId) {
+        invalidate(sourceIdDependency(sourceId));
+    }
+
+    public void invalidateAll() {
+        synchronized (mLock) {
+            mGeneration++;
+            mEntries.evictAll();
+            mPendingInvalidations.clear();
+        }
+    }
+
+    /**
+     * Applies the invalidations since the last commit again, in case a stale resolution was
+     * stored while the transaction was in progress.
+     */
+    public void onTransactionCommitted() {
+        synchronized (mLock) {
+            if (mPendingInvalidations.isEmpty()) {
+                return;
+            }
+            mGeneration++;
+            for (int i = 0; i < mPendingInvalidations.size(); i++) {
+                removeLookupKeys(mPendingInvalidations.valueAt(i));
+            }
+            mPendingInvalidations.clear();
+        }
+    }
+
+    private void invalidate(String dependency) {
+        synchronized (mLock) {
+            mGeneration++;
+            removeLookupKeys(dependency);
+            mPendingInvalidations.add(dependency);
+        }
+    }
+
+    private void removeLookupKeys(String dependency) {
+        final ArraySet<String> lookupKeys = mLookupKeysByDependency.remove(dependency);
+        if (lookupKeys == null) {
+            return;
+        }
+        for (int i = 0; i < lookupKeys.size(); i++) {
+            if (mEntries.remove(lookupKeys.valueAt(i)) != null) {
+                mInvalidatedCount++;
+            }
+        }
+    }
+
+    private void removeDependencies(String lookupKey, Entry entry) {
+        for (String dependency : entry.dependencies) {
+            final ArraySet<String> lookupKeys = mLookupKeysByDependency.get(dependency);
+            if (lookupKeys != null) {
+                lookupKeys.remove(lookupKey);
+                if (lookupKeys.isEmpty()) {
+                    mLookupKeysByDependency.remove(dependency);
+                }
+            }
+        }
+    }
+
+    private static String rawContactDependency(long rawContactId) {
+        return "r" + rawContactId;
+    }
+
+    private static String sourceIdDependency(String sourceId) {
+        return "s" + sourceId;
+    }
+
+    @VisibleForTesting
+    long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        synchronized (mLock) {
+            return mEntries.size();
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix);
+            pw.printf("Lookup key cache: size=%d  hits=%d  misses=%d  invalidated=%d\n",
+                    mEntries.size(), mHitCount, mMissCount, mInvalidatedCount);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.util.LruCache;
+
+import com.android.i18n.phonenumbers.NumberParseException;
+import com.android.i18n.phonenumbers.PhoneNumberUtil;
+import com.android.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
+import com.android.i18n.phonenumbers.Phonenumber.PhoneNumber;
+import com.android.i18n.phonenumbers.geocoding.PhoneNumberOfflineGeocoder;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Phone numbers inserted into the call log, parsed once.
+ *
+ * <p>Restoring or syncing a call log inserts many rows with the same few numbers.  For each
+ * number and country, this remembers the parsed number and its E.164 form, the same as
+ * {@link android.telephony.PhoneNumberUtils#formatNumberToE164} returns, and for each locale its
+ * geocoded location, so that libphonenumber is only run once for them.
+ *
+ * <p>This class is thread-safe.
+ */
+public class PhoneNumberCache {
+
+    public static final int MAX_ENTRIES = 512;
+
+    /**
+     * A number parsed for a country.
+     */
+    public static final class ParsedNumber {
+        /** The parsed number, or null if it cannot be parsed. */
+        public final PhoneNumber phoneNumber;
+
+        /** The number in E.164 format, or null if it is not a valid number. */
+        public final String e164Number;
+
+        // Guarded by the cache's mLock.
+        Locale geocodedLocale;
+        String geocodedLocation;
+
+        ParsedNumber(PhoneNumber phoneNumber, String e164Number) {
+            this.phoneNumber = phoneNumber;
+            this.e164Number = e164Number;
+        }
+    }
+
+    private static final ParsedNumber UNPARSEABLE = new ParsedNumber(null, null);
+
+    private final Object mLock = new Object();
+
+    // All guarded by mLock.
+    private final LruCache<String, ParsedNumber> mEntries = new LruCache<>(MAX_ENTRIES);
+    private PhoneNumberUtil mPhoneNumberUtil;
+    private PhoneNumberOfflineGeocoder mPhoneNumberOfflineGeocoder;
+    private long mHitCount;
+    private long mMissCount;
+    private long mGeocodeHitCount;
+    private long mGeocodeMissCount;
+
+    /**
+     * Returns the given number parsed for the given country.
+     */
+    public ParsedNumber parse(String number, String countryIso) {
+        if (number == null) {
+            return UNPARSEABLE;
+        }
+        final String key = countryIso + '\u0000' + number;
+        synchronized (mLock) {
+            final ParsedNumber cached = mEntries.get(key);
+            if (cached != null) {
+                mHitCount++;
+                return cached;
+            }
+            mMissCount++;
+        }
+
+        // Parsing is done outside of the lock; at worst, a number is parsed twice.
+        final PhoneNumberUtil util = getPhoneNumberUtil();
+        PhoneNumber phoneNumber;
+        try {
+            phoneNumber = util.parse(number, countryIso);
+        } catch (NumberParseException e) {
+            phoneNumber = null;
+        }
+        final String e164Number = phoneNumber != null && util.isValidNumber(phoneNumber)
+                ? util.format(phoneNumber, PhoneNumberFormat.E164) : null;
+        final ParsedNumber parsed = new ParsedNumber(phoneNumber, e164Number);
+        synchronized (mLock) {
+            mEntries.put(key, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the geocoded location of a parsed number in the given locale, or null if it has
+     * none.
+     */
+    public String getGeocodedLocation(ParsedNumber parsed, Locale locale) {
+        if (parsed.phoneNumber == null) {
+            return null;
+        }
+        synchronized (mLock) {
+            if (locale.equals(parsed.geocodedLocale)) {
+                mGeocodeHitCount++;
+                return parsed.geocodedLocation;
+            }
+            mGeocodeMissCount++;
+        }
+        final String location = getPhoneNumberOfflineGeocoder().getDescriptionForNumber(
+                parsed.phoneNumber, locale);
+        synchronized (mLock) {
+            parsed.geocodedLocale = locale;
+            parsed.geocodedLocation = location;
+        }
+        return location;
+    }
+
+    private PhoneNumberUtil getPhoneNumberUtil() {
+        synchronized (mLock) {
+            if (mPhoneNumberUtil == null) {
+                mPhoneNumberUtil = PhoneNumberUtil.getInstance();
+            }
+            return mPhoneNumberUtil;
+        }
+    }
+
+    private PhoneNumberOfflineGeocoder getPhoneNumberOfflineGeocoder() {
+        synchronized (mLock) {
+            if (mPhoneNumberOfflineGeocoder == null) {
+                mPhoneNumberOfflineGeocoder = PhoneNumberOfflineGeocoder.getInstance();
+            }
+            return mPhoneNumberOfflineGeocoder;
+        }
+    }
+
+    @VisibleForTesting
+    long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    @VisibleForTesting
+    long getGeocodeHitCount() {
+        synchronized (mLock) {
+            return mGeocodeHitCount;
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix);
+            pw.printf("Phone number cache: size=%d  hits=%d  misses=%d  geocode hits=%d"
+                    + "  geocode misses=%d\n",
+                    mEntries.size(), mHitCount, mMissCount, mGeocodeHitCount, mGeocodeMissCount);
+        }
+    }
+}
@@ -291,7 +291,12 @@ public class SearchIndexManager {
         }
     }
 
-    public void updateIndexForRawContacts(Set<Long> contactIds, Set<Long> rawContactIds) {
+    /**
+     * Rebuilds the search index rows of the contacts owning the given contacts or raw contacts.
+     *
+     * @return the number of contacts whose search index row was rebuilt
+     */
+    public int updateIndexForRawContacts(Set<Long> contactIds, Set<Long> rawContactIds) {
         if (VERBOSE_LOGGING) {
             Log.v(TAG, "Updating search index for " + contactIds.size() +
                     " contacts / " + rawContactIds.size() + " raw contacts");
@@ -341,6 +346,7 @@ public class SearchIndexManager {
         if (VERBOSE_LOGGING) {
             Log.v(TAG, "Updated search index for " + count + " contacts");
         }
+        return count;
     }
 
     private int buildAndInsertIndex(SQLiteDatabase db, String selection) {
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Candidate contacts of type-ahead search sessions.
+ *
+ * <p>A client typing into a search box can pass the same session token with each filter query.
+ * After a query, the IDs of the contacts it returned are remembered for the session, together with
+ * the filter and the "shape" of the query (URI, selection and anything else that decides which
+ * rows match besides the filter).  When the next query of the session has the same shape and its
+ * filter extends the previous one, it can only return a subset of those contacts, so the
+ * provider restricts it to them.
+ *
+ * <p>Sessions expire after {@link #SESSION_TIMEOUT_MILLIS} of inactivity, and all of them are
+ * dropped by {@link #invalidateAll}, which the provider calls on every change to the database.
+ * A query only stores its result if no invalidation happened since it started, see
+ * {@link #getGeneration}.
+ *
+ * <p>This class is thread-safe.
+ */
+public class SearchSessionCache {
+
+    public static final int MAX_SESSIONS = 8;
+
+    /** Results larger than this are not remembered; the IN list would cost more than it saves. */
+    public static final int MAX_CANDIDATES = 500;
+
+    public static final long SESSION_TIMEOUT_MILLIS = 30 * 1000;
+
+    private static final class Session {
+        final String shape;
+        final String filter;
+        final long[] contactIds;
+        long lastUsedMillis;
+
+        Session(String shape, String filter, long[] contactIds, long lastUsedMillis) {
+            this.shape = shape;
+            this.filter = filter;
+            this.contactIds = contactIds;
+            this.lastUsedMillis = lastUsedMillis;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    // Guarded by mLock.
+    private final LruCache<String, Session> mSessions = new LruCache<>(MAX_SESSIONS);
+    private long mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * Returns the current generation, which a query must pass back to {@link #update}.
+     */
+    public long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Returns the contacts a query of the given session can be restricted to, or null if the
+     * previous query of the session cannot be used to narrow this one.
+     */
+    public long[] getCandidateContactIds(String token, String shape, String filter) {
+        synchronized (mLock) {
+            final Session session = mSessions.get(token);
+            final long now = uptimeMillis();
+            if (session == null
+                    || now - session.lastUsedMillis > SESSION_TIMEOUT_MILLIS
+                    || !session.shape.equals(shape)
+                    || !filter.startsWith(session.filter)) {
+                mMissCount++;
+                return null;
+            }
+            session.lastUsedMillis = now;
+            mHitCount++;
+            return session.contactIds;
+        }
+    }
+
+    /**
+     * Remembers the contacts returned by a query of the given session.
+     *
+     * @param generation the value of {@link #getGeneration} when the query started
+     */
+    public void update(String token, String shape, String filter, long[] contactIds,
+            long generation) {
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                return; // The database changed under the query.
+            }
+            mSessions.put(token, new Session(shape, filter, contactIds, uptimeMillis()));
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (mLock) {
+            mGeneration++;
+            mSessions.evictAll();
+        }
+    }
+
+    @VisibleForTesting
+    long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix);
+            pw.printf("Search sessions: active=%d  hits=%d  misses=%d\n",
+                    mSessions.size(), mHitCount, mMissCount);
+        }
+    }
+
+    @VisibleForTesting
+    protected long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+}
@@ -45,6 +45,9 @@ public class TransactionContext  {
     private ArraySet<Long> mStaleSearchIndexRawContacts;
     private ArraySet<Long> mStaleSearchIndexContacts;
     private ArrayMap<Long, Object> mUpdatedSyncStates;
+    // Map from the id of a deleted contact to the time it was deleted, logged in one go before
+    // the transaction is committed.
+    private ArrayMap<Long, Long> mDeletedContacts;
 
     public TransactionContext(boolean forProfile) {
         mForProfile = forProfile;
@@ -89,6 +92,11 @@ public class TransactionContext  {
         mUpdatedSyncStates.put(rowId, data);
     }
 
+    public void contactDeleted(long contactId, long timestamp) {
+        if (mDeletedContacts == null) mDeletedContacts = new ArrayMap<>();
+        mDeletedContacts.put(contactId, timestamp);
+    }
+
     public void invalidateSearchIndexForRawContact(long rawContactId) {
         if (mStaleSearchIndexRawContacts == null) mStaleSearchIndexRawContacts = new ArraySet<>();
         mStaleSearchIndexRawContacts.add(rawContactId);
@@ -134,6 +142,11 @@ public class TransactionContext  {
         return mUpdatedSyncStates.entrySet();
     }
 
+    public ArrayMap<Long, Long> getDeletedContacts() {
+        if (mDeletedContacts == null) mDeletedContacts = new ArrayMap<>();
+        return mDeletedContacts;
+    }
+
     public Long getAccountIdOrNullForRawContact(long rawContactId) {
         if (mInsertedRawContactsAccounts == null) mInsertedRawContactsAccounts = new ArrayMap<>();
         return mInsertedRawContactsAccounts.get(rawContactId);
@@ -158,8 +171,13 @@ public class TransactionContext  {
         mStaleSearchIndexContacts = null;
     }
 
+    public void clearDeletedContacts() {
+        mDeletedContacts = null;
+    }
+
     public void clearAll() {
         clearExceptSearchIndexUpdates();
         clearSearchIndexUpdates();
+        clearDeletedContacts();
     }
 }
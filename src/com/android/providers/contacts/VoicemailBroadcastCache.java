@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What {@link VoicemailNotifier} needs to know to send voicemail broadcasts: the receivers of
+ * each intent and the voicemail access of their packages.
+ *
+ * <p>Syncing visual voicemail inserts many messages in a row, and each of them is broadcast to
+ * the same receivers, so both are remembered here for the whole process instead of being asked
+ * from the package manager every time.
+ *
+ * <p>Receivers are resolved per intent action and URI, with the ID of item URIs left out; they
+ * are assumed not to filter on it.  Everything is dropped by {@link #onPackageChanged} when a
+ * package is added, removed or changed.  Permissions can also be granted or revoked, and carrier
+ * privileges change with the SIM, without a package change, so access decisions expire after
+ * {@link #ACCESS_TIMEOUT_MILLIS}.  Receivers expire after {@link #RECEIVERS_TIMEOUT_MILLIS}, as
+ * more of them become visible when the user is unlocked.
+ *
+ * <p>This class is thread-safe.
+ */
+public class VoicemailBroadcastCache {
+
+    public static final int MAX_INTENTS = 16;
+    public static final int MAX_PACKAGES = 32;
+
+    public static final long RECEIVERS_TIMEOUT_MILLIS = 60 * 1000;
+    public static final long ACCESS_TIMEOUT_MILLIS = 10 * 1000;
+
+    private static final class Receivers {
+        final List<ComponentName> components;
+        final long resolvedMillis;
+
+        Receivers(List<ComponentName> components, long resolvedMillis) {
+            this.components = components;
+            this.resolvedMillis = resolvedMillis;
+        }
+    }
+
+    private static final class Access {
+        final boolean hasAccess;
+        final long checkedMillis;
+
+        Access(boolean hasAccess, long checkedMillis) {
+            this.hasAccess = hasAccess;
+            this.checkedMillis = checkedMillis;
+        }
+    }
+
+    private static VoicemailBroadcastCache sInstance;
+
+    private final Object mLock = new Object();
+
+    // All guarded by mLock.
+    private final LruCache<String, Receivers> mReceivers = new LruCache<>(MAX_INTENTS);
+    private final LruCache<String, Access> mReadAccess = new LruCache<>(MAX_PACKAGES);
+    private final LruCache<String, Access> mOwnAccess = new LruCache<>(MAX_PACKAGES);
+    private long mGeneration;
+    private long mReceiversHitCount;
+    private long mAccessHitCount;
+
+    public static synchronized VoicemailBroadcastCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new VoicemailBroadcastCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the components that can possibly receive the specified intent.
+     */
+    public List<ComponentName> getReceiverComponents(Context context, String intentAction,
+            Uri uri) {
+        final String key = getReceiversKey(intentAction, uri);
+        final long generation;
+        synchronized (mLock) {
+            final Receivers cached = mReceivers.get(key);
+            if (cached != null
+                    && uptimeMillis() - cached.resolvedMillis <= RECEIVERS_TIMEOUT_MILLIS) {
+                mReceiversHitCount++;
+                return cached.components;
+            }
+            generation = mGeneration;
+        }
+
+        final Intent intent = new Intent(intentAction, uri);
+        final List<ComponentName> components = new ArrayList<>();
+        // For broadcast receivers ResolveInfo.activityInfo is the one that is populated.
+        for (ResolveInfo resolveInfo :
+                context.getPackageManager().queryBroadcastReceivers(intent, 0)) {
+            ActivityInfo activityInfo = resolveInfo.activityInfo;
+            components.add(new ComponentName(activityInfo.packageName, activityInfo.name));
+        }
+        final Receivers receivers = new Receivers(Collections.unmodifiableList(components),
+                uptimeMillis());
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mReceivers.put(key, receivers);
+            }
+        }
+        return receivers.components;
+    }
+
+    /**
+     * Same as {@link VoicemailPermissions#packageHasReadAccess}.
+     */
+    public boolean packageHasReadAccess(VoicemailPermissions permissions, String packageName) {
+        final long generation;
+        synchronized (mLock) {
+            final Access cached = getAccess(mReadAccess, packageName);
+            if (cached != null) {
+                return cached.hasAccess;
+            }
+            generation = mGeneration;
+        }
+        final boolean hasAccess = permissions.packageHasReadAccess(packageName);
+        putAccess(mReadAccess, packageName, hasAccess, generation);
+        return hasAccess;
+    }
+
+    /**
+     * Same as {@link VoicemailPermissions#packageHasOwnVoicemailAccess}.
+     */
+    public boolean packageHasOwnVoicemailAccess(VoicemailPermissions permissions,
+            String packageName) {
+        final long generation;
+        synchronized (mLock) {
+            final Access cached = getAccess(mOwnAccess, packageName);
+            if (cached != null) {
+                return cached.hasAccess;
+            }
+            generation = mGeneration;
+        }
+        final boolean hasAccess = permissions.packageHasOwnVoicemailAccess(packageName);
+        putAccess(mOwnAccess, packageName, hasAccess, generation);
+        return hasAccess;
+    }
+
+    /**
+     * Called when a package is added, removed or changed, which may change the receivers of any
+     * intent and the permissions of the package.
+     */
+    public void onPackageChanged(String packageName) {
+        synchronized (mLock) {
+            mGeneration++;
+            mReceivers.evictAll();
+            mReadAccess.remove(packageName);
+            mOwnAccess.remove(packageName);
+        }
+    }
+
+    private Access getAccess(LruCache<String, Access> cache, String packageName) {
+        final Access cached = cache.get(packageName);
+        if (cached == null || uptimeMillis() - cached.checkedMillis > ACCESS_TIMEOUT_MILLIS) {
+            return null;
+        }
+        mAccessHitCount++;
+        return cached;
+    }
+
+    private void putAccess(LruCache<String, Access> cache, String packageName, boolean hasAccess,
+            long generation) {
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                cache.put(packageName, new Access(hasAccess, uptimeMillis()));
+            }
+        }
+    }
+
+    /**
+     * Returns the key of the receivers of an intent, which is the same for all items of a
+     * directory.
+     */
+    @VisibleForTesting
+    static String getReceiversKey(String intentAction, Uri uri) {
+        final String lastPathSegment = uri.getLastPathSegment();
+        if (lastPathSegment != null && TextUtils.isDigitsOnly(lastPathSegment)) {
+            final String path = uri.getPath();
+            uri = uri.buildUpon()
+                    .path(path.substring(0, path.length() - lastPathSegment.length()))
+                    .appendPath("#")
+                    .build();
+        }
+        return intentAction + '\u0000' + uri.buildUpon().clearQuery().fragment(null).build();
+    }
+
+    @VisibleForTesting
+    long getReceiversHitCount() {
+        synchronized (mLock) {
+            return mReceiversHitCount;
+        }
+    }
+
+    @VisibleForTesting
+    long getAccessHitCount() {
+        synchronized (mLock) {
+            return mAccessHitCount;
+        }
+    }
+
+    @VisibleForTesting
+    protected long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+}
@@ -67,11 +67,12 @@ public class VoicemailContentProvider extends ContentProvider
     public static final boolean VERBOSE_LOGGING = Log.isLoggable(TAG, Log.VERBOSE);
 
     private static final int BACKGROUND_TASK_SCAN_STALE_PACKAGES = 0;
+    private static final int BACKGROUND_TASK_DELETE_VOICEMAIL_FILES = 1;
 
     private ContactsTaskScheduler mTaskScheduler;
 
     private VoicemailPermissions mVoicemailPermissions;
-    private VoicemailTable.Delegate mVoicemailContentTable;
+    private VoicemailContentTable mVoicemailContentTable;
     private VoicemailTable.Delegate mVoicemailStatusTable;
 
     @Override
@@ -110,6 +111,8 @@ public class VoicemailContentProvider extends ContentProvider
         };
 
         scheduleScanStalePackages();
+        // Delete the files that were left over if the process died before it could.
+        scheduleDeleteVoicemailFiles();
 
         ContactsPackageMonitor.start(getContext());
 
@@ -144,6 +147,12 @@ public class VoicemailContentProvider extends ContentProvider
         scheduleTask(BACKGROUND_TASK_SCAN_STALE_PACKAGES, null);
     }
 
+    @Override
+    // VoicemailTable.DelegateHelper interface.
+    public void scheduleDeleteVoicemailFiles() {
+        scheduleTask(BACKGROUND_TASK_DELETE_VOICEMAIL_FILES, null);
+    }
+
     @VisibleForTesting
     void scheduleTask(int taskId, Object arg) {
         mTaskScheduler.scheduleTask(taskId, arg);
@@ -526,6 +535,9 @@ public class VoicemailContentProvider extends ContentProvider
             case BACKGROUND_TASK_SCAN_STALE_PACKAGES:
                 removeStalePackages();
                 break;
+            case BACKGROUND_TASK_DELETE_VOICEMAIL_FILES:
+                mVoicemailContentTable.deleteVoicemailFiles();
+                break;
         }
     }
 
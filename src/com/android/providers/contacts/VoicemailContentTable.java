@@ -26,8 +26,10 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.provider.BaseColumns;
 import android.provider.CallLog.Calls;
 import android.provider.OpenableColumns;
 import android.provider.VoicemailContract.Voicemails;
@@ -35,6 +37,7 @@ import android.util.ArraySet;
 import android.util.Log;
 
 import com.android.common.content.ProjectionMap;
+import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
 import com.android.providers.contacts.VoicemailContentProvider.UriData;
 import com.android.providers.contacts.util.CloseUtils;
 
@@ -143,30 +146,82 @@ public class VoicemailContentTable implements VoicemailTable.Delegate {
 
     @Override
     public Uri insert(UriData uriData, ContentValues values) {
+        ContentValues copiedValues = prepareInsert(uriData, values);
         DatabaseModifier modifier = createDatabaseModifier(mDbHelper.getWritableDatabase());
-        Uri uri = insertRow(modifier, uriData, values);
-        return uri;
+        // The ID of the row is allocated in the same transaction as it is inserted, and the
+        // notifications are sent once it is committed.
+        modifier.startBulkOperation();
+        boolean successful = false;
+        try {
+            Uri uri = insertRow(modifier, uriData, copiedValues);
+            successful = true;
+            return uri;
+        } finally {
+            if (successful) {
+                modifier.finishBulkOperation();
+            } else {
+                modifier.abortBulkOperation();
+                deleteUncommittedFiles(new ContentValues[] {copiedValues});
+            }
+        }
     }
 
     @Override
     public int bulkInsert(UriData uriData, ContentValues[] values) {
+        ContentValues[] copiedValues = new ContentValues[values.length];
+        for (int i = 0; i < values.length; i++) {
+            copiedValues[i] = prepareInsert(uriData, values[i]);
+        }
         DatabaseModifier modifier = createDatabaseModifier(mDbHelper.getWritableDatabase());
         modifier.startBulkOperation();
         int count = 0;
-        for (ContentValues value : values) {
-            Uri uri = insertRow(modifier, uriData, value);
-            if (uri != null) {
-                count++;
+        boolean successful = false;
+        try {
+            for (ContentValues value : copiedValues) {
+                Uri uri = insertRow(modifier, uriData, value);
+                if (uri != null) {
+                    count++;
+                }
+                if((count % BULK_INSERTS_PER_YIELD_POINT) == 0){
+                    modifier.yieldBulkOperation();
+                }
             }
-            if((count % BULK_INSERTS_PER_YIELD_POINT) == 0){
-                modifier.yieldBulkOperation();
+            successful = true;
+        } finally {
+            if (successful) {
+                modifier.finishBulkOperation();
+            } else {
+                modifier.abortBulkOperation();
+                deleteUncommittedFiles(copiedValues);
             }
         }
-        modifier.finishBulkOperation();
         return count;
     }
 
-    private Uri insertRow(DatabaseModifier modifier, UriData uriData, ContentValues values) {
+    /**
+     * Deletes the files created for rows of a failed insert that were rolled back.  Rows
+     * committed at an earlier yield point keep their files.
+     */
+    private void deleteUncommittedFiles(ContentValues[] copiedValues) {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        for (ContentValues values : copiedValues) {
+            String filename = values.getAsString(Voicemails._DATA);
+            if (filename == null) {
+                // The insert failed before this row was reached.
+                continue;
+            }
+            if (DatabaseUtils.queryNumEntries(db, mTableName, Voicemails._DATA + "=?",
+                    new String[] {filename}) == 0) {
+                new File(filename).delete();
+            }
+        }
+    }
+
+    /**
+     * Checks the values of a new row and returns a copy of them with the computed fields added.
+     * This is done before the row's transaction is started.
+     */
+    private ContentValues prepareInsert(UriData uriData, ContentValues values) {
         checkForSupportedColumns(mVoicemailProjectionMap, values);
         ContentValues copiedValues = new ContentValues(values);
         checkInsertSupported(uriData);
@@ -175,10 +230,6 @@ public class VoicemailContentTable implements VoicemailTable.Delegate {
         // Add the computed fields to the copied values.
         mCallLogInsertionHelper.addComputedValues(copiedValues);
 
-        // "_data" column is used by base ContentProvider's openFileHelper() to determine filename
-        // when Input/Output stream is requested to be opened.
-        copiedValues.put(Voicemails._DATA, generateDataFile());
-
         // call type is always voicemail.
         copiedValues.put(Calls.TYPE, Calls.VOICEMAIL_TYPE);
         // A voicemail is marked as new unless it is marked as read or explicitly overridden.
@@ -187,13 +238,26 @@ public class VoicemailContentTable implements VoicemailTable.Delegate {
         if (!values.containsKey(Calls.NEW)) {
             copiedValues.put(Calls.NEW, !isRead);
         }
+        return copiedValues;
+    }
 
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        long rowId = modifier.insert(mTableName, null, copiedValues);
-        if (rowId > 0) {
-            Uri newUri = ContentUris.withAppendedId(uriData.getUri(), rowId);
-            // Populate the 'voicemail_uri' field to be used by the call_log provider.
-            updateVoicemailUri(db, newUri);
+    /**
+     * Inserts a row with values returned by {@link #prepareInsert}.  Must be called in a
+     * transaction.
+     */
+    private Uri insertRow(DatabaseModifier modifier, UriData uriData,
+            ContentValues copiedValues) {
+        // The ID of the new row is known before it is inserted, so that its file and its
+        // 'voicemail_uri' field, which is used by the call_log provider, are written with it.
+        long rowId = getNextRowId(mDbHelper.getWritableDatabase());
+        Uri newUri = ContentUris.withAppendedId(uriData.getUri(), rowId);
+        copiedValues.put(Voicemails._ID, rowId);
+        // "_data" column is used by base ContentProvider's openFileHelper() to determine filename
+        // when Input/Output stream is requested to be opened.
+        copiedValues.put(Voicemails._DATA, createDataFile(rowId));
+        copiedValues.put(Calls.VOICEMAIL_URI, newUri.toString());
+
+        if (modifier.insert(mTableName, null, copiedValues) > 0) {
             return newUri;
         }
         return null;
@@ -207,25 +271,30 @@ public class VoicemailContentTable implements VoicemailTable.Delegate {
         }
     }
 
-    /** Generates a random file for storing audio data. */
-    private String generateDataFile() {
+    /**
+     * Returns the ID that the next row inserted into the table gets.  The table is
+     * AUTOINCREMENT, so the IDs of deleted rows are not reused.
+     */
+    private long getNextRowId(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT MAX("
+                + "IFNULL((SELECT seq FROM sqlite_sequence WHERE name=?), 0), "
+                + "IFNULL((SELECT MAX(" + Voicemails._ID + ") FROM " + mTableName + "), 0)"
+                + ") + 1", new String[] {mTableName});
+    }
+
+    /** Creates the file for storing the audio data of the voicemail with the given ID. */
+    private String createDataFile(long rowId) {
         try {
             File dataDirectory = mContext.getDir(DATA_DIRECTORY, Context.MODE_PRIVATE);
-            File voicemailFile = File.createTempFile("voicemail", "", dataDirectory);
+            File voicemailFile = new File(dataDirectory, "voicemail-" + rowId);
+            // The file already exists if an earlier insert of the same ID was rolled back.
+            voicemailFile.createNewFile();
             return voicemailFile.getAbsolutePath();
         } catch (IOException e) {
-            // If we are unable to create a temporary file, something went horribly wrong.
-            throw new RuntimeException("unable to create temp file", e);
+            // If we are unable to create the file, something went horribly wrong.
+            throw new RuntimeException("unable to create data file", e);
         }
     }
-    private void updateVoicemailUri(SQLiteDatabase db, Uri newUri) {
-        ContentValues values = new ContentValues();
-        values.put(Calls.VOICEMAIL_URI, newUri.toString());
-        // Directly update the db because we cannot update voicemail_uri through external
-        // update() due to projectionMap check. This also avoids unnecessary permission
-        // checks that are already done as part of insert request.
-        db.update(mTableName, values, UriData.createUriData(newUri).getWhereClause(), null);
-    }
 
     @Override
     public int delete(UriData uriData, String selection, String[] selectionArgs) {
@@ -233,9 +302,48 @@ public class VoicemailContentTable implements VoicemailTable.Delegate {
         String combinedClause = concatenateClauses(selection, uriData.getWhereClause(),
                 getCallTypeClause());
 
-        // Delete all the files associated with this query.  Once we've deleted the rows, there will
-        // be no way left to get hold of the files.
+        // The files are recorded in the same transaction as their rows are deleted, so that
+        // the files are only deleted once the rows are gone, and no file is forgotten if the
+        // rows are not deleted.
+        final DatabaseModifier modifier = createDatabaseModifier(db);
+        final boolean hasFiles;
+        final int count;
+        modifier.startBulkOperation();
+        boolean successful = false;
+        try {
+            // Record all the files associated with this query.  Once we've deleted the rows,
+            // there will be no way left to get hold of the files.
+            hasFiles = addDeletedFiles(db, uriData, selection, selectionArgs);
+
+            // Now delete the rows themselves.
+            count = modifier.delete(mTableName, combinedClause, selectionArgs);
+            successful = true;
+        } finally {
+            if (successful) {
+                modifier.finishBulkOperation();
+            } else {
+                modifier.abortBulkOperation();
+            }
+        }
+
+        // The files are deleted in the background.
+        if (hasFiles) {
+            mDelegateHelper.scheduleDeleteVoicemailFiles();
+        }
+        return count;
+    }
+
+    /**
+     * Adds the files of the voicemails matching a query to the files to delete.  Must be called
+     * in the transaction that deletes the voicemails.
+     *
+     * @return true if any file was added
+     */
+    private boolean addDeletedFiles(SQLiteDatabase db, UriData uriData, String selection,
+            String[] selectionArgs) {
+        boolean added = false;
         Cursor cursor = null;
+        SQLiteStatement insert = null;
         try {
             cursor = query(uriData, FILENAME_ONLY_PROJECTION, selection, selectionArgs, null);
             while (cursor.moveToNext()) {
@@ -244,21 +352,70 @@ public class VoicemailContentTable implements VoicemailTable.Delegate {
                     Log.w(TAG, "No filename for uri " + uriData.getUri() + ", cannot delete file");
                     continue;
                 }
-                File file = new File(filename);
+                if (insert == null) {
+                    insert = db.compileStatement("INSERT INTO " + Tables.DELETED_VOICEMAIL_FILES
+                            + " (" + Voicemails._DATA + ") VALUES (?)");
+                }
+                insert.bindString(1, filename);
+                insert.executeInsert();
+                added = true;
+            }
+        } finally {
+            CloseUtils.closeQuietly(cursor);
+            if (insert != null) {
+                insert.close();
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Deletes the files recorded by {@link #delete}.
+     *
+     * <p>A file is recorded in the transaction that deletes its voicemail, so a recorded file
+     * is no longer in use unless a voicemail that isn't marked as deleted still refers to it,
+     * in which case it is kept.  Recorded files are forgotten once they are checked, and
+     * recorded again if their voicemail is deleted later.
+     */
+    public void deleteVoicemailFiles() {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long lastId = -1;
+        int deletedCount = 0;
+        final Cursor cursor = db.rawQuery("SELECT f." + BaseColumns._ID + ", f." + Voicemails._DATA
+                + ", MAX(c." + Voicemails._ID + ")"
+                + " FROM " + Tables.DELETED_VOICEMAIL_FILES + " f"
+                + " LEFT JOIN " + mTableName + " c ON c." + Voicemails._DATA + "=f."
+                + Voicemails._DATA + " AND c." + Voicemails.DELETED + "=0"
+                + " GROUP BY f." + BaseColumns._ID, null);
+        try {
+            while (cursor.moveToNext()) {
+                lastId = Math.max(lastId, cursor.getLong(0));
+                if (!cursor.isNull(2)) {
+                    // Still in use.
+                    continue;
+                }
+                File file = new File(cursor.getString(1));
                 if (file.exists()) {
                     boolean success = file.delete();
                     if (!success) {
                         Log.e(TAG, "Failed to delete file: " + file.getAbsolutePath());
+                    } else {
+                        deletedCount++;
                     }
                 }
             }
         } finally {
-            CloseUtils.closeQuietly(cursor);
+            cursor.close();
         }
 
-        // Now delete the rows themselves.
-        return createDatabaseModifier(db).delete(mTableName, combinedClause,
-                selectionArgs);
+        // Files recorded while this was running have higher IDs, and are checked next time.
+        if (lastId >= 0) {
+            db.delete(Tables.DELETED_VOICEMAIL_FILES, BaseColumns._ID + "<=?",
+                    new String[] {String.valueOf(lastId)});
+        }
+        if (VoicemailContentProvider.VERBOSE_LOGGING) {
+            Log.v(TAG, "deleteVoicemailFiles: deleted " + deletedCount + " files");
+        }
     }
 
     @Override
@@ -4,8 +4,6 @@ import android.app.BroadcastOptions;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ActivityInfo;
-import android.content.pm.ResolveInfo;
 import android.net.Uri;
 import android.os.Binder;
 import android.provider.VoicemailContract;
@@ -14,7 +12,6 @@ import android.util.Log;
 
 import com.google.android.collect.Lists;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
@@ -38,6 +35,7 @@ public class VoicemailNotifier {
     private final Uri mBaseUri;
 
     private final VoicemailPermissions mVoicemailPermissions;
+    private final VoicemailBroadcastCache mBroadcastCache;
 
     private final Set<String> mIntentActions = new ArraySet<>();
     private final Set<String> mModifiedPackages = new ArraySet<>();
@@ -47,6 +45,7 @@ public class VoicemailNotifier {
         mContext = context;
         mBaseUri = baseUri;
         mVoicemailPermissions = new VoicemailPermissions(mContext);
+        mBroadcastCache = VoicemailBroadcastCache.getInstance();
     }
 
     public void addIntentActions(String action) {
@@ -69,20 +68,17 @@ public class VoicemailNotifier {
         for (String intentAction : mIntentActions) {
             // self_change extra should be included only for provider_changed events.
             boolean includeSelfChangeExtra = intentAction.equals(Intent.ACTION_PROVIDER_CHANGED);
-            Log.i(TAG, "receivers for " + intentAction + " :" + getBroadcastReceiverComponents(
-                    intentAction, uri));
-            for (ComponentName component :
-                    getBroadcastReceiverComponents(intentAction, uri)) {
-                boolean hasFullReadAccess =
-                        mVoicemailPermissions.packageHasReadAccess(component.getPackageName());
-                boolean hasOwnAccess =
-                        mVoicemailPermissions.packageHasOwnVoicemailAccess(
-                                component.getPackageName());
+            final List<ComponentName> receiverComponents =
+                    mBroadcastCache.getReceiverComponents(mContext, intentAction, uri);
+            Log.i(TAG, "receivers for " + intentAction + " :" + receiverComponents);
+            for (ComponentName component : receiverComponents) {
+                final String packageName = component.getPackageName();
                 // If we don't have full access, ignore the broadcast if the package isn't affected
                 // by the change or doesn't have access to its own messages.
-                if (!hasFullReadAccess
-                        && (!mModifiedPackages.contains(component.getPackageName())
-                                || !hasOwnAccess)) {
+                if (!mBroadcastCache.packageHasReadAccess(mVoicemailPermissions, packageName)
+                        && (!mModifiedPackages.contains(packageName)
+                                || !mBroadcastCache.packageHasOwnVoicemailAccess(
+                                        mVoicemailPermissions, packageName))) {
                     continue;
                 }
 
@@ -111,6 +107,11 @@ public class VoicemailNotifier {
                                 null));
             }
         }
+        clearNotification();
+    }
+
+    /** Drops the changes added since the last notification without sending them. */
+    public void clearNotification() {
         mIntentActions.clear();
         mModifiedPackages.clear();
         mUris.clear();
@@ -127,19 +128,4 @@ public class VoicemailNotifier {
         }
         return Lists.newArrayList(mContext.getPackageManager().getPackagesForUid(caller));
     }
-
-    /**
-     * Determines the components that can possibly receive the specified intent.
-     */
-    private List<ComponentName> getBroadcastReceiverComponents(String intentAction, Uri uri) {
-        Intent intent = new Intent(intentAction, uri);
-        List<ComponentName> receiverComponents = new ArrayList<ComponentName>();
-        // For broadcast receivers ResolveInfo.activityInfo is the one that is populated.
-        for (ResolveInfo resolveInfo :
-                mContext.getPackageManager().queryBroadcastReceivers(intent, 0)) {
-            ActivityInfo activityInfo = resolveInfo.activityInfo;
-            receiverComponents.add(new ComponentName(activityInfo.packageName, activityInfo.name));
-        }
-        return receiverComponents;
-    }
 }
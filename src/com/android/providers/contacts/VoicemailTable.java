@@ -66,5 +66,10 @@ public interface VoicemailTable {
          */
         public ParcelFileDescriptor openDataFile(UriData uriData, String mode)
                 throws FileNotFoundException;
+
+        /**
+         * Schedules the deletion of the files of deleted voicemails in the background.
+         */
+        public void scheduleDeleteVoicemailFiles();
     }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Decides when a batch operation should try to yield its transaction.
+ *
+ * <p>A yield attempt only gives up the lock when another thread is waiting for it, so attempting
+ * is cheap when nobody is, but each attempt also ends the profile transaction. The policy
+ * therefore attempts a yield once the transaction has been held for longer than a time budget,
+ * or after a number of operations which adapts to the contention observed so far: it halves
+ * after an attempt that actually yielded, and doubles after one that found nobody waiting.
+ * Uncontended batches thus check less and less often, while a batch running alongside other
+ * clients of the database keeps checking frequently.
+ *
+ * <p>One instance is used for a single batch, on a single thread.
+ */
+public class YieldPolicy {
+
+    /** Longest time a batch holds the transaction without attempting to yield. */
+    public static final long DEFAULT_TIME_BUDGET_MILLIS = 100;
+
+    /** Number of operations between yield attempts at the start of a batch. */
+    public static final int DEFAULT_INITIAL_OPS_BETWEEN_YIELDS = 50;
+
+    public static final int DEFAULT_MIN_OPS_BETWEEN_YIELDS = 5;
+
+    public static final int DEFAULT_MAX_OPS_BETWEEN_YIELDS = 1000;
+
+    private final long mTimeBudgetMillis;
+    private final int mMinOpsBetweenYields;
+    private final int mMaxOpsBetweenYields;
+
+    private int mOpsBetweenYields;
+    private int mOpsSinceYieldPoint;
+    private long mYieldPointMillis;
+
+    private int mYieldAttempts;
+    private int mYields;
+
+    public YieldPolicy() {
+        this(DEFAULT_TIME_BUDGET_MILLIS, DEFAULT_INITIAL_OPS_BETWEEN_YIELDS,
+                DEFAULT_MIN_OPS_BETWEEN_YIELDS, DEFAULT_MAX_OPS_BETWEEN_YIELDS);
+    }
+
+    public YieldPolicy(long timeBudgetMillis, int initialOpsBetweenYields,
+            int minOpsBetweenYields, int maxOpsBetweenYields) {
+        mTimeBudgetMillis = timeBudgetMillis;
+        mMinOpsBetweenYields = minOpsBetweenYields;
+        mMaxOpsBetweenYields = maxOpsBetweenYields;
+        mOpsBetweenYields = initialOpsBetweenYields;
+        mYieldPointMillis = uptimeMillis();
+    }
+
+    /**
+     * Called after each operation of the batch.
+     *
+     * @return whether the caller should attempt to yield now, if it is allowed to
+     */
+    public boolean onOperation() {
+        mOpsSinceYieldPoint++;
+        return mOpsSinceYieldPoint >= mOpsBetweenYields
+                || uptimeMillis() - mYieldPointMillis >= mTimeBudgetMillis;
+    }
+
+    /**
+     * Called after a yield attempt.
+     *
+     * @param yielded whether the transaction was actually yielded to another thread
+     */
+    public void onYieldAttempted(boolean yielded) {
+        mYieldAttempts++;
+        if (yielded) {
+            mYields++;
+            mOpsBetweenYields = Math.max(mMinOpsBetweenYields, mOpsBetweenYields / 2);
+        } else {
+            mOpsBetweenYields = Math.min(mMaxOpsBetweenYields, mOpsBetweenYields * 2);
+        }
+        mOpsSinceYieldPoint = 0;
+        mYieldPointMillis = uptimeMillis();
+    }
+
+    @VisibleForTesting
+    int getOpsBetweenYields() {
+        return mOpsBetweenYields;
+    }
+
+    public int getYieldAttempts() {
+        return mYieldAttempts;
+    }
+
+    public int getYields() {
+        return mYields;
+    }
+
+    @VisibleForTesting
+    protected long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+}
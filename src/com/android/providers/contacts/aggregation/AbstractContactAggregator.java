@@ -96,6 +96,18 @@ public abstract class AbstractContactAggregator {
                     + NameLookupType.NAME_VARIANT + ","
                     + NameLookupType.NAME_COLLATION_KEY + ")";
 
+    /**
+     * Selects the name lookup rows of visible contacts with a name starting with the bound
+     * GLOB prefix, for approximate matching.
+     */
+    protected static final String APPROXIMATE_NAME_MATCH_SELECTION =
+            "(" + NameLookupColumns.NORMALIZED_NAME + " GLOB ?) AND "
+            + "(" + NameLookupColumns.NAME_TYPE + " IN("
+                    + NameLookupType.NAME_COLLATION_KEY + ","
+                    + NameLookupType.EMAIL_BASED_NICKNAME + ","
+                    + NameLookupType.NICKNAME + ")) AND "
+            + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
+
 
     /**
      * SQL statement that sets the {@link ContactsColumns#LAST_STATUS_UPDATE_ID} column
@@ -423,12 +435,14 @@ public abstract class AbstractContactAggregator {
     /**
      * Aggregate all raw contacts that were marked for aggregation in the current transaction.
      * Call just before committing the transaction.
+     *
+     * @return the number of raw contacts aggregated
      */
     // Overridden by ProfileAggregator.
-    public void aggregateInTransaction(TransactionContext txContext, SQLiteDatabase db) {
+    public int aggregateInTransaction(TransactionContext txContext, SQLiteDatabase db) {
         final int markedCount = mRawContactsMarkedForAggregation.size();
         if (markedCount == 0) {
-            return;
+            return 0;
         }
 
         final long start = System.currentTimeMillis();
@@ -496,6 +510,7 @@ public abstract class AbstractContactAggregator {
                     (actualCount == 0 ? "" : ", " + (elapsedTime / actualCount)
                             + " ms per raw contact"));
         }
+        return actualCount;
     }
 
     @SuppressWarnings("deprecation")
@@ -901,6 +916,7 @@ public abstract class AbstractContactAggregator {
         mContactIdUpdate.bindLong(1, contactId);
         mContactIdUpdate.bindLong(2, rawContactId);
         mContactIdUpdate.execute();
+        mContactsProvider.invalidateLookupKeysForRawContact(rawContactId);
     }
 
     /**
@@ -926,6 +942,7 @@ public abstract class AbstractContactAggregator {
         mContactIdAndMarkAggregatedUpdate.bindLong(1, contactId);
         mContactIdAndMarkAggregatedUpdate.bindLong(2, rawContactId);
         mContactIdAndMarkAggregatedUpdate.execute();
+        mContactsProvider.invalidateLookupKeysForRawContact(rawContactId);
     }
 
     private void setPresenceContactId(long rawContactId, long contactId) {
@@ -218,7 +218,7 @@ public class ContactAggregator extends AbstractContactAggregator {
             // Joining with an existing aggregate
             if (currentContactContentsCount == 0) {
                 // Delete a previous aggregate if it only contained this raw contact
-                ContactsTableUtil.deleteContact(db, currentContactId);
+                ContactsTableUtil.deleteContact(db, txContext, currentContactId);
 
                 mAggregatedPresenceDelete.bindLong(1, currentContactId);
                 mAggregatedPresenceDelete.execute();
@@ -517,6 +517,7 @@ public class ContactAggregator extends AbstractContactAggregator {
         mContactIdAndMarkAggregatedUpdate.bindLong(1, contactId);
         mContactIdAndMarkAggregatedUpdate.bindLong(2, rawContactId);
         mContactIdAndMarkAggregatedUpdate.execute();
+        mContactsProvider.invalidateLookupKeysForRawContact(rawContactId);
     }
 
     interface AggregateExceptionQuery {
@@ -658,7 +659,7 @@ public class ContactAggregator extends AbstractContactAggregator {
         // at this stage, we need to ignore all other sources of name lookup data.
         mSb.append(") AND " + STRUCTURED_NAME_BASED_LOOKUP_SQL);
 
-        matchAllCandidates(db, mSb.toString(), candidates, matcher,
+        matchAllCandidates(db, mSb.toString(), null, candidates, matcher,
                 ContactMatcher.MATCHING_ALGORITHM_CONSERVATIVE, null);
 
         return matcher.pickBestMatch(ContactMatcher.SCORE_THRESHOLD_SECONDARY, false);
@@ -842,14 +843,8 @@ public class ContactAggregator extends AbstractContactAggregator {
                 String firstLetter = candidate.mName.substring(0, 2);
                 if (!firstLetters.contains(firstLetter)) {
                     firstLetters.add(firstLetter);
-                    final String selection = "(" + NameLookupColumns.NORMALIZED_NAME + " GLOB '"
-                            + firstLetter + "*') AND "
-                            + "(" + NameLookupColumns.NAME_TYPE + " IN("
-                                    + NameLookupType.NAME_COLLATION_KEY + ","
-                                    + NameLookupType.EMAIL_BASED_NICKNAME + ","
-                                    + NameLookupType.NICKNAME + ")) AND "
-                            + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
-                    matchAllCandidates(db, selection, candidates, matcher,
+                    matchAllCandidates(db, APPROXIMATE_NAME_MATCH_SELECTION,
+                            new String[] {firstLetter + "*"}, candidates, matcher,
                             ContactMatcher.MATCHING_ALGORITHM_APPROXIMATE,
                             String.valueOf(FIRST_LETTER_SUGGESTION_HIT_LIMIT));
                 }
@@ -875,10 +870,10 @@ public class ContactAggregator extends AbstractContactAggregator {
      * Loads all candidate rows from the name lookup table and updates match scores based
      * on that data.
      */
-    private void matchAllCandidates(SQLiteDatabase db, String selection,
+    private void matchAllCandidates(SQLiteDatabase db, String selection, String[] selectionArgs,
             MatchCandidateList candidates, ContactMatcher matcher, int algorithm, String limit) {
         final Cursor c = db.query(ContactNameLookupQuery.TABLE, ContactNameLookupQuery.COLUMNS,
-                selection, null, null, null, null, limit);
+                selection, selectionArgs, null, null, null, limit);
 
         try {
             while (c.moveToNext()) {
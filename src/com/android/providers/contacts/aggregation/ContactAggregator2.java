@@ -381,7 +381,7 @@ public class ContactAggregator2 extends AbstractContactAggregator {
 
                 if (currentRcCount == 0) {
                     // Delete a contact if it doesn't contain anything
-                    ContactsTableUtil.deleteContact(db, cid);
+                    ContactsTableUtil.deleteContact(db, txContext, cid);
                     mAggregatedPresenceDelete.bindLong(1, cid);
                     mAggregatedPresenceDelete.execute();
                 } else {
@@ -712,14 +712,8 @@ public class ContactAggregator2 extends AbstractContactAggregator {
                 String firstLetter = candidate.mName.substring(0, 2);
                 if (!firstLetters.contains(firstLetter)) {
                     firstLetters.add(firstLetter);
-                    final String selection = "(" + NameLookupColumns.NORMALIZED_NAME + " GLOB '"
-                            + firstLetter + "*') AND "
-                            + "(" + NameLookupColumns.NAME_TYPE + " IN("
-                                    + NameLookupType.NAME_COLLATION_KEY + ","
-                                    + NameLookupType.EMAIL_BASED_NICKNAME + ","
-                                    + NameLookupType.NICKNAME + ")) AND "
-                            + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
-                    matchAllCandidates(db, selection, candidates, matcher,
+                    matchAllCandidates(db, APPROXIMATE_NAME_MATCH_SELECTION,
+                            new String[] {firstLetter + "*"}, candidates, matcher,
                             RawContactMatcher.MATCHING_ALGORITHM_APPROXIMATE,
                             String.valueOf(FIRST_LETTER_SUGGESTION_HIT_LIMIT));
                 }
@@ -749,10 +743,10 @@ public class ContactAggregator2 extends AbstractContactAggregator {
      * Loads all candidate rows from the name lookup table and updates match scores based
      * on that data.
      */
-    private void matchAllCandidates(SQLiteDatabase db, String selection,
+    private void matchAllCandidates(SQLiteDatabase db, String selection, String[] selectionArgs,
             MatchCandidateList candidates, RawContactMatcher matcher, int algorithm, String limit) {
         final Cursor c = db.query(ContactNameLookupQuery.TABLE, ContactNameLookupQuery.COLUMNS,
-                selection, null, null, null, null, limit);
+                selection, selectionArgs, null, null, null, limit);
 
         try {
             while (c.moveToNext()) {
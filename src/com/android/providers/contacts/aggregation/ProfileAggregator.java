@@ -66,8 +66,9 @@ public class ProfileAggregator extends ContactAggregator {
     }
 
     @Override
-    public void aggregateInTransaction(TransactionContext txContext, SQLiteDatabase db) {
+    public int aggregateInTransaction(TransactionContext txContext, SQLiteDatabase db) {
         // Do nothing.  The contact should already be aggregated.
+        return 0;
     }
 
     @Override
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.database;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.ContactsContract.DeletedContacts;
+import android.provider.ContactsContract.RawContacts;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.ChangeLogColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.util.Clock;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Methods for operating on the change_log table.
+ *
+ * <p>Each row records that a raw contact was inserted, changed or deleted, with a sequence
+ * number that only grows.  Rows are appended when the changes of a transaction are flushed, so
+ * a sync client that remembers the last sequence number it read finds what changed since then
+ * without scanning the raw contacts.  Rows are kept as long as the deleted contacts log; a client
+ * whose last sequence number is older than the first row has to sync everything again.
+ */
+public class ChangeLogTableUtil {
+
+    /**
+     * Query parameter of the change log URI: only returns the changes with a higher sequence
+     * number.
+     */
+    public static final String SINCE_PARAM_KEY = "since";
+
+    /** The raw contact was inserted. */
+    public static final int TYPE_INSERTED = 1;
+
+    /** The raw contact or its data was changed. */
+    public static final int TYPE_CHANGED = 2;
+
+    /** The raw contact was deleted, or marked as deleted for its sync adapter. */
+    public static final int TYPE_DELETED = 3;
+
+    /** Rows inserted per statement, three variables each, well below the limit of SQLite. */
+    private static final int INSERT_CHUNK_SIZE = 200;
+
+    /** Raw contacts looked up per query. */
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    /** Rows deleted per statement by {@link #deleteOldLogs}. */
+    private static final int DELETE_CHUNK_SIZE = 500;
+
+    /**
+     * Create change_log table and indexes.
+     *
+     * @param db The sqlite database instance.
+     */
+    public static void create(SQLiteDatabase db) {
+        // AUTOINCREMENT so that sequence numbers aren't reused once old rows are deleted.
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.CHANGE_LOG + " (" +
+                ChangeLogColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                ChangeLogColumns.RAW_CONTACT_ID + " INTEGER NOT NULL," +
+                ChangeLogColumns.CHANGE_TYPE + " INTEGER NOT NULL," +
+                ChangeLogColumns.CHANGE_TIMESTAMP + " INTEGER NOT NULL" +
+                ");");
+    }
+
+    /**
+     * Appends the changes of a transaction.  A raw contact that was inserted is only logged as
+     * such, and one that no longer exists or is marked as deleted as deleted.
+     *
+     * @param db The sqlite database instance.
+     * @param insertedRawContactIds The raw contacts inserted.
+     * @param changedRawContactIds The raw contacts changed or deleted.  May include inserted ones.
+     */
+    public static void insertChanges(SQLiteDatabase db, Set<Long> insertedRawContactIds,
+            Set<Long> changedRawContactIds) {
+        if (insertedRawContactIds.isEmpty() && changedRawContactIds.isEmpty()) {
+            return;
+        }
+        final long[] ids = new long[insertedRawContactIds.size() + changedRawContactIds.size()];
+        int count = 0;
+        for (long id : insertedRawContactIds) {
+            ids[count++] = id;
+        }
+        for (long id : changedRawContactIds) {
+            if (!insertedRawContactIds.contains(id)) {
+                ids[count++] = id;
+            }
+        }
+        Arrays.sort(ids, 0, count);
+
+        final int[] types = new int[count];
+        for (int i = 0; i < count; i++) {
+            types[i] = TYPE_DELETED;
+        }
+        // Whatever still exists was inserted or changed.
+        for (int start = 0; start < count; start += QUERY_CHUNK_SIZE) {
+            final int end = Math.min(count, start + QUERY_CHUNK_SIZE);
+            final StringBuilder sb = new StringBuilder();
+            // Sql injection is not possible because the ids are longs.
+            sb.append("SELECT ").append(RawContacts._ID)
+                    .append(" FROM ").append(Tables.RAW_CONTACTS)
+                    .append(" WHERE ").append(RawContacts.DELETED).append("=0")
+                    .append(" AND ").append(RawContacts._ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                sb.append(i == start ? "" : ",").append(ids[i]);
+            }
+            sb.append(")");
+            try (Cursor c = db.rawQuery(sb.toString(), null)) {
+                while (c.moveToNext()) {
+                    final long id = c.getLong(0);
+                    final int i = Arrays.binarySearch(ids, start, end, id);
+                    types[i] = insertedRawContactIds.contains(id) ? TYPE_INSERTED : TYPE_CHANGED;
+                }
+            }
+        }
+
+        final long now = Clock.getInstance().currentTimeMillis();
+        SQLiteStatement statement = null;
+        try {
+            for (int start = 0; start < count; start += INSERT_CHUNK_SIZE) {
+                final int rows = Math.min(INSERT_CHUNK_SIZE, count - start);
+                // Only the last chunk can be smaller, and needs its own statement.
+                if (statement == null || rows < INSERT_CHUNK_SIZE) {
+                    if (statement != null) {
+                        statement.close();
+                    }
+                    statement = db.compileStatement(buildInsertSql(rows));
+                }
+                for (int i = 0; i < rows; i++) {
+                    statement.bindLong(3 * i + 1, ids[start + i]);
+                    statement.bindLong(3 * i + 2, types[start + i]);
+                    statement.bindLong(3 * i + 3, now);
+                }
+                statement.executeInsert();
+            }
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+    }
+
+    private static String buildInsertSql(int rows) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("INSERT INTO ").append(Tables.CHANGE_LOG)
+                .append(" (").append(ChangeLogColumns.RAW_CONTACT_ID)
+                .append(", ").append(ChangeLogColumns.CHANGE_TYPE)
+                .append(", ").append(ChangeLogColumns.CHANGE_TIMESTAMP)
+                .append(") VALUES ");
+        for (int i = 0; i < rows; i++) {
+            sb.append(i == 0 ? "(?,?,?)" : ",(?,?,?)");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Deletes old log records, a chunk at a time so that each statement is short.
+     *
+     * @param db The database instance to use.
+     * @return The number of records deleted.
+     */
+    public static int deleteOldLogs(SQLiteDatabase db) {
+        final long time = Clock.getInstance().currentTimeMillis()
+                - DeletedContacts.DAYS_KEPT_MILLISECONDS;
+
+        // Rows are appended in time order, so the old ones are those up to the last old row.
+        // change_timestamp isn't indexed, so it is only scanned once to find that row.
+        final long lastId = DatabaseUtils.longForQuery(db,
+                "SELECT MAX(" + ChangeLogColumns._ID + ") FROM " + Tables.CHANGE_LOG
+                + " WHERE " + ChangeLogColumns.CHANGE_TIMESTAMP + " < ?",
+                new String[] {String.valueOf(time)});
+        if (lastId <= 0) {
+            return 0;
+        }
+
+        final String sql = "DELETE FROM " + Tables.CHANGE_LOG
+                + " WHERE " + ChangeLogColumns._ID + " IN ("
+                + "SELECT " + ChangeLogColumns._ID + " FROM " + Tables.CHANGE_LOG
+                + " WHERE " + ChangeLogColumns._ID + " <= ?"
+                + " ORDER BY " + ChangeLogColumns._ID
+                + " LIMIT " + DELETE_CHUNK_SIZE + ")";
+
+        int total = 0;
+        try (SQLiteStatement statement = db.compileStatement(sql)) {
+            statement.bindLong(1, lastId);
+            int count;
+            do {
+                count = statement.executeUpdateDelete();
+                total += count;
+            } while (count == DELETE_CHUNK_SIZE);
+        }
+        return total;
+    }
+}
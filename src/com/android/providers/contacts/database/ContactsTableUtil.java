@@ -26,6 +26,7 @@ import android.provider.ContactsContract;
 import android.text.TextUtils;
 
 import com.android.common.io.MoreCloseables;
+import com.android.providers.contacts.TransactionContext;
 import com.android.providers.contacts.util.Clock;
 
 import java.util.Set;
@@ -103,14 +104,17 @@ public class ContactsTableUtil {
     }
 
     /**
-     * Delete a contact identified by the contact id.
+     * Delete a contact identified by the contact id.  It is added to the deleted contacts log
+     * when the transaction is committed.
      *
      * @param db The sqlite database instance.
+     * @param txContext The context of the transaction.
      * @param contactId The contact id to delete.
      * @return The number of records deleted.
      */
-    public static int deleteContact(SQLiteDatabase db, long contactId) {
-        DeletedContactsTableUtil.insertDeletedContact(db, contactId);
+    public static int deleteContact(SQLiteDatabase db, TransactionContext txContext,
+            long contactId) {
+        txContext.contactDeleted(contactId, Clock.getInstance().currentTimeMillis());
         return db.delete(Tables.CONTACTS, Contacts._ID + " = ?", new String[]{contactId + ""});
     }
 
@@ -118,7 +122,8 @@ public class ContactsTableUtil {
      * Delete the aggregate contact if it has no constituent raw contacts other than the supplied
      * one.
      */
-    public static int deleteContactIfSingleton(SQLiteDatabase db, long rawContactId) {
+    public static int deleteContactIfSingleton(SQLiteDatabase db, TransactionContext txContext,
+            long rawContactId) {
         // This query will find a contact id if the contact has a raw contacts other than the one
         // passed in.
         final String sql = "select " + ContactsContract.RawContacts.CONTACT_ID + ", count(1)"
@@ -136,7 +141,7 @@ public class ContactsTableUtil {
 
                 if (numRawContacts == 1) {
                     // Only one raw contact, we can delete the parent.
-                    return deleteContact(db, contactId);
+                    return deleteContact(db, txContext, contactId);
                 }
             }
         } finally {
@@ -16,9 +16,11 @@
 
 package com.android.providers.contacts.database;
 
-import android.content.ContentValues;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.ContactsContract;
+import android.provider.ContactsContract.DeletedContacts;
+import android.util.ArrayMap;
 
 import com.android.providers.contacts.ContactsDatabaseHelper;
 import com.android.providers.contacts.util.Clock;
@@ -28,6 +30,28 @@ import com.android.providers.contacts.util.Clock;
  */
 public class DeletedContactsTableUtil {
 
+    /**
+     * Query parameter of {@link DeletedContacts#CONTENT_URI}: only returns the contacts deleted
+     * after this timestamp, or at the same time with a higher ID than
+     * {@link #AFTER_CONTACT_ID_PARAM_KEY}, in the order they were deleted.  The values of the
+     * last row a sync client read are passed to get the next page, with
+     * {@link ContactsContract#LIMIT_PARAM_KEY}.
+     */
+    public static final String AFTER_TIMESTAMP_PARAM_KEY = "after_timestamp";
+
+    /** Query parameter of {@link DeletedContacts#CONTENT_URI}, see above. */
+    public static final String AFTER_CONTACT_ID_PARAM_KEY = "after_contact_id";
+
+    /** Order of the rows in a page, see {@link #AFTER_TIMESTAMP_PARAM_KEY}. */
+    public static final String PAGE_SORT_ORDER = DeletedContacts.CONTACT_DELETED_TIMESTAMP + ", "
+            + DeletedContacts.CONTACT_ID;
+
+    /** Rows inserted per statement, two variables each, well below the limit of SQLite. */
+    private static final int INSERT_CHUNK_SIZE = 200;
+
+    /** Rows deleted per statement by {@link #deleteOldLogs}. */
+    private static final int DELETE_CHUNK_SIZE = 500;
+
     /**
      * Create deleted_contacts tables and indexes.
      *
@@ -47,35 +71,91 @@ public class DeletedContactsTableUtil {
     }
 
     /**
-     * Inserts a deleted contact log record.
+     * Inserts deleted contact log records, a few rows per statement.
      *
      * @param db The SQLiteDatabase instance.
-     * @param contactId The contact id to insert.
-     * @return The row id
+     * @param deletedContacts The contact ids to insert, to the time they were deleted.
+     */
+    public static void insertDeletedContacts(SQLiteDatabase db,
+            ArrayMap<Long, Long> deletedContacts) {
+        final int count = deletedContacts.size();
+        SQLiteStatement statement = null;
+        try {
+            for (int start = 0; start < count; start += INSERT_CHUNK_SIZE) {
+                final int rows = Math.min(INSERT_CHUNK_SIZE, count - start);
+                // Only the last chunk can be smaller, and needs its own statement.
+                if (statement == null || rows < INSERT_CHUNK_SIZE) {
+                    if (statement != null) {
+                        statement.close();
+                    }
+                    statement = db.compileStatement(buildInsertSql(rows));
+                }
+                for (int i = 0; i < rows; i++) {
+                    statement.bindLong(2 * i + 1, deletedContacts.keyAt(start + i));
+                    statement.bindLong(2 * i + 2, deletedContacts.valueAt(start + i));
+                }
+                // a.k.a upsert
+                statement.executeInsert();
+            }
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+    }
+
+    private static String buildInsertSql(int rows) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("INSERT OR REPLACE INTO ")
+                .append(ContactsDatabaseHelper.Tables.DELETED_CONTACTS)
+                .append(" (").append(DeletedContacts.CONTACT_ID)
+                .append(", ").append(DeletedContacts.CONTACT_DELETED_TIMESTAMP)
+                .append(") VALUES ");
+        for (int i = 0; i < rows; i++) {
+            sb.append(i == 0 ? "(?,?)" : ",(?,?)");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builds the selection of a page of deleted contacts, see {@link #AFTER_TIMESTAMP_PARAM_KEY}.
+     * The first condition alone can be looked up in the timestamp index.
      */
-    public static long insertDeletedContact(SQLiteDatabase db, long contactId) {
-        ContentValues values = new ContentValues();
-        values.put(ContactsContract.DeletedContacts.CONTACT_ID, contactId);
-        values.put(ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP,
-                Clock.getInstance().currentTimeMillis());
-        // a.k.a upsert
-        return db.insertWithOnConflict(ContactsDatabaseHelper.Tables.DELETED_CONTACTS, null, values,
-                SQLiteDatabase.CONFLICT_REPLACE);
+    public static String buildPageSelection(long afterTimestamp, long afterContactId) {
+        return DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">=" + afterTimestamp
+                + " AND (" + DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">" + afterTimestamp
+                + " OR " + DeletedContacts.CONTACT_ID + ">" + afterContactId + ")";
     }
 
     /**
-     * Deletes old log records.
+     * Deletes old log records, a chunk at a time so that each statement is short.
      *
      * @param db The database instance to use.
+     * @return The number of records deleted.
      */
     public static int deleteOldLogs(SQLiteDatabase db) {
 
         long time = Clock.getInstance().currentTimeMillis() -
                 ContactsContract.DeletedContacts.DAYS_KEPT_MILLISECONDS;
 
-        String[] args = new String[]{time + ""};
+        // The oldest records are found with the timestamp index.
+        final String table = ContactsDatabaseHelper.Tables.DELETED_CONTACTS;
+        final String sql = "DELETE FROM " + table
+                + " WHERE " + DeletedContacts.CONTACT_ID + " IN ("
+                + "SELECT " + DeletedContacts.CONTACT_ID + " FROM " + table
+                + " WHERE " + DeletedContacts.CONTACT_DELETED_TIMESTAMP + " < ?"
+                + " ORDER BY " + DeletedContacts.CONTACT_DELETED_TIMESTAMP
+                + " LIMIT " + DELETE_CHUNK_SIZE + ")";
 
-        return db.delete(ContactsDatabaseHelper.Tables.DELETED_CONTACTS,
-                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " < ?", args);
+        int total = 0;
+        try (SQLiteStatement statement = db.compileStatement(sql)) {
+            statement.bindLong(1, time);
+            int count;
+            do {
+                count = statement.executeUpdateDelete();
+                total += count;
+            } while (count == DELETE_CHUNK_SIZE);
+        }
+        return total;
     }
 }
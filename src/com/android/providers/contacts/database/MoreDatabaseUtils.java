@@ -71,7 +71,6 @@ public class MoreDatabaseUtils {
      * @param numArgs The number of arguments.
      * @return A string that can be used for bind args in a sql where clause.
      */
-    @NeededForTesting
     public static String buildBindArgString(int numArgs) {
         final StringBuilder sb = new StringBuilder();
         String delimiter = "";
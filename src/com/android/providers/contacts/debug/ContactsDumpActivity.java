@@ -49,6 +49,7 @@ public class ContactsDumpActivity extends Activity implements OnClickListener {
         super.onCreate(savedInstanceState);
 
         requestWindowFeature(Window.FEATURE_LEFT_ICON);
+        requestWindowFeature(Window.FEATURE_PROGRESS);
 
         setContentView(R.layout.contact_dump_activity);
 
@@ -94,27 +95,45 @@ public class ContactsDumpActivity extends Activity implements OnClickListener {
         DataExporter.removeDumpFiles(this);
     }
 
-    private class DumpDbTask extends AsyncTask<Void, Void, Uri> {
+    private class DumpDbTask extends AsyncTask<Void, Integer, Uri> {
+        private int mLastPercent = -1;
+
         /**
-         * Starts spinner while task is running.
+         * Shows the progress bar while task is running.
          */
         @Override
         protected void onPreExecute() {
-            setProgressBarIndeterminateVisibility(true);
+            setProgress(0);
+            setProgressBarVisibility(true);
         }
 
         @Override
         protected Uri doInBackground(Void... params) {
             try {
-                return DataExporter.exportData(getApplicationContext());
+                return DataExporter.exportData(getApplicationContext(), this::onExportProgress);
             } catch (IOException e) {
                 Log.e(TAG, "Failed to export", e);
                 return null;
             }
         }
 
+        private void onExportProgress(long bytesDone, long bytesTotal) {
+            // Only every percent, not every chunk.
+            final int percent = bytesTotal == 0 ? 100 : (int) (bytesDone * 100 / bytesTotal);
+            if (percent != mLastPercent) {
+                mLastPercent = percent;
+                publishProgress(percent * Window.PROGRESS_END / 100);
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            setProgress(values[values.length - 1]);
+        }
+
         @Override
         protected void onPostExecute(Uri uri) {
+            setProgressBarVisibility(false);
             if (uri != null) {
                 emailFile(uri);
             }
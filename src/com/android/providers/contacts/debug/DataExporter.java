@@ -19,6 +19,8 @@ package com.android.providers.contacts.debug;
 import com.android.providers.contacts.util.Hex;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.util.Log;
 
@@ -27,7 +29,17 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -35,6 +47,11 @@ import java.util.zip.ZipOutputStream;
 /**
  * Compress all files under the app data dir into a single zip file.
  *
+ * Databases are exported as a consistent snapshot, taken through a separate read-only connection
+ * so that the provider can keep writing meanwhile, instead of as their raw files and journals.
+ * Files are read in chunks and compressed on a worker thread, with a bounded number of chunks in
+ * between, so memory use doesn't depend on the size of the data.
+ *
  * Make sure not to output dump filenames anywhere, including logcat.
  */
 public class DataExporter {
@@ -47,11 +64,72 @@ public class DataExporter {
     public static final String OUT_FILE_SUFFIX = "-contacts-db.zip";
     public static final String VALID_FILE_NAME_REGEX = "[0-9A-Fa-f]+-contacts-db\\.zip";
 
+    /** Size of the chunks files are read in. */
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    /** Chunks read but not compressed yet, at most. */
+    private static final int MAX_PENDING_CHUNKS = 8;
+
+    private static final byte[] SQLITE_HEADER =
+            "SQLite format 3\u0000".getBytes(StandardCharsets.US_ASCII);
+
+    /** Files next to a database which are part of it, and are included in its snapshot. */
+    private static final String[] DATABASE_FILE_SUFFIXES = {"-journal", "-shm", "-wal"};
+
+    /**
+     * Receives the progress of an export.  Called on the thread running the export.
+     */
+    public interface ProgressListener {
+        /**
+         * @param bytesDone the number of bytes read so far
+         * @param bytesTotal an estimate of the number of bytes to read
+         */
+        void onProgress(long bytesDone, long bytesTotal);
+    }
+
+    /** A file to export. */
+    private static final class ExportedFile {
+        final File file;
+        final String storedPath;
+
+        ExportedFile(File file, String storedPath) {
+            this.file = file;
+            this.storedPath = storedPath;
+        }
+    }
+
+    /** Tracks the progress of an export. */
+    private static final class Progress {
+        final ProgressListener listener;
+        final long bytesTotal;
+        long bytesDone;
+
+        Progress(ProgressListener listener, long bytesTotal) {
+            this.listener = listener;
+            this.bytesTotal = bytesTotal;
+        }
+
+        void add(long bytes) {
+            bytesDone += bytes;
+            if (listener != null) {
+                listener.onProgress(Math.min(bytesDone, bytesTotal), bytesTotal);
+            }
+        }
+    }
+
     /**
      * Compress all files under the app data dir into a single zip file, and return the content://
      * URI to the file, which can be read via {@link DumpFileProvider}.
      */
     public static Uri exportData(Context context) throws IOException {
+        return exportData(context, null);
+    }
+
+    /**
+     * Same as {@link #exportData(Context)}, reporting the progress to {@code listener} if it is
+     * not null.
+     */
+    public static Uri exportData(Context context, ProgressListener listener) throws IOException {
         final String fileName = generateRandomName() + OUT_FILE_SUFFIX;
         final File outFile = getOutputFile(context, fileName);
 
@@ -61,10 +139,41 @@ public class DataExporter {
         Log.i(TAG, "Dump started...");
 
         ensureOutputDirectory(context);
-        
+
+        final List<ExportedFile> files = new ArrayList<>();
+        addDirectory(context, files, context.getFilesDir().getParentFile(), "contacts-files");
+        long bytesTotal = 0;
+        for (ExportedFile exported : files) {
+            bytesTotal += exported.file.length();
+        }
+        final Progress progress = new Progress(listener, bytesTotal);
+
         try (ZipOutputStream os = new ZipOutputStream(new FileOutputStream(outFile))) {
             os.setLevel(Deflater.BEST_COMPRESSION);
-            addDirectory(context, os, context.getFilesDir().getParentFile(), "contacts-files");
+            final ZipWriterThread writer = new ZipWriterThread(os);
+            writer.start();
+            try {
+                // Journals of the databases that were snapshotted, which are not needed.
+                final Set<File> skipped = new HashSet<>();
+                for (ExportedFile exported : files) {
+                    if (skipped.contains(exported.file)) {
+                        progress.add(exported.file.length());
+                    } else if (isDatabase(exported.file)
+                            && addDatabase(context, writer, exported, progress)) {
+                        for (String suffix : DATABASE_FILE_SUFFIXES) {
+                            skipped.add(new File(exported.file.getPath() + suffix));
+                        }
+                    } else {
+                        addFile(writer, exported.file, exported.storedPath, progress);
+                    }
+                }
+                writer.finish();
+            } finally {
+                writer.cancel();
+            }
+        } catch (IOException e) {
+            outFile.delete();
+            throw e;
         }
         Log.i(TAG, "Dump finished.");
         return DumpFileProvider.AUTHORITY_URI.buildUpon().appendPath(fileName).build();
@@ -135,11 +244,17 @@ public class DataExporter {
     }
 
     /**
-     * Add all files under {@code current} to {@code os} zip stream
+     * Add all files under {@code current} to {@code files}, sorted by name so that databases come
+     * before their journals.
      */
-    private static void addDirectory(Context context, ZipOutputStream os, File current,
-            String storedPath) throws IOException {
-        for (File child : current.listFiles()) {
+    private static void addDirectory(Context context, List<ExportedFile> files, File current,
+            String storedPath) {
+        final File[] children = current.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
             final String childStoredPath = storedPath + "/" + child.getName();
 
             if (child.isDirectory()) {
@@ -152,9 +267,9 @@ public class DataExporter {
                 if (child.getName().equals(DUMP_FILE_DIRECTORY_NAME)) {
                     continue;
                 }
-                addDirectory(context, os, child, childStoredPath);
+                addDirectory(context, files, child, childStoredPath);
             } else if (child.isFile()) {
-                addFile(os, child, childStoredPath);
+                files.add(new ExportedFile(child, childStoredPath));
             } else {
                 // Shouldn't happen; skip.
             }
@@ -162,27 +277,201 @@ public class DataExporter {
     }
 
     /**
-     * Add a single file {@code current} to {@code os} zip stream using the file name
+     * @return whether {@code file} starts with the SQLite database header
+     */
+    private static boolean isDatabase(File file) {
+        final byte[] header = new byte[SQLITE_HEADER.length];
+        try (InputStream is = new FileInputStream(file)) {
+            int read = 0;
+            while (read < header.length) {
+                final int len = is.read(header, read, header.length - read);
+                if (len <= 0) {
+                    return false;
+                }
+                read += len;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return Arrays.equals(header, SQLITE_HEADER);
+    }
+
+    /**
+     * Add a snapshot of the database {@code exported} to the zip stream, in place of its file.
+     *
+     * The snapshot is written by {@code VACUUM INTO} from a read-only connection, which only
+     * holds a read transaction; in WAL mode the provider's writes aren't blocked meanwhile.  It
+     * is the consistent state of the database including its journal, so the journal files are
+     * not needed.
+     *
+     * @return false if the snapshot could not be taken, in which case nothing was added
+     */
+    private static boolean addDatabase(Context context, ZipWriterThread writer,
+            ExportedFile exported, Progress progress) throws IOException {
+        // VACUUM INTO needs a file that doesn't exist or is empty.
+        final File snapshot = File.createTempFile("snapshot", null, getOutputDirectory(context));
+        try {
+            try (SQLiteDatabase db = SQLiteDatabase.openDatabase(exported.file.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY)) {
+                db.execSQL("VACUUM INTO ?", new Object[] {snapshot.getPath()});
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Failed to snapshot " + exported.file.getAbsolutePath()
+                        + ", adding its files instead", e);
+                return false;
+            }
+            final long bytesTotal = exported.file.length();
+            addFile(writer, snapshot, exported.storedPath, null);
+            progress.add(bytesTotal);
+            return true;
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    /**
+     * Add a single file {@code current} to the zip stream using the file name
      * {@code storedPath}.
+     *
+     * @param progress updated as the file is read, if not null
      */
-    private static void addFile(ZipOutputStream os, File current, String storedPath)
-            throws IOException {
+    private static void addFile(ZipWriterThread writer, File current, String storedPath,
+            Progress progress) throws IOException {
         Log.i(TAG, "Adding " + current.getAbsolutePath() + " ...");
-        final InputStream is = new FileInputStream(current);
-        os.putNextEntry(new ZipEntry(storedPath));
-
-        final byte[] buf = new byte[32 * 1024];
-        int totalLen = 0;
-        while (true) {
-            int len = is.read(buf);
-            if (len <= 0) {
-                break;
+        writer.putNextEntry(storedPath);
+
+        long totalLen = 0;
+        try (InputStream is = new FileInputStream(current)) {
+            while (true) {
+                // The writer keeps the buffer, so each chunk needs its own.
+                final byte[] buf = new byte[CHUNK_SIZE];
+                int len = is.read(buf);
+                if (len <= 0) {
+                    break;
+                }
+                writer.write(buf, len);
+                totalLen += len;
+                if (progress != null) {
+                    progress.add(len);
+                }
             }
-            os.write(buf, 0, len);
-            totalLen += len;
         }
-        os.closeEntry();
         Log.i(TAG, "Added " + current.getAbsolutePath() + " as " + storedPath +
                 " (" + totalLen + " bytes)");
     }
+
+    /**
+     * Writes entries to a zip stream on its own thread, so that data is compressed while more
+     * of it is read.  The thread that adds the entries blocks while
+     * {@link #MAX_PENDING_CHUNKS} chunks are waiting.
+     */
+    private static final class ZipWriterThread extends Thread {
+        private static final class Chunk {
+            final String entryName;
+            final byte[] data;
+            final int length;
+
+            Chunk(String entryName, byte[] data, int length) {
+                this.entryName = entryName;
+                this.data = data;
+                this.length = length;
+            }
+        }
+
+        private static final Chunk END = new Chunk(null, null, 0);
+
+        private final ZipOutputStream mOut;
+        private final BlockingQueue<Chunk> mQueue = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+        private volatile IOException mFailure;
+
+        ZipWriterThread(ZipOutputStream out) {
+            super(TAG);
+            mOut = out;
+        }
+
+        /** Starts a new entry, closing the current one. */
+        void putNextEntry(String name) throws IOException {
+            enqueue(new Chunk(name, null, 0));
+        }
+
+        /** Writes data to the current entry.  {@code data} must not be changed afterwards. */
+        void write(byte[] data, int length) throws IOException {
+            enqueue(new Chunk(null, data, length));
+        }
+
+        /** Waits until everything is written. */
+        void finish() throws IOException {
+            enqueue(END);
+            joinUninterruptibly();
+            throwIfFailed();
+        }
+
+        /** Stops writing, if it isn't finished, and waits for the thread to end. */
+        void cancel() {
+            interrupt();
+            joinUninterruptibly();
+        }
+
+        private void enqueue(Chunk chunk) throws IOException {
+            try {
+                while (!mQueue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    if (!isAlive()) {
+                        throwIfFailed();
+                        throw new IOException("Zip writer stopped");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        private void throwIfFailed() throws IOException {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+
+        private void joinUninterruptibly() {
+            boolean interrupted = false;
+            while (isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                boolean inEntry = false;
+                while (true) {
+                    final Chunk chunk = mQueue.take();
+                    if (chunk == END) {
+                        break;
+                    }
+                    if (chunk.entryName != null) {
+                        if (inEntry) {
+                            mOut.closeEntry();
+                        }
+                        mOut.putNextEntry(new ZipEntry(chunk.entryName));
+                        inEntry = true;
+                    } else {
+                        mOut.write(chunk.data, 0, chunk.length);
+                    }
+                }
+                if (inEntry) {
+                    mOut.closeEntry();
+                }
+            } catch (IOException e) {
+                mFailure = e;
+            } catch (InterruptedException e) {
+                mFailure = new InterruptedIOException();
+            }
+        }
+    }
 }
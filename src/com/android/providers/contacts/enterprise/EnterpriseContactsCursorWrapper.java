@@ -32,7 +32,6 @@ import android.provider.ContactsContract.PhoneLookup;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.android.internal.util.ArrayUtils;
 import com.android.providers.contacts.ContactsProvider2;
 
 /**
@@ -50,6 +49,18 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
     // query. Hence, we need also to restore the cursor to the origianl projection.
     private final int[] contactIdIndices;
 
+    // What to do with the values of each column of the wrapped cursor, one of the COLUMN_*
+    // constants, so that reading a value doesn't need to look at the column name.
+    private static final int COLUMN_UNCHANGED = 0;
+    private static final int COLUMN_CONTACT_ID = 1;
+    private static final int COLUMN_PHOTO_THUMBNAIL_URI = 2;
+    private static final int COLUMN_PHOTO_URI = 3;
+    private static final int COLUMN_PHOTO_ID = 4;
+    private static final int COLUMN_CUSTOM_RINGTONE = 5;
+    private static final int COLUMN_LOOKUP_KEY = 6;
+
+    private final int[] mColumnPlan;
+
     // Derived Fields
     private final Long mDirectoryId;
     private final boolean mIsDirectoryRemote;
@@ -63,6 +74,46 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
         this.mDirectoryId = directoryId;
         this.mIsDirectoryRemote = directoryId != null
                 && Directory.isRemoteDirectoryId(directoryId);
+        this.mColumnPlan = buildColumnPlan(cursor.getColumnNames(), contactIdIndices);
+    }
+
+    private static int[] buildColumnPlan(String[] columnNames, int[] contactIdIndices) {
+        final int[] plan = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            switch (columnNames[i]) {
+                case Contacts.PHOTO_THUMBNAIL_URI:
+                    plan[i] = COLUMN_PHOTO_THUMBNAIL_URI;
+                    break;
+                case Contacts.PHOTO_URI:
+                    plan[i] = COLUMN_PHOTO_URI;
+                    break;
+                case Data.PHOTO_FILE_ID:
+                case Data.PHOTO_ID:
+                    plan[i] = COLUMN_PHOTO_ID;
+                    break;
+                case Data.CUSTOM_RINGTONE:
+                    plan[i] = COLUMN_CUSTOM_RINGTONE;
+                    break;
+                case Contacts.LOOKUP_KEY:
+                    plan[i] = COLUMN_LOOKUP_KEY;
+                    break;
+                default:
+                    plan[i] = COLUMN_UNCHANGED;
+            }
+        }
+        // Only affects getLong(), where contact IDs take precedence over the column name.
+        for (int index : contactIdIndices) {
+            if (index >= 0 && index < plan.length) {
+                plan[index] = COLUMN_CONTACT_ID;
+            }
+        }
+        return plan;
+    }
+
+    private int getColumnPlan(int columnIndex) {
+        // Let the wrapped cursor report invalid indices.
+        return columnIndex >= 0 && columnIndex < mColumnPlan.length
+                ? mColumnPlan[columnIndex] : COLUMN_UNCHANGED;
     }
 
     @Override
@@ -78,26 +129,23 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
     @Override
     public String getString(int columnIndex) {
         final String result = super.getString(columnIndex);
-        final String columnName = super.getColumnName(columnIndex);
-        final long contactId = super.getLong(contactIdIndices[0]);
-        switch (columnName) {
-            case Contacts.PHOTO_THUMBNAIL_URI:
+        switch (getColumnPlan(columnIndex)) {
+            case COLUMN_PHOTO_THUMBNAIL_URI:
                 if(mIsDirectoryRemote) {
                     return getRemoteDirectoryFileUri(result);
                 } else {
-                    return getCorpThumbnailUri(contactId, getWrappedCursor());
+                    return getCorpThumbnailUri(super.getLong(contactIdIndices[0]), result);
                 }
-            case Contacts.PHOTO_URI:
+            case COLUMN_PHOTO_URI:
                 if(mIsDirectoryRemote) {
                     return getRemoteDirectoryFileUri(result);
                 } else {
-                    return getCorpDisplayPhotoUri(contactId, getWrappedCursor());
+                    return getCorpDisplayPhotoUri(super.getLong(contactIdIndices[0]), result);
                 }
-            case Data.PHOTO_FILE_ID:
-            case Data.PHOTO_ID:
+            case COLUMN_PHOTO_ID:
                 return null;
-            case Data.CUSTOM_RINGTONE:
-                String ringtoneUri = super.getString(columnIndex);
+            case COLUMN_CUSTOM_RINGTONE:
+                String ringtoneUri = result;
                 // TODO: Remove this conditional block once accessing sounds in corp
                 // profile becomes possible.
                 if (ringtoneUri != null
@@ -106,8 +154,8 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
                     ringtoneUri = null;
                 }
                 return ringtoneUri;
-            case Contacts.LOOKUP_KEY:
-                final String lookupKey = super.getString(columnIndex);
+            case COLUMN_LOOKUP_KEY:
+                final String lookupKey = result;
                 if (TextUtils.isEmpty(lookupKey)) {
                     return null;
                 } else {
@@ -126,17 +174,13 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
     @Override
     public long getLong(int column) {
         long result = super.getLong(column);
-        if (ArrayUtils.contains(contactIdIndices, column)) {
-            return result + Contacts.ENTERPRISE_CONTACT_ID_BASE;
-        } else {
-            final String columnName = getColumnName(column);
-            switch (columnName) {
-                case Data.PHOTO_FILE_ID:
-                case Data.PHOTO_ID:
-                    return 0;
-                default:
-                    return result;
-            }
+        switch (getColumnPlan(column)) {
+            case COLUMN_CONTACT_ID:
+                return result + Contacts.ENTERPRISE_CONTACT_ID_BASE;
+            case COLUMN_PHOTO_ID:
+                return 0;
+            default:
+                return result;
         }
     }
 
@@ -165,9 +209,7 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
      *
      * {@link ContentProvider#openAssetFile} knows how to fetch from this URI.
      */
-    private static String getCorpThumbnailUri(long contactId, Cursor originalCursor) {
-        final int thumbnailUriIndex = originalCursor.getColumnIndex(Contacts.PHOTO_THUMBNAIL_URI);
-        final String thumbnailUri = originalCursor.getString(thumbnailUriIndex);
+    private static String getCorpThumbnailUri(long contactId, String thumbnailUri) {
         if (thumbnailUri == null) {
             // No thumbnail. Just return null.
             return null;
@@ -191,9 +233,7 @@ public class EnterpriseContactsCursorWrapper extends CursorWrapper {
      *
      * {@link ContentProvider#openAssetFile} knows how to fetch from this URI.
      */
-    private static String getCorpDisplayPhotoUri(long contactId, Cursor originalCursor) {
-        final int photoUriIndex = originalCursor.getColumnIndex(Contacts.PHOTO_URI);
-        final String photoUri = originalCursor.getString(photoUriIndex);
+    private static String getCorpDisplayPhotoUri(long contactId, String photoUri) {
         if (photoUri == null) {
             return null;
         }
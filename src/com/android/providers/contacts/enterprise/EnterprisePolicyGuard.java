@@ -122,6 +122,21 @@ public class EnterprisePolicyGuard {
                 || isAllowedByBluetoothSharingPolicy;
     }
 
+    /**
+     * Check if the caller ID policy of the work profile lets the given package see work contacts.
+     * Unlike {@link #isCrossProfileAllowed}, this is checked in the personal profile, before it
+     * uses results it fetched from the work profile earlier.
+     *
+     * @param corpUserId Id of the work profile.
+     * @param callingPackage Name of the client package that called CP2.
+     * @return True if the work profile is enabled and its caller ID policy allows the package.
+     */
+    public boolean isCorpCallerIdAllowed(int corpUserId, @NonNull String callingPackage) {
+        final UserHandle corpHandle = new UserHandle(corpUserId);
+        return mDpm.hasManagedProfileCallerIdAccess(corpHandle, callingPackage)
+                && !UserUtils.getUserManager(mContext).isQuietModeEnabled(corpHandle);
+    }
+
     private boolean isUriWhitelisted(int uriCode) {
         switch (uriCode) {
             case ContactsProvider2.PROFILE_AS_VCARD:
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.enterprise;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Results of phone lookups in the work profile, kept in the personal profile's provider.
+ *
+ * <p>Caller ID looks up the number of every incoming call, and when it belongs to a work contact
+ * each lookup is a cross-user query of the work profile's provider.  The rows it returned are
+ * remembered here, per calling package and query, so that repeated lookups of the same number
+ * don't cross the user boundary again.
+ *
+ * <p>The work provider decides what a package may see with {@link EnterprisePolicyGuard}, so an
+ * entry is only valid for the package it was fetched for, and the provider checks the policy
+ * again before using one.  All entries are dropped by {@link #invalidateAll}, which the provider
+ * calls when the work profile's contacts change, when the work profile comes or goes and when
+ * the device policy changes.  Entries also expire after {@link #ENTRY_TIMEOUT_MILLIS}, which
+ * bounds how stale they can be if a notification is missed.  A lookup only stores its result if
+ * no invalidation happened since it started, see {@link #getGeneration}.
+ *
+ * <p>This class is thread-safe.
+ */
+public class WorkProfileLookupCache {
+
+    public static final int MAX_ENTRIES = 64;
+
+    /** Results with more rows than this are not remembered; caller ID only reads the first. */
+    public static final int MAX_ROWS = 8;
+
+    public static final long ENTRY_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    private static final class Entry {
+        final String[] columnNames;
+        final Object[][] rows;
+        final long createdMillis;
+
+        Entry(String[] columnNames, Object[][] rows, long createdMillis) {
+            this.columnNames = columnNames;
+            this.rows = rows;
+            this.createdMillis = createdMillis;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    // All guarded by mLock.
+    private final LruCache<String, Entry> mEntries = new LruCache<>(MAX_ENTRIES);
+    private long mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+    private long mInvalidatedCount;
+
+    /**
+     * Returns the key of a lookup.  Everything the work provider bases its answer on is part of
+     * it, including the calling package its policy is checked against.
+     */
+    public static String buildKey(String callingPackage, int corpUserId, Uri localUri,
+            String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(callingPackage).append('\u0000')
+                .append(corpUserId).append('\u0000')
+                .append(localUri).append('\u0000')
+                .append(Arrays.toString(projection)).append('\u0000')
+                .append(selection).append('\u0000')
+                .append(Arrays.toString(selectionArgs)).append('\u0000')
+                .append(sortOrder);
+        return sb.toString();
+    }
+
+    /**
+     * Returns the current generation, which a lookup must pass back to {@link #put}.
+     */
+    public long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Returns a new cursor with the rows of a cached lookup, or null if it is not cached.
+     */
+    public Cursor get(String key) {
+        final Entry entry;
+        synchronized (mLock) {
+            final Entry cached = mEntries.get(key);
+            if (cached == null || uptimeMillis() - cached.createdMillis > ENTRY_TIMEOUT_MILLIS) {
+                if (cached != null) {
+                    mEntries.remove(key);
+                }
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+            entry = cached;
+        }
+        final MatrixCursor cursor = new MatrixCursor(entry.columnNames, entry.rows.length);
+        for (Object[] row : entry.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Remembers the rows of a lookup, unless there are too many of them.
+     *
+     * <p>The cursor is read to the end if it is remembered, so the caller must use the returned
+     * cursor instead, and the given one is closed.
+     *
+     * @param generation the value of {@link #getGeneration} when the lookup started
+     * @return a cursor with the same rows as the given one
+     */
+    public Cursor put(String key, Cursor cursor, long generation) {
+        if (cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+        final String[] columnNames = cursor.getColumnNames();
+        final Object[][] rows = new Object[cursor.getCount()][];
+        try {
+            cursor.moveToPosition(-1);
+            for (int i = 0; i < rows.length && cursor.moveToNext(); i++) {
+                rows[i] = readRow(cursor, columnNames.length);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mEntries.put(key, new Entry(columnNames, rows, uptimeMillis()));
+            }
+            // Otherwise the work profile or the policy changed under the lookup.
+        }
+        final MatrixCursor result = new MatrixCursor(columnNames, rows.length);
+        for (Object[] row : rows) {
+            result.addRow(row);
+        }
+        return result;
+    }
+
+    public void invalidateAll() {
+        synchronized (mLock) {
+            mGeneration++;
+            mInvalidatedCount += mEntries.size();
+            mEntries.evictAll();
+        }
+    }
+
+    private static Object[] readRow(Cursor cursor, int columnCount) {
+        final Object[] row = new Object[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    row[i] = null;
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    row[i] = cursor.getString(i);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix);
+            pw.printf("Work profile lookup cache: size=%d  hits=%d  misses=%d  invalidated=%d\n",
+                    mEntries.size(), mHitCount, mMissCount, mInvalidatedCount);
+        }
+    }
+
+    @VisibleForTesting
+    protected long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+}
@@ -24,7 +24,6 @@ import com.android.providers.contacts.AbstractContactsProvider;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
 /**
@@ -39,6 +38,25 @@ public class SqlChecker {
 
     private final ArraySet<String> mInvalidTokens;
 
+    /**
+     * Open addressing hash table of {@link #mInvalidTokens}, with a size that is a power of two
+     * at least twice the number of tokens, so that unquoted tokens can be looked up directly in
+     * the SQL without extracting and lowercasing them.
+     */
+    private final String[] mInvalidTokenTable;
+
+    private final TokenVisitor mNoInvalidTokensVisitor = new TokenVisitor() {
+        @Override
+        public void onToken(String sql, int start, int end) {
+            throwIfContainsToken(sql, start, end);
+        }
+
+        @Override
+        public void onQuotedToken(String sql, String token) {
+            throwIfContainsToken(token, sql);
+        }
+    };
+
     /**
      * Create a new instance with given invalid tokens.
      */
@@ -48,6 +66,20 @@ public class SqlChecker {
         for (int i = invalidTokens.size() - 1; i >= 0; i--) {
             mInvalidTokens.add(invalidTokens.get(i).toLowerCase());
         }
+
+        int tableSize = 16;
+        while (tableSize < mInvalidTokens.size() * 2) {
+            tableSize <<= 1;
+        }
+        mInvalidTokenTable = new String[tableSize];
+        for (int i = 0; i < mInvalidTokens.size(); i++) {
+            final String token = mInvalidTokens.valueAt(i);
+            int slot = hashLowerCase(token, 0, token.length()) & (tableSize - 1);
+            while (mInvalidTokenTable[slot] != null) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            mInvalidTokenTable[slot] = token;
+        }
         if (VERBOSE_LOGGING) {
             Log.d(TAG, "Initialized with invalid tokens: " + invalidTokens);
         }
@@ -90,11 +122,52 @@ public class SqlChecker {
         }
     }
 
+    /**
+     * Same as {@link #throwIfContainsToken(String, String)} for the unquoted token
+     * {@code sql.substring(start, end)}, which only consists of ASCII letters, digits and
+     * underscores.
+     */
+    private void throwIfContainsToken(String sql, int start, int end) {
+        if (isInvalidToken(sql, start, end)
+                || sql.regionMatches(true, start, PRIVATE_PREFIX, 0, PRIVATE_PREFIX.length())) {
+            throw genException("Detected disallowed token: " + sql.substring(start, end), sql);
+        }
+    }
+
+    private boolean isInvalidToken(String sql, int start, int end) {
+        final int length = end - start;
+        final int mask = mInvalidTokenTable.length - 1;
+        int slot = hashLowerCase(sql, start, end) & mask;
+        String token;
+        while ((token = mInvalidTokenTable[slot]) != null) {
+            if (token.length() == length && token.regionMatches(true, 0, sql, start, length)) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Hash of the given range of {@code s} with ASCII letters lowercased.
+     */
+    private static int hashLowerCase(String s, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            char ch = s.charAt(i);
+            if ('A' <= ch && ch <= 'Z') {
+                ch += 'a' - 'A';
+            }
+            hash = 31 * hash + ch;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
     /**
      * Ensure {@code sql} is valid and doesn't contain invalid tokens.
      */
     public void ensureNoInvalidTokens(@Nullable String sql) {
-        findTokens(sql, OPTION_NONE, token -> throwIfContainsToken(token, sql));
+        scanTokens(sql, OPTION_NONE, mNoInvalidTokensVisitor);
     }
 
     /**
@@ -102,16 +175,7 @@ public class SqlChecker {
      * in {@link android.content.ContentValues}.
      */
     public void ensureSingleTokenOnly(@Nullable String sql) {
-        final AtomicBoolean tokenFound = new AtomicBoolean();
-
-        findTokens(sql, OPTION_TOKEN_ONLY, token -> {
-            if (tokenFound.get()) {
-                throw genException("Multiple tokens detected", sql);
-            }
-            tokenFound.set(true);
-            throwIfContainsToken(token, sql);
-        });
-        if (!tokenFound.get()) {
+        if (scanTokens(sql, OPTION_TOKEN_ONLY, mNoInvalidTokensVisitor) == 0) {
             throw genException("Token not found", sql);
         }
     }
@@ -138,9 +202,45 @@ public class SqlChecker {
      */
     @VisibleForTesting
     static void findTokens(@Nullable String sql, int options, Consumer<String> checker) {
+        scanTokens(sql, options, new TokenVisitor() {
+            @Override
+            public void onToken(String sql, int start, int end) {
+                checker.accept(sql.substring(start, end));
+            }
+
+            @Override
+            public void onQuotedToken(String sql, String token) {
+                checker.accept(token);
+            }
+        });
+    }
+
+    /**
+     * Receives the tokens found by {@link #scanTokens}.
+     */
+    private interface TokenVisitor {
+        /**
+         * Called for an unquoted token, {@code sql.substring(start, end)}.
+         */
+        void onToken(String sql, int start, int end);
+
+        /**
+         * Called for a quoted token, with the quotes removed.
+         */
+        void onQuotedToken(String sql, String token);
+    }
+
+    /**
+     * Tokenizer behind {@link #findTokens}.  Unquoted tokens are reported as ranges of the SQL,
+     * so that scanning SQL without quoted tokens doesn't allocate.
+     *
+     * @return the number of tokens found
+     */
+    private static int scanTokens(@Nullable String sql, int options, TokenVisitor visitor) {
         if (sql == null) {
-            return;
+            return 0;
         }
+        int tokenCount = 0;
         int pos = 0;
         final int len = sql.length();
         while (pos < len) {
@@ -155,8 +255,8 @@ public class SqlChecker {
                 }
                 final int end = pos;
 
-                final String token = sql.substring(start, end);
-                checker.accept(token);
+                checkTokenCount(++tokenCount, options, sql);
+                visitor.onToken(sql, start, end);
 
                 continue;
             }
@@ -193,7 +293,8 @@ public class SqlChecker {
                     } else {
                         token = tokenUnquoted;
                     }
-                    checker.accept(token);
+                    checkTokenCount(++tokenCount, options, sql);
+                    visitor.onQuotedToken(sql, token);
                 } else {
                     if ((options &= OPTION_TOKEN_ONLY) != 0) {
                         throw genException("Non-token detected", sql);
@@ -215,7 +316,8 @@ public class SqlChecker {
 
                 final String token = sql.substring(quoteStart + 1, quoteEnd);
 
-                checker.accept(token);
+                checkTokenCount(++tokenCount, options, sql);
+                visitor.onQuotedToken(sql, token);
                 continue;
             }
             if ((options &= OPTION_TOKEN_ONLY) != 0) {
@@ -255,5 +357,12 @@ public class SqlChecker {
             // but that should be fine...)
             pos++;
         }
+        return tokenCount;
+    }
+
+    private static void checkTokenCount(int tokenCount, int options, String sql) {
+        if (tokenCount > 1 && (options & OPTION_TOKEN_ONLY) != 0) {
+            throw genException("Multiple tokens detected", sql);
+        }
     }
 }
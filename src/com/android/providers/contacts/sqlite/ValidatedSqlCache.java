@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.sqlite;
+
+import android.util.LruCache;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * SQL fragments (selections, sort orders, column names) that passed validation by
+ * {@link SqlChecker}, per caller package, so that apps sending the same queries again and again
+ * don't have them tokenized every time.
+ *
+ * <p>Each package gets its own bounded set, so one app can't evict the fragments of the others.
+ * Only valid fragments are remembered; invalid ones are checked and reported every time.
+ *
+ * <p>This class is thread-safe.
+ */
+public class ValidatedSqlCache {
+
+    public static final int MAX_PACKAGES = 16;
+
+    public static final int MAX_FRAGMENTS_PER_PACKAGE = 64;
+
+    /** Longer fragments are validated every time, they are unlikely to be sent again as is. */
+    public static final int MAX_FRAGMENT_LENGTH = 1024;
+
+    private final String mName;
+
+    private final Object mLock = new Object();
+
+    // All guarded by mLock.
+    private final LruCache<String, LruCache<String, Boolean>> mFragments =
+            new LruCache<>(MAX_PACKAGES);
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * @param name the name of the cache in {@link #dump}
+     */
+    public ValidatedSqlCache(String name) {
+        mName = name;
+    }
+
+    /**
+     * Returns whether {@code fragment} was validated for the given package.
+     */
+    public boolean contains(String callerPackage, String fragment) {
+        synchronized (mLock) {
+            final LruCache<String, Boolean> fragments = mFragments.get(nonNull(callerPackage));
+            if (fragments == null || fragments.get(fragment) == null) {
+                mMissCount++;
+                return false;
+            }
+            mHitCount++;
+            return true;
+        }
+    }
+
+    /**
+     * Remembers that {@code fragment} passed validation for the given package.
+     */
+    public void add(String callerPackage, String fragment) {
+        if (fragment.length() > MAX_FRAGMENT_LENGTH) {
+            return;
+        }
+        synchronized (mLock) {
+            final String key = nonNull(callerPackage);
+            LruCache<String, Boolean> fragments = mFragments.get(key);
+            if (fragments == null) {
+                fragments = new LruCache<>(MAX_FRAGMENTS_PER_PACKAGE);
+                mFragments.put(key, fragments);
+            }
+            fragments.put(fragment, Boolean.TRUE);
+        }
+    }
+
+    private static String nonNull(String callerPackage) {
+        return callerPackage == null ? "" : callerPackage;
+    }
+
+    @VisibleForTesting
+    long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.printf("%s: packages=%d  hits=%d  misses=%d\n",
+                    mName, mFragments.size(), mHitCount, mMissCount);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.contacts.util;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Per-phase timing of the work done by ContactsProvider2 when a transaction commits.
+ *
+ * <p>A commit calls {@link #beginCommit}, then {@link #beginPhase}/{@link #endPhase} around each
+ * phase, and finally {@link #endCommit}. Each phase is also emitted as a trace section. Rolling
+ * aggregates over all commits since the last reset are printed by {@link #dump}.
+ *
+ * <p>Only used on the thread holding the database lock, but dump() may come from any thread.
+ */
+public class CommitStats {
+
+    public interface Phase {
+        int FLUSH = 0;
+        int AGGREGATE = 1;
+        int UPDATE_VISIBLE = 2;
+        int INVALIDATE_FAST_SCROLL = 3;
+        int SEARCH_INDEX = 4;
+        int PROVIDER_STATUS = 5;
+        int COUNT = 6;
+    }
+
+    private static final String[] PHASE_NAMES = {
+            "flushTransactionalChanges",
+            "aggregateInTransaction",
+            "updateAllVisible",
+            "invalidateFastScrollingIndexCache",
+            "updateSearchIndexInTransaction",
+            "updateProviderStatus",
+    };
+
+    private static final String TRACE_PREFIX = "ContactsCommit.";
+
+    private final Object mLock = new Object();
+
+    // Rolling aggregates, guarded by mLock.
+    private long mCommitCount;
+    private long mTotalCommitNanos;
+    private long mMaxCommitNanos;
+    private final long[] mPhaseCount = new long[Phase.COUNT];
+    private final long[] mPhaseTotalNanos = new long[Phase.COUNT];
+    private final long[] mPhaseMaxNanos = new long[Phase.COUNT];
+    private long mRawContactsFlushed;
+    private long mContactsAggregated;
+    private long mSearchRowsRebuilt;
+
+    // State of the commit in progress.
+    private long mCommitStartNanos;
+    private int mCurrentPhase = -1;
+    private long mPhaseStartNanos;
+    private final long[] mCurrentPhaseNanos = new long[Phase.COUNT];
+
+    public void beginCommit() {
+        mCommitStartNanos = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < Phase.COUNT; i++) {
+            mCurrentPhaseNanos[i] = -1;
+        }
+    }
+
+    public void beginPhase(int phase) {
+        mCurrentPhase = phase;
+        Trace.beginSection(TRACE_PREFIX + PHASE_NAMES[phase]);
+        mPhaseStartNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    public void endPhase() {
+        if (mCurrentPhase < 0) {
+            return;
+        }
+        mCurrentPhaseNanos[mCurrentPhase] = SystemClock.elapsedRealtimeNanos() - mPhaseStartNanos;
+        mCurrentPhase = -1;
+        Trace.endSection();
+    }
+
+    /**
+     * Finishes the commit in progress and folds it into the aggregates.
+     */
+    public void endCommit(int rawContactsFlushed, int contactsAggregated, int searchRowsRebuilt) {
+        final long commitNanos = SystemClock.elapsedRealtimeNanos() - mCommitStartNanos;
+        synchronized (mLock) {
+            mCommitCount++;
+            mTotalCommitNanos += commitNanos;
+            mMaxCommitNanos = Math.max(mMaxCommitNanos, commitNanos);
+            for (int i = 0; i < Phase.COUNT; i++) {
+                final long phaseNanos = mCurrentPhaseNanos[i];
+                if (phaseNanos < 0) {
+                    continue; // The phase was skipped in this commit.
+                }
+                mPhaseCount[i]++;
+                mPhaseTotalNanos[i] += phaseNanos;
+                mPhaseMaxNanos[i] = Math.max(mPhaseMaxNanos[i], phaseNanos);
+            }
+            mRawContactsFlushed += rawContactsFlushed;
+            mContactsAggregated += contactsAggregated;
+            mSearchRowsRebuilt += searchRowsRebuilt;
+        }
+    }
+
+    public void reset() {
+        synchronized (mLock) {
+            mCommitCount = 0;
+            mTotalCommitNanos = 0;
+            mMaxCommitNanos = 0;
+            for (int i = 0; i < Phase.COUNT; i++) {
+                mPhaseCount[i] = 0;
+                mPhaseTotalNanos[i] = 0;
+                mPhaseMaxNanos[i] = 0;
+            }
+            mRawContactsFlushed = 0;
+            mContactsAggregated = 0;
+            mSearchRowsRebuilt = 0;
+        }
+    }
+
+    @VisibleForTesting
+    public long getCommitCount() {
+        synchronized (mLock) {
+            return mCommitCount;
+        }
+    }
+
+    @VisibleForTesting
+    public long getPhaseCount(int phase) {
+        synchronized (mLock) {
+            return mPhaseCount[phase];
+        }
+    }
+
+    @VisibleForTesting
+    public long getContactsAggregated() {
+        synchronized (mLock) {
+            return mContactsAggregated;
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix);
+            pw.printf("Commits: n=%d  avg=%dus  max=%dus  raw contacts flushed=%d"
+                            + "  raw contacts aggregated=%d  search rows rebuilt=%d\n",
+                    mCommitCount, safeDiv(mTotalCommitNanos, mCommitCount) / 1000,
+                    mMaxCommitNanos / 1000, mRawContactsFlushed, mContactsAggregated,
+                    mSearchRowsRebuilt);
+            for (int i = 0; i < Phase.COUNT; i++) {
+                pw.print(prefix);
+                pw.printf("  %s: n=%d  total=%dms (%d%%)  avg=%dus  max=%dus\n",
+                        PHASE_NAMES[i], mPhaseCount[i], mPhaseTotalNanos[i] / 1000000,
+                        safeDiv(mPhaseTotalNanos[i] * 100, mTotalCommitNanos),
+                        safeDiv(mPhaseTotalNanos[i], mPhaseCount[i]) / 1000,
+                        mPhaseMaxNanos[i] / 1000);
+            }
+        }
+    }
+
+    private static long safeDiv(long dividend, long divisor) {
+        return (divisor == 0) ? 0 : dividend / divisor;
+    }
+}
@@ -19,6 +19,7 @@ import android.content.ContentValues;
 import android.database.DatabaseUtils;
 import android.text.TextUtils;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -81,6 +82,49 @@ public class DbQueryUtils {
         return builder.toString();
     }
 
+    /**
+     * Returns the bind args of the first part of a statement followed by those of the second
+     * part.  Either array may be null.
+     */
+    public static String[] concatenateSelectionArgs(String[] first, String[] second) {
+        if (first == null || first.length == 0) {
+            return second;
+        }
+        if (second == null || second.length == 0) {
+            return first;
+        }
+        final String[] result = new String[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * Appends a parenthesized list of bind arg placeholders for an IN clause, and adds the
+     * values to {@code args}.
+     *
+     * The number of placeholders is rounded up to a power of two by repeating the last value,
+     * which doesn't change the result of the IN clause, so that lists of similar lengths
+     * produce the same SQL and can share a prepared statement.
+     *
+     * @param values The values of the list, must not be empty.
+     */
+    public static void appendInListWithBindArgs(StringBuilder sb, List<String> values,
+            List<String> args) {
+        final int count = values.size();
+        final int bucketSize = Integer.highestOneBit(count) == count
+                ? count : Integer.highestOneBit(count) << 1;
+        sb.append('(');
+        for (int i = 0; i < bucketSize; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('?');
+            args.add(values.get(Math.min(i, count - 1)));
+        }
+        sb.append(')');
+    }
+
     /**
      * Checks if the given ContentValues contains values within the projection
      * map.
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.contacts.util;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.PriorityQueue;
+
+/**
+ * Always-on latency statistics for provider entry points, keyed by operation type and URI
+ * match code. Keeps a latency histogram, a lock wait histogram and a row count per key, plus the
+ * slowest operations seen since the last reset. Everything is printed by {@link #dump}.
+ */
+public class OperationStats {
+
+    public interface OperationType {
+        int QUERY = 0;
+        int INSERT = 1;
+        int UPDATE = 2;
+        int DELETE = 3;
+        int APPLY_BATCH = 4;
+        int BULK_INSERT = 5;
+        int OPEN_ASSET_FILE = 6;
+    }
+
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "update", "delete", "applyBatch", "bulkInsert", "openAssetFile"
+    };
+
+    /** Pass to dump() to reset the statistics after they've been printed. */
+    public static final String DUMP_ARG_RESET = "--reset-stats";
+
+    /** URI match code used for operations which are not tied to a single URI. */
+    public static final int NO_MATCH = -1;
+
+    private static final int DEFAULT_SLOW_OPERATION_COUNT = 20;
+
+    private static final int MAX_SQL_SHAPE_LENGTH = 256;
+
+    /** Lock wait of an operation recorded by a provider which doesn't measure it. */
+    private static final long NO_LOCK_WAIT = -1;
+
+    /**
+     * Total time each thread has spent waiting for the database lock. Callers take a snapshot
+     * before an operation and pass it to {@link #record}, which also works for nested operations
+     * such as the inserts performed by a bulk insert.
+     */
+    private static final ThreadLocal<long[]> sThreadLockWaitNanos =
+            ThreadLocal.withInitial(() -> new long[1]);
+
+    private final Object mLock = new Object();
+    private final int mMaxSlowOperations;
+
+    // Key is built by makeKey() from the operation type and the URI match code.
+    private final SparseArray<Entry> mEntries = new SparseArray<>();
+    private final PriorityQueue<SlowOperation> mSlowOperations = new PriorityQueue<>();
+
+    private long mStartedAt = System.currentTimeMillis();
+
+    public OperationStats() {
+        this(DEFAULT_SLOW_OPERATION_COUNT);
+    }
+
+    @VisibleForTesting
+    public OperationStats(int maxSlowOperations) {
+        mMaxSlowOperations = maxSlowOperations;
+    }
+
+    /**
+     * Adds time spent by the current thread waiting to acquire the database lock.
+     */
+    public static void addLockWait(long nanos) {
+        sThreadLockWaitNanos.get()[0] += nanos;
+    }
+
+    /**
+     * Returns the total lock wait of the current thread, to be passed to {@link #record}.
+     */
+    public static long getThreadLockWaitNanos() {
+        return sThreadLockWaitNanos.get()[0];
+    }
+
+    /**
+     * Records a finished operation for a provider which doesn't track lock waits. No lock wait
+     * is recorded or dumped for it.
+     */
+    public void record(int operationType, int match, long startNanos, int rows,
+            String selection, String sortOrder) {
+        recordInternal(operationType, match, startNanos, NO_LOCK_WAIT, rows, selection,
+                sortOrder);
+    }
+
+    /**
+     * Records a finished operation.
+     *
+     * @param startNanos {@link SystemClock#elapsedRealtimeNanos()} at the start of the operation
+     * @param lockWaitStartNanos {@link #getThreadLockWaitNanos()} at the start of the operation
+     * @param selection only used to describe the operation if it makes it into the slow list
+     * @param sortOrder only used to describe the operation if it makes it into the slow list
+     */
+    public void record(int operationType, int match, long startNanos, long lockWaitStartNanos,
+            int rows, String selection, String sortOrder) {
+        recordInternal(operationType, match, startNanos,
+                (getThreadLockWaitNanos() - lockWaitStartNanos) / 1000, rows, selection,
+                sortOrder);
+    }
+
+    private void recordInternal(int operationType, int match, long startNanos,
+            long lockWaitMicros, int rows, String selection, String sortOrder) {
+        final long durationMicros = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+        final int key = makeKey(operationType, match);
+        synchronized (mLock) {
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(key, entry);
+            }
+            entry.latency.add(durationMicros);
+            if (lockWaitMicros != NO_LOCK_WAIT) {
+                entry.lockWait.add(lockWaitMicros);
+            }
+            entry.rows += rows;
+
+            if (mMaxSlowOperations <= 0) {
+                return;
+            }
+            if (mSlowOperations.size() >= mMaxSlowOperations) {
+                if (mSlowOperations.peek().durationMicros >= durationMicros) {
+                    return;
+                }
+                mSlowOperations.poll();
+            }
+            mSlowOperations.add(new SlowOperation(System.currentTimeMillis(), operationType,
+                    match, durationMicros, lockWaitMicros, rows,
+                    getSqlShape(selection, sortOrder)));
+        }
+    }
+
+    public void reset() {
+        synchronized (mLock) {
+            mEntries.clear();
+            mSlowOperations.clear();
+            mStartedAt = System.currentTimeMillis();
+        }
+    }
+
+    @VisibleForTesting
+    public LatencyHistogram getLatencyHistogram(int operationType, int match) {
+        synchronized (mLock) {
+            final Entry entry = mEntries.get(makeKey(operationType, match));
+            return entry == null ? null : entry.latency;
+        }
+    }
+
+    @VisibleForTesting
+    public int getSlowOperationCount() {
+        synchronized (mLock) {
+            return mSlowOperations.size();
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        final SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+        synchronized (mLock) {
+            pw.print(prefix);
+            pw.print("Operation latency since ");
+            pw.print(format.format(new Date(mStartedAt)));
+            pw.println(" (us):");
+            for (int i = 0; i < mEntries.size(); i++) {
+                final int key = mEntries.keyAt(i);
+                final Entry entry = mEntries.valueAt(i);
+                pw.print(prefix);
+                pw.print("  ");
+                pw.print(getOperationName(key >>> 24));
+                pw.print(" match=");
+                pw.print(getMatch(key));
+                pw.print(": n=");
+                pw.print(entry.latency.getCount());
+                pw.print(" p50=");
+                pw.print(entry.latency.getPercentile(50));
+                pw.print(" p90=");
+                pw.print(entry.latency.getPercentile(90));
+                pw.print(" p99=");
+                pw.print(entry.latency.getPercentile(99));
+                pw.print(" max=");
+                pw.print(entry.latency.getMax());
+                pw.print(" rows=");
+                pw.print(entry.rows);
+                if (entry.lockWait.getCount() > 0) {
+                    pw.print(" lockWait p99=");
+                    pw.print(entry.lockWait.getPercentile(99));
+                    pw.print(" max=");
+                    pw.print(entry.lockWait.getMax());
+                }
+                pw.println();
+            }
+
+            pw.print(prefix);
+            pw.println("Slowest operations:");
+            final ArrayList<SlowOperation> slowOperations = new ArrayList<>(mSlowOperations);
+            Collections.sort(slowOperations, Collections.reverseOrder());
+            for (SlowOperation op : slowOperations) {
+                pw.print(prefix);
+                pw.print("  ");
+                pw.print(format.format(new Date(op.timestamp)));
+                pw.print(" ");
+                pw.print(getOperationName(op.operationType));
+                pw.print(" match=");
+                pw.print(op.match);
+                pw.print(" time=");
+                pw.print(op.durationMicros);
+                pw.print("us");
+                if (op.lockWaitMicros != NO_LOCK_WAIT) {
+                    pw.print(" lockWait=");
+                    pw.print(op.lockWaitMicros);
+                    pw.print("us");
+                }
+                pw.print(" rows=");
+                pw.print(op.rows);
+                if (op.sqlShape != null) {
+                    pw.print(" sql=[");
+                    pw.print(op.sqlShape);
+                    pw.print("]");
+                }
+                pw.println();
+            }
+        }
+    }
+
+    private static int makeKey(int operationType, int match) {
+        return (operationType << 24) | (match & 0xFFFFFF);
+    }
+
+    private static int getMatch(int key) {
+        final int match = key & 0xFFFFFF;
+        return match == 0xFFFFFF ? NO_MATCH : match;
+    }
+
+    private static String getOperationName(int operationType) {
+        return operationType >= 0 && operationType < OPERATION_NAMES.length
+                ? OPERATION_NAMES[operationType] : String.valueOf(operationType);
+    }
+
+    /**
+     * Returns the selection and sort order with all string and numeric literals replaced by
+     * "?", so that the log shows the shape of the query without any user data.
+     */
+    @VisibleForTesting
+    public static String getSqlShape(String selection, String sortOrder) {
+        if (selection == null && sortOrder == null) {
+            return null;
+        }
+        final CappedStringBuilder sb = new CappedStringBuilder(MAX_SQL_SHAPE_LENGTH);
+        if (selection != null) {
+            appendWithoutLiterals(sb, selection);
+        }
+        if (sortOrder != null) {
+            sb.append(" ORDER BY ");
+            appendWithoutLiterals(sb, sortOrder);
+        }
+        return sb.toString();
+    }
+
+    private static void appendWithoutLiterals(CappedStringBuilder sb, String sql) {
+        final int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            final char c = sql.charAt(i);
+            if (c == '\'') {
+                // Skip to the closing quote; '' is an escaped quote inside the literal.
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                sb.append('?');
+            } else if (Character.isDigit(c) && (i == 0 || !isIdentifierChar(sql.charAt(i - 1)))) {
+                while (i < length && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                sb.append('?');
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static class Entry {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram lockWait = new LatencyHistogram();
+        long rows;
+    }
+
+    private static class SlowOperation implements Comparable<SlowOperation> {
+        final long timestamp;
+        final int operationType;
+        final int match;
+        final long durationMicros;
+        final long lockWaitMicros;
+        final int rows;
+        final String sqlShape;
+
+        SlowOperation(long timestamp, int operationType, int match, long durationMicros,
+                long lockWaitMicros, int rows, String sqlShape) {
+            this.timestamp = timestamp;
+            this.operationType = operationType;
+            this.match = match;
+            this.durationMicros = durationMicros;
+            this.lockWaitMicros = lockWaitMicros;
+            this.rows = rows;
+            this.sqlShape = sqlShape;
+        }
+
+        @Override
+        public int compareTo(SlowOperation other) {
+            return Long.compare(durationMicros, other.durationMicros);
+        }
+    }
+
+    /**
+     * Log-linear histogram of non-negative values, in the spirit of HdrHistogram: values below
+     * {@link #LINEAR_LIMIT} are counted exactly, larger values go to one of
+     * {@link #SUB_BUCKETS} buckets per power of two, so each bucket is within 25% of its value.
+     * Not thread safe.
+     */
+    public static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+        private static final int MAX_EXPONENT = 40;
+        private static final int FIRST_EXPONENT = SUB_BUCKET_BITS + 1;
+        private static final int BUCKET_COUNT =
+                LINEAR_LIMIT + (MAX_EXPONENT - FIRST_EXPONENT + 1) * SUB_BUCKETS;
+
+        private final int[] mCounts = new int[BUCKET_COUNT];
+        private long mCount;
+        private long mMax;
+
+        public void add(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mCounts[getBucket(value)]++;
+            mCount++;
+            if (value > mMax) {
+                mMax = value;
+            }
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * Returns the upper bound of the bucket containing the given percentile, capped by the
+         * largest recorded value.
+         */
+        public long getPercentile(int percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long target = Math.max(1, (mCount * percentile + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mCounts[i];
+                if (seen >= target) {
+                    return Math.min(getBucketUpperBound(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        @VisibleForTesting
+        static int getBucket(long value) {
+            if (value < LINEAR_LIMIT) {
+                return (int) value;
+            }
+            final int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+            final int subBucket =
+                    (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return LINEAR_LIMIT + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long getBucketUpperBound(int bucket) {
+            if (bucket < LINEAR_LIMIT) {
+                return bucket;
+            }
+            final int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + FIRST_EXPONENT;
+            final int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+            final long base = 1L << exponent;
+            return base + (subBucket + 1) * (base >>> SUB_BUCKET_BITS) - 1;
+        }
+    }
+}
@@ -55,6 +55,41 @@ public class CallLogInsertionHelperTest extends FixedAndroidTestCase {
         checkNormalization("test@sip.org", null);
     }
 
+    /**
+     * Tests that repeated numbers are parsed and geocoded only once.
+     */
+    public void testRepeatedNumber() {
+        final PhoneNumberCache cache = ((DefaultCallLogInsertionHelper) mInsertionHelper)
+                .getPhoneNumberCacheForTest();
+        final long hitCount = cache.getHitCount();
+        final long geocodeHitCount = cache.getGeocodeHitCount();
+
+        final ContentValues first = new ContentValues();
+        first.put(Calls.NUMBER, "650-555-1213");
+        mInsertionHelper.addComputedValues(first);
+        final ContentValues second = new ContentValues();
+        second.put(Calls.NUMBER, "650-555-1213");
+        mInsertionHelper.addComputedValues(second);
+
+        assertEquals(first, second);
+        assertEquals(hitCount + 1, cache.getHitCount());
+        assertEquals(geocodeHitCount + 1, cache.getGeocodeHitCount());
+    }
+
+    /**
+     * Tests that numbers are parsed for the country they are looked up with.
+     */
+    public void testPhoneNumberCacheCountry() {
+        final PhoneNumberCache cache = new PhoneNumberCache();
+        assertEquals("+16505551212", cache.parse("650-555-1212", "US").e164Number);
+        assertEquals("+81363849000", cache.parse("03-6384-9000", "JP").e164Number);
+        assertNull(cache.parse("03-6384-9000", "US").e164Number);
+        assertNull(cache.parse(null, "US").phoneNumber);
+        assertEquals(0, cache.getHitCount());
+        assertEquals("+81363849000", cache.parse("03-6384-9000", "JP").e164Number);
+        assertEquals(1, cache.getHitCount());
+    }
+
     /**
      * Runs the DefaultCallLogInsertionHelper to determine if it produces the correct normalized
      * phone number.
@@ -50,6 +50,7 @@ import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.telephony.SubscriptionInfo;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.text.format.DateUtils;
 
 import org.junit.Assert;
 
@@ -354,6 +355,134 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         assertLastModified(uri, 1000);
     }
 
+    public void testInsert_DeferredGeocoding() {
+        mCallLogProvider.setDeferGeocodingForTest(true);
+        try {
+            final Uri uri1 = insertCallRecord();
+            final Uri uri2 = insertCallRecord();
+
+            // Waits for the task scheduled by the inserts, if it is running.
+            mCallLogProvider.performBackgroundTask(CallLogProvider.BACKGROUND_TASK_GEOCODE, null);
+
+            final ContentValues values = getDefaultCallValues();
+            values.put(Calls.COUNTRY_ISO, "us");
+            values.put(Calls.GEOCODED_LOCATION, "usa");
+            assertStoredValues(uri1, values);
+            assertStoredValues(uri2, values);
+        } finally {
+            mCallLogProvider.setDeferGeocodingForTest(false);
+        }
+    }
+
+    public void testApplyRetention() {
+        setUpWithVoicemailPermissions();
+        for (int i = 1; i <= 5; i++) {
+            final ContentValues values = getDefaultCallValues();
+            values.put(Calls.DATE, i * DateUtils.DAY_IN_MILLIS);
+            mResolver.insert(Calls.CONTENT_URI, values);
+        }
+        // Older than all of the calls, but voicemails are kept.
+        insertVoicemailRecord();
+
+        setTimeForTest(6 * DateUtils.DAY_IN_MILLIS);
+        // The first call is too old, and the second one is one too many.
+        mCallLogProvider.setRetentionForTest(4 * DateUtils.DAY_IN_MILLIS + 1, 3);
+        try {
+            mCallLogProvider.performBackgroundTask(
+                    CallLogProvider.BACKGROUND_TASK_APPLY_RETENTION, null);
+        } finally {
+            mCallLogProvider.setRetentionForTest(0, 0);
+        }
+
+        assertEquals(4, getCount(Calls.CONTENT_URI_WITH_VOICEMAIL, null, null));
+        assertEquals(0, getCount(Calls.CONTENT_URI_WITH_VOICEMAIL,
+                Calls.DATE + ">1000 AND " + Calls.DATE + "<?",
+                new String[] {String.valueOf(3 * DateUtils.DAY_IN_MILLIS)}));
+        assertEquals(1, getCount(Calls.CONTENT_URI_WITH_VOICEMAIL,
+                Calls.TYPE + "=" + Calls.VOICEMAIL_TYPE, null));
+    }
+
+    public void testListQueries_useDateIndexes() {
+        final SQLiteDatabase db =
+                mCallLogProvider.getCallLogDatabaseHelperForTest().getReadableDatabase();
+        // The restrictions CallLogProvider and VoicemailContentProvider add to list queries.
+        assertQueryPlanUsesIndex(db, "calls_visible_date_index", "SELECT * FROM calls"
+                + " WHERE (type != 4) AND (phone_account_hidden = 0) ORDER BY date DESC");
+        assertQueryPlanUsesIndex(db, "calls_voicemail_date_index", "SELECT * FROM calls"
+                + " WHERE (source_package = 'foo') AND (type = 4) ORDER BY date DESC");
+    }
+
+    private static void assertQueryPlanUsesIndex(SQLiteDatabase db, String index, String sql) {
+        final StringBuilder plan = new StringBuilder();
+        try (Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null)) {
+            while (c.moveToNext()) {
+                plan.append(c.getString(c.getColumnIndexOrThrow("detail"))).append('\n');
+            }
+        }
+        assertTrue(plan.toString(), plan.indexOf(index) >= 0);
+        assertTrue(plan.toString(), plan.indexOf("TEMP B-TREE") < 0);
+    }
+
+    public void testQuerySummary() {
+        setUpWithVoicemailPermissions();
+        final Uri first = insertCall("123", DateUtils.DAY_IN_MILLIS, 10);
+        insertCall("123", DateUtils.DAY_IN_MILLIS + 1, 20);
+        insertCall("123", 2 * DateUtils.DAY_IN_MILLIS, 30);
+        insertCall("456", 2 * DateUtils.DAY_IN_MILLIS, 40);
+        // Voicemails are only counted when asked for.
+        insertVoicemailRecord();
+
+        final Uri byNumber = CallLog.CONTENT_URI.buildUpon()
+                .appendEncodedPath(CallLogProvider.CALLS_SUMMARY_BY_NUMBER_PATH).build();
+        assertSummary(byNumber, "123", 3, 60, "456", 1, 40);
+        assertSummary(byNumber.buildUpon().appendQueryParameter(Calls.LIMIT_PARAM_KEY, "1")
+                .build(), "123", 3, 60);
+        assertSummary(byNumber.buildUpon()
+                .appendQueryParameter(CallLogProvider.SUMMARY_AFTER_COUNT_PARAM_KEY, "3")
+                .appendQueryParameter(CallLogProvider.SUMMARY_AFTER_NUMBER_PARAM_KEY, "123")
+                .build(), "456", 1, 40);
+        assertEquals(3, getCount(byNumber.buildUpon()
+                .appendQueryParameter(Calls.ALLOW_VOICEMAILS_PARAM_KEY, "true").build(),
+                null, null));
+
+        final Uri byDay = CallLog.CONTENT_URI.buildUpon()
+                .appendEncodedPath(CallLogProvider.CALLS_SUMMARY_BY_DAY_PATH).build();
+        assertSummary(byDay, "2", 2, 70, "1", 2, 30);
+        assertSummary(byDay.buildUpon()
+                .appendQueryParameter(CallLogProvider.SUMMARY_BEFORE_DAY_PARAM_KEY, "2")
+                .build(), "1", 2, 30);
+
+        // The summaries follow updates and deletes.
+        final ContentValues values = new ContentValues();
+        values.put(Calls.NUMBER, "456");
+        mResolver.update(first, values, null, null);
+        assertSummary(byNumber, "123", 2, 50, "456", 2, 50);
+        mResolver.delete(first, null, null);
+        assertSummary(byNumber, "123", 2, 50, "456", 1, 40);
+        assertSummary(byDay, "2", 2, 70, "1", 1, 20);
+    }
+
+    private Uri insertCall(String number, long date, long duration) {
+        final ContentValues values = getDefaultCallValues();
+        values.put(Calls.NUMBER, number);
+        values.put(Calls.DATE, date);
+        values.put(Calls.DURATION, duration);
+        return mResolver.insert(Calls.CONTENT_URI, values);
+    }
+
+    /** Asserts the rows of a summary, given as key, count and duration. */
+    private void assertSummary(Uri uri, Object... expected) {
+        try (Cursor c = mResolver.query(uri, null, null, null, null)) {
+            assertEquals(expected.length / 3, c.getCount());
+            for (int i = 0; i < expected.length; i += 3) {
+                assertTrue(c.moveToNext());
+                assertEquals(expected[i], c.getString(0));
+                assertEquals(((Number) expected[i + 1]).longValue(), c.getLong(1));
+                assertEquals(((Number) expected[i + 2]).longValue(), c.getLong(2));
+            }
+        }
+    }
+
     private void setUpWithVoicemailPermissions() {
         mActor.addPermissions(ADD_VOICEMAIL_PERMISSION);
         mActor.addPermissions(READ_VOICEMAIL_PERMISSION);
@@ -194,6 +194,23 @@ public class ContactLocaleUtilsTest extends FixedAndroidTestCase {
         verifyLabels(getLabels(), LABELS_ZH_TW);
     }
 
+    public void testMemoizedLookups() throws Exception {
+        setLocales(Locale.SIMPLIFIED_CHINESE);
+        assertEquals("D", getLabel(CHINESE_NAME));
+        assertEquals("D", getLabel(CHINESE_NAME));
+        verifyKeys(getNameLookupKeys(CHINESE_NAME, FullNameStyle.CHINESE), CHINESE_NAME_KEY);
+        verifyKeys(getNameLookupKeys(CHINESE_NAME, FullNameStyle.CHINESE), CHINESE_NAME_KEY);
+        assertEquals(2, mTargetUtils.getNameCacheHitCount());
+
+        // Lookup keys depend on the name style, so they must not be shared across styles.
+        assertNull(getNameLookupKeys(CHINESE_NAME, FullNameStyle.KOREAN));
+
+        // A new locale set starts with fresh caches.
+        setLocales(Locale.TRADITIONAL_CHINESE);
+        assertEquals("7\u5283", getLabel(CHINESE_NAME));
+        assertEquals(0, mTargetUtils.getNameCacheHitCount());
+    }
+
     public void testPinyinEnabledSecondaryLocale() throws Exception {
         setLocales(Locale.ENGLISH, Locale.SIMPLIFIED_CHINESE);
         assertEquals("D", getLabel(CHINESE_NAME));
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.provider.ContactsContract.PinnedPositions;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ContactSearchRanker}.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.android.providers.contacts.ContactSearchRankerTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@SmallTest
+public class ContactSearchRankerTest extends TestCase {
+
+    private static final int UNPINNED = PinnedPositions.UNPINNED;
+
+    public void testScoreByField() {
+        final ContactSearchRanker ranker = new ContactSearchRanker("jo", 10);
+        assertEquals(ContactSearchRanker.SCORE_NAME_FIRST_TOKEN,
+                ranker.score("John Doe", null, false, UNPINNED));
+        assertEquals(ContactSearchRanker.SCORE_NAME_TOKEN,
+                ranker.score("Bob Jones", null, false, UNPINNED));
+        assertEquals(ContactSearchRanker.SCORE_NAME_INFIX,
+                ranker.score("Bojo Smith", null, false, UNPINNED));
+        assertEquals(ContactSearchRanker.SCORE_DATA_TOKEN,
+                ranker.score("Ann Smith", "Jojo\nAcme", false, UNPINNED));
+        assertEquals(ContactSearchRanker.SCORE_EMAIL,
+                ranker.score("Ann Smith", "Acme\njo@acme.com", false, UNPINNED));
+        assertEquals(ContactSearchRanker.SCORE_OTHER,
+                ranker.score("Ann Smith", "Acme", false, UNPINNED));
+    }
+
+    public void testScoreAccentInsensitive() {
+        final ContactSearchRanker ranker = new ContactSearchRanker("matthaus", 10);
+        assertEquals(ContactSearchRanker.SCORE_NAME_FIRST_TOKEN,
+                ranker.score("Matthäus Weber", null, false, UNPINNED));
+    }
+
+    public void testScorePhoneNumber() {
+        final ContactSearchRanker ranker = new ContactSearchRanker("555", 10);
+        assertEquals(ContactSearchRanker.SCORE_PHONE,
+                ranker.score("Ann Smith", "(860) 555-1234", false, UNPINNED));
+    }
+
+    public void testScoreUsageSignals() {
+        final ContactSearchRanker ranker = new ContactSearchRanker("jo", 10);
+        assertEquals(ContactSearchRanker.SCORE_NAME_TOKEN + ContactSearchRanker.BONUS_STARRED,
+                ranker.score("Bob Jones", null, true, UNPINNED));
+        assertEquals(ContactSearchRanker.SCORE_NAME_TOKEN + ContactSearchRanker.BONUS_PINNED,
+                ranker.score("Bob Jones", null, false, 1));
+        assertEquals(ContactSearchRanker.SCORE_NAME_TOKEN - ContactSearchRanker.BONUS_PINNED,
+                ranker.score("Bob Jones", null, false, PinnedPositions.DEMOTED));
+    }
+
+    public void testRankedContactIds() {
+        final ContactSearchRanker ranker = new ContactSearchRanker("jo", 10);
+        ranker.add(1, "Ann Smith", "Jojo", false, UNPINNED);
+        ranker.add(2, "Bob Jones", null, false, UNPINNED);
+        ranker.add(3, "John Doe", null, false, UNPINNED);
+        ranker.add(4, "Joan Smith", null, false, UNPINNED);
+        MoreAsserts.assertEquals(new long[] {3, 4, 2, 1}, ranker.getRankedContactIds());
+    }
+
+    public void testRankedContactIdsTopK() {
+        final ContactSearchRanker ranker = new ContactSearchRanker("jo", 2);
+        ranker.add(1, "Ann Smith", "Jojo", false, UNPINNED);
+        ranker.add(2, "Bob Jones", null, false, UNPINNED);
+        ranker.add(3, "John Doe", null, false, UNPINNED);
+        ranker.add(4, "Joan Smith", null, false, UNPINNED);
+        ranker.add(5, "Carl Jordan", null, true, 1);
+        MoreAsserts.assertEquals(new long[] {5, 3}, ranker.getRankedContactIds());
+    }
+
+    public void testRankedContactIdsZeroLimit() {
+        final ContactSearchRanker ranker = new ContactSearchRanker("jo", 0);
+        ranker.add(1, "John Doe", null, false, UNPINNED);
+        assertEquals(0, ranker.getRankedContactIds().length);
+    }
+}
@@ -43,6 +43,7 @@ import android.test.suitebuilder.annotation.LargeTest;
 import com.android.providers.contacts.ContactsDatabaseHelper.AccountsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.AggregatedPresenceColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.AggregationExceptionColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.ChangeLogColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.ContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.DataColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.DataUsageStatColumns;
@@ -357,6 +358,13 @@ public class ContactsDatabaseHelperUpgradeTest extends BaseDatabaseHelperUpgrade
             new TableColumn(DeletedContacts.CONTACT_DELETED_TIMESTAMP, INTEGER, true, "0"),
     };
 
+    private static final TableColumn[] CHANGE_LOG_COLUMNS = new TableColumn[] {
+            new TableColumn(ChangeLogColumns._ID, INTEGER, false, null),
+            new TableColumn(ChangeLogColumns.RAW_CONTACT_ID, INTEGER, true, null),
+            new TableColumn(ChangeLogColumns.CHANGE_TYPE, INTEGER, true, null),
+            new TableColumn(ChangeLogColumns.CHANGE_TIMESTAMP, INTEGER, true, null),
+    };
+
     private static final TableColumn[] RAW_CONTACTS_COLUMNS = new TableColumn[] {
             new TableColumn(RawContacts._ID, INTEGER, false, null),
             new TableColumn(RawContactsColumns.ACCOUNT_ID, INTEGER, false, null),
@@ -656,6 +664,7 @@ public class ContactsDatabaseHelperUpgradeTest extends BaseDatabaseHelperUpgrade
             new TableListEntry(Tables.ACCOUNTS, ACCOUNTS_COLUMNS),
             new TableListEntry(Tables.CONTACTS, CONTACTS_COLUMNS),
             new TableListEntry(Tables.DELETED_CONTACTS, DELETED_CONTACTS_COLUMNS),
+            new TableListEntry(Tables.CHANGE_LOG, CHANGE_LOG_COLUMNS),
             new TableListEntry(Tables.RAW_CONTACTS, RAW_CONTACTS_COLUMNS),
             new TableListEntry(Tables.STREAM_ITEMS, STREAM_ITEMS_COLUMNS),
             new TableListEntry(Tables.STREAM_ITEM_PHOTOS, STREAM_ITEM_PHOTOS_COLUMNS),
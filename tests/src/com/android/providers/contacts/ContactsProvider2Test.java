@@ -23,6 +23,7 @@ import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.when;
 
 import android.accounts.Account;
+import android.app.admin.DevicePolicyManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentProviderOperation;
@@ -89,12 +90,15 @@ import com.android.providers.contacts.ContactsActor.AlteringUserContext;
 import com.android.providers.contacts.ContactsActor.MockUserManager;
 import com.android.providers.contacts.ContactsDatabaseHelper.AccountsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.AggregationExceptionColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.ChangeLogColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.ContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.DataUsageStatColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.DbProperties;
 import com.android.providers.contacts.ContactsDatabaseHelper.PresenceColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.database.ChangeLogTableUtil;
+import com.android.providers.contacts.database.DeletedContactsTableUtil;
 import com.android.providers.contacts.tests.R;
 import com.android.providers.contacts.testutil.CommonDatabaseUtils;
 import com.android.providers.contacts.testutil.ContactUtil;
@@ -1240,6 +1244,59 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertNetworkNotified(true);
     }
 
+    public void testRawContactsAndDataBulkInsert() {
+        final int count = 3;
+        final ContentValues[] rawContacts = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            rawContacts[i] = new ContentValues();
+            rawContacts[i].put(RawContacts.ACCOUNT_NAME, "a");
+            rawContacts[i].put(RawContacts.ACCOUNT_TYPE, "b");
+            rawContacts[i].put(RawContacts.SOURCE_ID, "bulk" + i);
+        }
+        assertEquals(count, mResolver.bulkInsert(RawContacts.CONTENT_URI, rawContacts));
+        assertNetworkNotified(true);
+
+        // Rows with different column sets, which need different insert statements.
+        final ContentValues[] data = new ContentValues[count * 2];
+        for (int i = 0; i < count; i++) {
+            final long rawContactId = queryRawContactIdBySourceId("bulk" + i);
+            data[i * 2] = new ContentValues();
+            data[i * 2].put(Data.RAW_CONTACT_ID, rawContactId);
+            data[i * 2].put(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
+            data[i * 2].put(StructuredName.GIVEN_NAME, "Bulk" + i);
+            data[i * 2 + 1] = new ContentValues();
+            data[i * 2 + 1].put(Data.RAW_CONTACT_ID, rawContactId);
+            data[i * 2 + 1].put(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+            data[i * 2 + 1].put(Phone.NUMBER, "555-000" + i);
+            data[i * 2 + 1].put(Phone.TYPE, Phone.TYPE_HOME);
+            data[i * 2 + 1].put(Data.IS_PRIMARY, 1);
+        }
+        assertEquals(count * 2, mResolver.bulkInsert(Data.CONTENT_URI, data));
+
+        for (int i = 0; i < count; i++) {
+            final long rawContactId = queryRawContactIdBySourceId("bulk" + i);
+            final long contactId = queryContactId(rawContactId);
+            assertStoredValue(ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId),
+                    Contacts.DISPLAY_NAME, "Bulk" + i);
+            assertStoredValue(Phone.CONTENT_URI, Phone.RAW_CONTACT_ID + "=" + rawContactId, null,
+                    Phone.NUMBER, "555-000" + i);
+            assertStoredValue(Phone.CONTENT_URI, Phone.RAW_CONTACT_ID + "=" + rawContactId, null,
+                    Data.IS_PRIMARY, 1);
+        }
+    }
+
+    private long queryRawContactIdBySourceId(String sourceId) {
+        final Cursor c = mResolver.query(RawContacts.CONTENT_URI,
+                new String[] {RawContacts._ID}, RawContacts.SOURCE_ID + "=?",
+                new String[] {sourceId}, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
     public void testDataDirectoryWithLookupUri() {
         ContentValues values = new ContentValues();
 
@@ -1267,6 +1324,48 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertDataRows(dataUri, values);
     }
 
+    public void testLookupKeyCacheInvalidatedByAggregation() {
+        final long rawContactId1 = RawContactUtil.createRawContact(mResolver, TestUtil.ACCOUNT_1,
+                RawContacts.SOURCE_ID, "src1");
+        DataUtil.insertStructuredName(mResolver, rawContactId1, "John", "Doe");
+        final long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Bob",
+                "Jackson", TestUtil.ACCOUNT_2);
+        final String lookupKey = queryLookupKey(queryContactId(rawContactId1));
+        final Uri lookupUri = Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI, lookupKey);
+
+        final LookupKeyCache cache = getContactsProvider().getLookupKeyCacheForTest();
+        final long hits = cache.getHitCount();
+        assertEquals(queryContactId(rawContactId1), queryContactIdByLookupUri(lookupUri));
+        assertEquals(queryContactId(rawContactId1), queryContactIdByLookupUri(lookupUri));
+        assertEquals(hits + 1, cache.getHitCount());
+
+        // Joining and splitting reassign the raw contact, which drops the cached contact ID.
+        setAggregationException(
+                AggregationExceptions.TYPE_KEEP_TOGETHER, rawContactId2, rawContactId1);
+        assertEquals(queryContactId(rawContactId1), queryContactIdByLookupUri(lookupUri));
+        assertEquals(hits + 1, cache.getHitCount());
+
+        setAggregationException(
+                AggregationExceptions.TYPE_KEEP_SEPARATE, rawContactId2, rawContactId1);
+        assertEquals(queryContactId(rawContactId1), queryContactIdByLookupUri(lookupUri));
+        assertEquals(hits + 1, cache.getHitCount());
+
+        // Unrelated changes keep it.
+        RawContactUtil.createRawContactWithName(mResolver, "Joan", "Smith");
+        assertEquals(queryContactId(rawContactId1), queryContactIdByLookupUri(lookupUri));
+        assertEquals(hits + 2, cache.getHitCount());
+    }
+
+    private long queryContactIdByLookupUri(Uri lookupUri) {
+        Cursor c = mResolver.query(lookupUri, new String[] {Contacts._ID}, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
     private void assertDataRows(Uri dataUri, ContentValues values) {
         Cursor cursor = mResolver.query(dataUri, new String[]{ Data.DATA1 }, null, null, Data._ID);
         assertEquals(3, cursor.getCount());
@@ -2568,6 +2667,74 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         }
     }
 
+    /**
+     * Test for enterprise caller-id with the work profile lookup cache.
+     */
+    public void testPhoneLookupEnterprise_withCorpProfile_cached() throws Exception {
+        final SynchronousContactsProvider2 provider = (SynchronousContactsProvider2) getProvider();
+        provider.setObserveCorpContacts(true);
+        final SynchronousContactsProvider2 corpCp2 = setUpCorpProvider();
+
+        final Uri uri = Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI,
+                "408-222-2222");
+        final long rawContactId = ContentUris.parseId(
+                corpCp2.insert(RawContacts.CONTENT_URI, new ContentValues()));
+        corpCp2.insert(ContactsContract.Data.CONTENT_URI, cv(
+                Data.RAW_CONTACT_ID, rawContactId,
+                Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE,
+                StructuredName.DISPLAY_NAME, "Contact3 Corp"));
+        corpCp2.insert(ContactsContract.Data.CONTENT_URI, cv(
+                Data.RAW_CONTACT_ID, rawContactId,
+                Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE,
+                Phone.NUMBER, "408-222-2222",
+                Phone.TYPE, Phone.TYPE_HOME));
+        assertPhoneLookupDisplayName(uri, "Contact3 Corp");
+
+        // Rename the contact in the corp CP2, without notifying the primary CP2.
+        final ContentValues values = new ContentValues();
+        values.put(StructuredName.DISPLAY_NAME, "Contact4 Corp");
+        corpCp2.update(ContactsContract.Data.CONTENT_URI, values,
+                Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
+                new String[] {String.valueOf(rawContactId), StructuredName.CONTENT_ITEM_TYPE});
+
+        // The lookup is cached, and the corp contact ID is still rewritten.
+        assertPhoneLookupDisplayName(uri, "Contact3 Corp");
+
+        // A change notification from the corp CP2 drops it.
+        provider.getCorpContactsObserver().onChange(false);
+        assertPhoneLookupDisplayName(uri, "Contact4 Corp");
+
+        // So does a policy change.
+        values.put(StructuredName.DISPLAY_NAME, "Contact5 Corp");
+        corpCp2.update(ContactsContract.Data.CONTENT_URI, values,
+                Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
+                new String[] {String.valueOf(rawContactId), StructuredName.CONTENT_ITEM_TYPE});
+        assertPhoneLookupDisplayName(uri, "Contact4 Corp");
+        provider.getWorkProfileReceiverForTest().onReceive(mTestContext,
+                new Intent(DevicePolicyManager.ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED));
+        assertPhoneLookupDisplayName(uri, "Contact5 Corp");
+
+        // Cached results are not used once the caller ID policy disallows them.
+        values.put(StructuredName.DISPLAY_NAME, "Contact6 Corp");
+        corpCp2.update(ContactsContract.Data.CONTENT_URI, values,
+                Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
+                new String[] {String.valueOf(rawContactId), StructuredName.CONTENT_ITEM_TYPE});
+        provider.setCorpCallerIdAllowed(false);
+        assertPhoneLookupDisplayName(uri, "Contact6 Corp");
+    }
+
+    private void assertPhoneLookupDisplayName(Uri uri, String displayName) {
+        final Cursor c = mResolver.query(uri, null, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(displayName, c.getString(c.getColumnIndex(PhoneLookup.DISPLAY_NAME)));
+            assertTrue(Contacts.isEnterpriseContactId(
+                    c.getLong(c.getColumnIndex(PhoneLookup._ID))));
+        } finally {
+            c.close();
+        }
+    }
+
     public void testQueryRawContactEntitiesCorp_noCorpProfile() {
         mActor.addPermissions("android.permission.INTERACT_ACROSS_USERS");
 
@@ -3400,6 +3567,109 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertContactFilterNoResult("goolish");
     }
 
+    public void testQueryContactFilterWithSearchSession() {
+        RawContactUtil.createRawContactWithName(mResolver, "John", "Doe");
+        RawContactUtil.createRawContactWithName(mResolver, "Joan", "Smith");
+        RawContactUtil.createRawContactWithName(mResolver, "Bob", "Jackson");
+
+        final SearchSessionCache sessions = getContactsProvider().getSearchSessionsForTest();
+        final long hits = sessions.getHitCount();
+
+        assertEquals(3, getCount(buildSearchSessionFilterUri("j")));
+        assertEquals(2, getCount(buildSearchSessionFilterUri("jo")));
+        assertEquals(hits + 1, sessions.getHitCount());
+        assertEquals(1, getCount(buildSearchSessionFilterUri("joh")));
+        assertEquals(hits + 2, sessions.getHitCount());
+
+        // Backspace: "jo" doesn't extend "joh", so it can't use the session.
+        assertEquals(2, getCount(buildSearchSessionFilterUri("jo")));
+        assertEquals(hits + 2, sessions.getHitCount());
+
+        // Any change to the database ends the session.
+        RawContactUtil.createRawContactWithName(mResolver, "Johnny", "Walker");
+        assertEquals(2, getCount(buildSearchSessionFilterUri("joh")));
+        assertEquals(hits + 2, sessions.getHitCount());
+    }
+
+    public void testQueryContactFilterWithSearchSessionAndLimitInSortOrder() {
+        RawContactUtil.createRawContactWithName(mResolver, "John", "Doe");
+        RawContactUtil.createRawContactWithName(mResolver, "Joan", "Smith");
+
+        final SearchSessionCache sessions = getContactsProvider().getSearchSessionsForTest();
+        final long hits = sessions.getHitCount();
+        final String sortOrder = Contacts.DISPLAY_NAME + " LIMIT 1";
+
+        assertEquals(1, getCountWithSortOrder(buildSearchSessionFilterUri("j"), sortOrder));
+        // "Joan" comes first, so the session must not narrow the next query down to her.
+        assertEquals(1, getCountWithSortOrder(buildSearchSessionFilterUri("joh"), sortOrder));
+        assertEquals(hits, sessions.getHitCount());
+    }
+
+    private int getCountWithSortOrder(Uri uri, String sortOrder) {
+        final Cursor c = mResolver.query(uri, new String[] {Contacts._ID}, null, null,
+                sortOrder);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static Uri buildSearchSessionFilterUri(String filter) {
+        return Contacts.CONTENT_FILTER_URI.buildUpon().appendPath(filter)
+                .appendQueryParameter(ContactsProvider2.SEARCH_SESSION_TOKEN, "session1")
+                .build();
+    }
+
+    public void testQueryContactFilterSortedByRelevance() {
+        final long annRawContactId =
+                RawContactUtil.createRawContactWithName(mResolver, "Ann", "Smith");
+        insertNickname(annRawContactId, "Jojo");
+        final long annId = queryContactId(annRawContactId);
+        final long bobId = queryContactId(
+                RawContactUtil.createRawContactWithName(mResolver, "Bob", "Jones"));
+        final long johnId = queryContactId(
+                RawContactUtil.createRawContactWithName(mResolver, "John", "Doe"));
+
+        // First name, then last name, then nickname, whatever the sort order.
+        assertContactIdsInOrder(buildRelevanceFilterUri("jo", "10"), johnId, bobId, annId);
+        assertContactIdsInOrder(buildRelevanceFilterUri("jo", "2"), johnId, bobId);
+
+        // Without a limit the sort order is used.
+        assertContactIdsInOrder(buildRelevanceFilterUri("jo", null), annId, bobId, johnId);
+
+        // Starred contacts move up, and the sort order breaks ties.
+        final ContentValues values = new ContentValues();
+        values.put(Contacts.STARRED, 1);
+        mResolver.update(ContentUris.withAppendedId(Contacts.CONTENT_URI, bobId), values,
+                null, null);
+        assertContactIdsInOrder(buildRelevanceFilterUri("jo", "10"), bobId, johnId, annId);
+        assertContactIdsInOrder(buildRelevanceFilterUri("jon", "10"), bobId);
+    }
+
+    private static Uri buildRelevanceFilterUri(String filter, String limit) {
+        final Uri.Builder builder = Contacts.CONTENT_FILTER_URI.buildUpon().appendPath(filter)
+                .appendQueryParameter(ContactsProvider2.SORT_BY_RELEVANCE, "1");
+        if (limit != null) {
+            builder.appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY, limit);
+        }
+        return builder.build();
+    }
+
+    private void assertContactIdsInOrder(Uri uri, long... expectedContactIds) {
+        final Cursor c = mResolver.query(uri, new String[] {Contacts._ID}, null, null,
+                Contacts.DISPLAY_NAME);
+        try {
+            assertEquals(expectedContactIds.length, c.getCount());
+            for (long expectedContactId : expectedContactIds) {
+                assertTrue(c.moveToNext());
+                assertEquals(expectedContactId, c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     public void testQueryContactFilterByEmailAddress() {
         ContentValues values = new ContentValues();
         long rawContactId = createRawContact(values, "18004664411",
@@ -5102,6 +5372,43 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertStoredValues(filterUri, values);
     }
 
+    public void testSearchSnippetWithLazySnippeting() throws Exception {
+        long rawContactId = RawContactUtil.createRawContactWithName(mResolver);
+        long contactId = queryContactId(rawContactId);
+        insertNickname(rawContactId, "Incredible");
+
+        final String[] projection = new String[] {
+                Contacts._ID, Contacts.DISPLAY_NAME, SearchSnippets.SNIPPET};
+
+        // The snippet is computed when read, in the same format as in SQL.
+        Cursor c = mResolver.query(buildLazySnippetingFilterUri("inc"), projection, null, null,
+                null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(contactId, c.getLong(0));
+            assertEquals("[Incredible]", c.getString(2));
+        } finally {
+            c.close();
+        }
+
+        // No snippet when the display name matches.
+        c = mResolver.query(buildLazySnippetingFilterUri("john"), projection, null, null,
+                null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(contactId, c.getLong(0));
+            assertTrue(c.isNull(2));
+        } finally {
+            c.close();
+        }
+    }
+
+    private Uri buildLazySnippetingFilterUri(String filter) {
+        return buildFilterUri(filter, false).buildUpon()
+                .appendQueryParameter(ContactsProvider2.LAZY_SNIPPETING, "1")
+                .build();
+    }
+
     public void testSearchSnippetEmptyForNameInDisplayName() throws Exception {
         long rawContactId = RawContactUtil.createRawContact(mResolver);
         long contactId = queryContactId(rawContactId);
@@ -5431,6 +5738,73 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertStoredValuesWithProjection(contactUri, values);
     }
 
+    public void testStatusUpdateBulkInsert() {
+        long rawContactId = RawContactUtil.createRawContact(mResolver);
+        long aimDataId = ContentUris.parseId(
+                insertImHandle(rawContactId, Im.PROTOCOL_AIM, null, "aim"));
+        long customDataId = ContentUris.parseId(
+                insertImHandle(rawContactId, Im.PROTOCOL_CUSTOM, "my_im_proto", "my_im"));
+        long emailDataId = ContentUris.parseId(insertEmail(rawContactId, "m@acme.com"));
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        long icqDataId = ContentUris.parseId(
+                insertImHandle(rawContactId2, Im.PROTOCOL_ICQ, null, "icq"));
+
+        ContentValues[] values = new ContentValues[] {
+                buildPresenceValues(Im.PROTOCOL_AIM, null, "aim", StatusUpdates.AWAY),
+                buildPresenceValues(Im.PROTOCOL_CUSTOM, "my_im_proto", "my_im",
+                        StatusUpdates.IDLE),
+                // Match on email
+                buildPresenceValues(Im.PROTOCOL_GOOGLE_TALK, null, "m@acme.com",
+                        StatusUpdates.INVISIBLE),
+                // No match
+                buildPresenceValues(Im.PROTOCOL_ICQ, null, "12345",
+                        StatusUpdates.DO_NOT_DISTURB),
+                // Replaces the first row
+                buildPresenceValues(Im.PROTOCOL_AIM, null, "aim", StatusUpdates.AVAILABLE),
+                // With a status, inserted one by one
+                buildPresenceValues(Im.PROTOCOL_ICQ, null, "icq", StatusUpdates.IDLE),
+        };
+        values[5].put(StatusUpdates.STATUS, "Idle");
+        assertEquals(values.length, mResolver.bulkInsert(StatusUpdates.CONTENT_URI, values));
+
+        assertStoredValue(StatusUpdates.CONTENT_URI, aimDataId, StatusUpdates.PRESENCE,
+                StatusUpdates.AVAILABLE);
+        assertStoredValue(StatusUpdates.CONTENT_URI, customDataId, StatusUpdates.PRESENCE,
+                StatusUpdates.IDLE);
+        assertStoredValue(StatusUpdates.CONTENT_URI, emailDataId, StatusUpdates.PRESENCE,
+                StatusUpdates.INVISIBLE);
+        assertEquals(3, getCount(StatusUpdates.CONTENT_URI,
+                PresenceColumns.RAW_CONTACT_ID + "=" + rawContactId, null));
+        assertStoredValue(StatusUpdates.CONTENT_URI, icqDataId, StatusUpdates.STATUS, "Idle");
+
+        assertStoredValue(Contacts.CONTENT_URI, queryContactId(rawContactId),
+                Contacts.CONTACT_PRESENCE, StatusUpdates.AVAILABLE);
+        assertStoredValue(Contacts.CONTENT_URI, queryContactId(rawContactId2),
+                Contacts.CONTACT_PRESENCE, StatusUpdates.IDLE);
+
+        // Presence going down is aggregated as well.
+        values = new ContentValues[] {
+                buildPresenceValues(Im.PROTOCOL_AIM, null, "aim", StatusUpdates.OFFLINE),
+                buildPresenceValues(Im.PROTOCOL_CUSTOM, "my_im_proto", "my_im",
+                        StatusUpdates.IDLE),
+        };
+        mResolver.bulkInsert(StatusUpdates.CONTENT_URI, values);
+        assertStoredValue(StatusUpdates.CONTENT_URI, aimDataId, StatusUpdates.PRESENCE,
+                StatusUpdates.OFFLINE);
+        assertStoredValue(Contacts.CONTENT_URI, queryContactId(rawContactId),
+                Contacts.CONTACT_PRESENCE, StatusUpdates.IDLE);
+    }
+
+    private ContentValues buildPresenceValues(int protocol, String customProtocol, String handle,
+            int presence) {
+        ContentValues values = new ContentValues();
+        values.put(StatusUpdates.PROTOCOL, protocol);
+        values.put(StatusUpdates.CUSTOM_PROTOCOL, customProtocol);
+        values.put(StatusUpdates.IM_HANDLE, handle);
+        values.put(StatusUpdates.PRESENCE, presence);
+        return values;
+    }
+
     public void testStatusUpdateUpdateAndDelete() {
         long rawContactId = RawContactUtil.createRawContact(mResolver);
         insertImHandle(rawContactId, Im.PROTOCOL_AIM, null, "aim");
@@ -6737,6 +7111,53 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
                 Contacts.PHOTO_ID, ContentUris.parseId(photoUri1));
     }
 
+    public void testAccountDeletionInBatches() {
+        Account doomedAccount = new Account("doom", "doom");
+        Account safeAccount = mAccount;
+        ContactsProvider2 cp = (ContactsProvider2) getProvider();
+        cp.setStaleAccountBatchSizeForTest(2);
+        mActor.setAccounts(new Account[]{doomedAccount, safeAccount});
+        cp.onAccountsUpdated(new Account[]{doomedAccount, safeAccount});
+
+        long[] doomedRawContactIds = new long[5];
+        for (int i = 0; i < doomedRawContactIds.length; i++) {
+            doomedRawContactIds[i] = RawContactUtil.createRawContactWithName(mResolver,
+                    "Doomed" + i, "Contact", doomedAccount);
+        }
+        long doomedContactId = queryContactId(doomedRawContactIds[0]);
+
+        // A contact with raw contacts in both accounts, named by the doomed one.
+        long sharedRawContactId1 = RawContactUtil.createRawContactWithName(mResolver,
+                "Zed", "Shared", doomedAccount);
+        long sharedRawContactId2 = RawContactUtil.createRawContact(mResolver, safeAccount);
+        setAggregationException(AggregationExceptions.TYPE_KEEP_TOGETHER,
+                sharedRawContactId1, sharedRawContactId2);
+        long sharedContactId = queryContactId(sharedRawContactId1);
+        insertEmail(sharedRawContactId2, "amy@shared.com");
+        assertStoredValue(Contacts.CONTENT_URI, sharedContactId, Contacts.DISPLAY_NAME,
+                "Zed Shared");
+
+        mActor.setAccounts(new Account[]{safeAccount});
+        cp.onAccountsUpdated(new Account[]{safeAccount});
+
+        for (long rawContactId : doomedRawContactIds) {
+            assertStoredValues(ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId),
+                    new ContentValues[0]);
+        }
+        assertStoredValues(ContentUris.withAppendedId(Contacts.CONTENT_URI, doomedContactId),
+                new ContentValues[0]);
+        assertEquals(1, getCount(ContactsContract.DeletedContacts.CONTENT_URI,
+                ContactsContract.DeletedContacts.CONTACT_ID + "=" + doomedContactId, null));
+
+        // The shared contact survives, named after its remaining raw contact.
+        assertEquals(sharedContactId, queryContactId(sharedRawContactId2));
+        assertStoredValue(Contacts.CONTENT_URI, sharedContactId, Contacts.DISPLAY_NAME,
+                "amy@shared.com");
+        assertEquals(0, getCount(ContactsContract.DeletedContacts.CONTENT_URI,
+                ContactsContract.DeletedContacts.CONTACT_ID + "=" + sharedContactId, null));
+        assertEquals(1, getCount(RawContacts.CONTENT_URI, null, null));
+    }
+
     public void testStreamItemsCleanedUpOnAccountRemoval() {
         Account doomedAccount = new Account("doom", "doom");
         Account safeAccount = mAccount;
@@ -9072,6 +9493,95 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         }
     }
 
+    public void testChangeLog() {
+        final Uri uri = Uri.withAppendedPath(ContactsContract.AUTHORITY_URI, "change_log");
+        long since = 0;
+        try (Cursor c = mResolver.query(uri, new String[] {ChangeLogColumns._ID}, null, null,
+                ChangeLogColumns._ID + " DESC")) {
+            if (c.moveToFirst()) {
+                since = c.getLong(0);
+            }
+        }
+
+        final long rawContactId1 = RawContactUtil.createRawContact(mResolver, TestUtil.ACCOUNT_1);
+        final long rawContactId2 = RawContactUtil.createRawContact(mResolver, TestUtil.ACCOUNT_1);
+        DataUtil.insertStructuredName(mResolver, rawContactId1, "John", "Doe");
+        RawContactUtil.delete(mResolver, rawContactId2, true);
+
+        final Uri sinceUri = uri.buildUpon()
+                .appendQueryParameter(ChangeLogTableUtil.SINCE_PARAM_KEY, String.valueOf(since))
+                .build();
+        try (Cursor c = mResolver.query(sinceUri, new String[] {
+                ChangeLogColumns._ID,
+                ChangeLogColumns.RAW_CONTACT_ID,
+                ChangeLogColumns.CHANGE_TYPE}, null, null, null)) {
+            final long[][] expected = {
+                    {rawContactId1, ChangeLogTableUtil.TYPE_INSERTED},
+                    {rawContactId2, ChangeLogTableUtil.TYPE_INSERTED},
+                    {rawContactId1, ChangeLogTableUtil.TYPE_CHANGED},
+                    {rawContactId2, ChangeLogTableUtil.TYPE_DELETED},
+            };
+            assertEquals(expected.length, c.getCount());
+            long sequence = since;
+            for (long[] row : expected) {
+                assertTrue(c.moveToNext());
+                assertTrue(c.getLong(0) > sequence);
+                sequence = c.getLong(0);
+                assertEquals(row[0], c.getLong(1));
+                assertEquals(row[1], c.getLong(2));
+            }
+        }
+    }
+
+    public void testQueryDeletedContacts_paging() throws Exception {
+        sMockClock.install();
+        // Later than whatever previous tests logged.
+        sMockClock.setCurrentTimeMillis(Long.MAX_VALUE / 2);
+        final long start = sMockClock.currentTimeMillis();
+
+        final long first = assertContactCreateDelete().mContactId;
+
+        // Two contacts deleted at the same time, and logged together.
+        final long id1 = DatabaseAsserts.assertAndCreateContact(mResolver).mContactId;
+        final long id2 = DatabaseAsserts.assertAndCreateContact(mResolver).mContactId;
+        sMockClock.advance();
+        final long batchTime = sMockClock.currentTimeMillis();
+        mResolver.applyBatch(ContactsContract.AUTHORITY, Lists.newArrayList(
+                ContentProviderOperation.newDelete(
+                        ContentUris.withAppendedId(Contacts.CONTENT_URI, id1)).build(),
+                ContentProviderOperation.newDelete(
+                        ContentUris.withAppendedId(Contacts.CONTENT_URI, id2)).build()));
+        final long second = Math.min(id1, id2);
+        final long third = Math.max(id1, id2);
+
+        final long fourth = assertContactCreateDelete().mContactId;
+
+        assertDeletedContactsPage(start, null, first, second);
+        assertDeletedContactsPage(batchTime, second, third, fourth);
+        assertDeletedContactsPage(batchTime, null, fourth);
+        assertDeletedContactsPage(sMockClock.currentTimeMillis(), null);
+    }
+
+    private void assertDeletedContactsPage(long afterTimestamp, Long afterContactId,
+            long... expectedContactIds) {
+        final Uri.Builder builder = ContactsContract.DeletedContacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(DeletedContactsTableUtil.AFTER_TIMESTAMP_PARAM_KEY,
+                        String.valueOf(afterTimestamp))
+                .appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY, "2");
+        if (afterContactId != null) {
+            builder.appendQueryParameter(DeletedContactsTableUtil.AFTER_CONTACT_ID_PARAM_KEY,
+                    String.valueOf(afterContactId));
+        }
+        try (Cursor c = mResolver.query(builder.build(),
+                new String[] {ContactsContract.DeletedContacts.CONTACT_ID}, null, null, null)) {
+            assertEquals(expectedContactIds.length, c.getCount());
+            for (long expected : expectedContactIds) {
+                assertTrue(c.moveToNext());
+                assertEquals(expected, c.getLong(0));
+            }
+        }
+    }
+
     /**
      * Creates a contact in the local account. Assert it's not present in the delete log.
      * Delete it. And assert that the contact record is no longer present.
@@ -18,6 +18,9 @@ package com.android.providers.contacts;
 
 import static com.android.providers.contacts.TestUtils.cv;
 
+import com.android.providers.contacts.util.CommitStats;
+import com.android.providers.contacts.util.CommitStats.Phase;
+
 import com.google.android.collect.Lists;
 
 import android.content.ContentProviderOperation;
@@ -306,4 +309,22 @@ public class ContactsProvider2TransactionTest extends BaseContactsProvider2Test
         checkStoredProfile();
         checkStoredContact();
     }
+
+    public void testCommitStats() {
+        final CommitStats stats = mProvider.getCommitStatsForTest();
+        stats.reset();
+
+        mResolver.insert(RawContacts.CONTENT_URI, cv(RawContacts.LAST_TIME_CONTACTED, 86400));
+
+        // The insert commits on the contacts db, which runs the flush, aggregation and search
+        // index phases.
+        assertTrue(stats.getCommitCount() > 0);
+        assertTrue(stats.getPhaseCount(Phase.FLUSH) > 0);
+        assertTrue(stats.getPhaseCount(Phase.AGGREGATE) > 0);
+        assertTrue(stats.getPhaseCount(Phase.SEARCH_INDEX) > 0);
+        assertEquals(1, stats.getContactsAggregated());
+
+        stats.reset();
+        assertEquals(0, stats.getCommitCount());
+    }
 }
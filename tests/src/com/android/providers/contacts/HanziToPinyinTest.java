@@ -96,6 +96,24 @@ public class HanziToPinyinTest extends TestCase {
         assertEquals(tokens.get(6).type, Token.PINYIN);
     }
 
+    @SmallTest
+    public void testGetTokenRepeated() throws Exception {
+        if (!hasChineseTransliterator()) {
+            return;
+        }
+        // The second pass is served from the per-character table and must not share
+        // mutable tokens with the first one.
+        ArrayList<Token> first = HanziToPinyin.getInstance().getTokens(MISC);
+        ArrayList<Token> second = HanziToPinyin.getInstance().getTokens(MISC);
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertNotSame(first.get(i), second.get(i));
+            assertEquals(first.get(i).type, second.get(i).type);
+            assertEquals(first.get(i).source, second.get(i).source);
+            assertEquals(first.get(i).target, second.get(i).target);
+        }
+    }
+
     /**
      * Test each supported han against expected pinyin from transliterator.
      */
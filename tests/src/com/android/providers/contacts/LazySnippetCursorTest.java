@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.SearchSnippets;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link LazySnippetCursor}.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.android.providers.contacts.LazySnippetCursorTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@SmallTest
+public class LazySnippetCursorTest extends TestCase {
+
+    private static final int ID = 0;
+    private static final int DISPLAY_NAME = 1;
+    private static final int SNIPPET = 2;
+
+    private LazySnippetCursor mCursor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final MatrixCursor cursor = new MatrixCursor(
+                new String[] {Contacts._ID, Contacts.DISPLAY_NAME, SearchSnippets.SNIPPET});
+        cursor.addRow(new Object[] {1, "John Doe", "Incredible"});
+        cursor.addRow(new Object[] {2, "Incredible Hulk", "Incredible"});
+        mCursor = new LazySnippetCursor(cursor, "inc", '[', ']', "\u2026", 5);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCursor.close();
+        super.tearDown();
+    }
+
+    public void testSnippet() {
+        assertTrue(mCursor.moveToFirst());
+        assertEquals(Cursor.FIELD_TYPE_STRING, mCursor.getType(SNIPPET));
+        assertEquals("[Incredible]", mCursor.getString(SNIPPET));
+        assertEquals("John Doe", mCursor.getString(DISPLAY_NAME));
+
+        // No snippet when the display name already matches.
+        assertTrue(mCursor.moveToNext());
+        assertEquals(Cursor.FIELD_TYPE_NULL, mCursor.getType(SNIPPET));
+        assertTrue(mCursor.isNull(SNIPPET));
+        assertNull(mCursor.getString(SNIPPET));
+    }
+
+    public void testSnippetOnlyComputedWhenRead() {
+        while (mCursor.moveToNext()) {
+            mCursor.getLong(ID);
+            mCursor.getString(DISPLAY_NAME);
+        }
+        assertEquals(0, mCursor.getSnippetizeCount());
+
+        assertTrue(mCursor.moveToFirst());
+        mCursor.getType(SNIPPET);
+        mCursor.getString(SNIPPET);
+        assertEquals(1, mCursor.getSnippetizeCount());
+
+        assertTrue(mCursor.moveToLast());
+        mCursor.getString(SNIPPET);
+        assertEquals(2, mCursor.getSnippetizeCount());
+    }
+}
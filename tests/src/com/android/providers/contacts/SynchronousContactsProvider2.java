@@ -18,6 +18,7 @@ package com.android.providers.contacts;
 
 import android.accounts.Account;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
@@ -39,6 +40,9 @@ public class SynchronousContactsProvider2 extends ContactsProvider2 {
     private boolean mNetworkNotified;
     private boolean mIsPhone = true;
     private boolean mIsVoiceCapable = true;
+    private boolean mObserveCorpContacts;
+    private ContentObserver mCorpContactsObserver;
+    private boolean mCorpCallerIdAllowed = true;
 
     @Override
     public ContactsDatabaseHelper newDatabaseHelper(final Context context) {
@@ -91,6 +95,37 @@ public class SynchronousContactsProvider2 extends ContactsProvider2 {
         return mIsVoiceCapable;
     }
 
+    /**
+     * Changes in the corp CP2 are not notified to other providers in tests, so work profile
+     * lookups are only cached once a test calls this and notifies the observer itself, see
+     * {@link #getCorpContactsObserver}.
+     */
+    public void setObserveCorpContacts(boolean flag) {
+        mObserveCorpContacts = flag;
+    }
+
+    public ContentObserver getCorpContactsObserver() {
+        return mCorpContactsObserver;
+    }
+
+    @Override
+    protected boolean registerCorpContactsObserver(int corpUserId, ContentObserver observer) {
+        if (!mObserveCorpContacts) {
+            return false;
+        }
+        mCorpContactsObserver = observer;
+        return true;
+    }
+
+    public void setCorpCallerIdAllowed(boolean flag) {
+        mCorpCallerIdAllowed = flag;
+    }
+
+    @Override
+    protected boolean isCorpCallerIdAllowed(int corpUserId, String callingPackage) {
+        return mCorpCallerIdAllowed;
+    }
+
     @Override
     public boolean onCreate() {
         boolean created = super.onCreate();
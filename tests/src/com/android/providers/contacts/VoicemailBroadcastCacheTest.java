@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ComponentName;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.provider.VoicemailContract;
+import android.provider.VoicemailContract.Voicemails;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link VoicemailBroadcastCache}.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.android.providers.contacts.VoicemailBroadcastCacheTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@SmallTest
+public class VoicemailBroadcastCacheTest extends TestCase {
+
+    private static final String PACKAGE = "com.example.voicemail";
+
+    private final VoicemailBroadcastCache mCache = new VoicemailBroadcastCache();
+    private final Context mContext = mock(Context.class);
+    private final PackageManager mPackageManager = mock(PackageManager.class);
+    private final VoicemailPermissions mPermissions = mock(VoicemailPermissions.class);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final ResolveInfo resolveInfo = new ResolveInfo();
+        resolveInfo.activityInfo = new ActivityInfo();
+        resolveInfo.activityInfo.packageName = PACKAGE;
+        resolveInfo.activityInfo.name = PACKAGE + ".Receiver";
+        when(mContext.getPackageManager()).thenReturn(mPackageManager);
+        when(mPackageManager.queryBroadcastReceivers(any(Intent.class), anyInt()))
+                .thenReturn(Arrays.asList(resolveInfo));
+        when(mPermissions.packageHasReadAccess(PACKAGE)).thenReturn(true);
+    }
+
+    public void testReceiversResolvedOncePerDirectory() {
+        final List<ComponentName> expected =
+                Arrays.asList(new ComponentName(PACKAGE, PACKAGE + ".Receiver"));
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(expected, mCache.getReceiverComponents(mContext,
+                    VoicemailContract.ACTION_NEW_VOICEMAIL,
+                    ContentUris.withAppendedId(Voicemails.CONTENT_URI, i)));
+        }
+        verify(mPackageManager, times(1)).queryBroadcastReceivers(any(Intent.class), anyInt());
+        assertEquals(2, mCache.getReceiversHitCount());
+
+        // The directory URI and other actions are resolved separately.
+        mCache.getReceiverComponents(mContext, VoicemailContract.ACTION_NEW_VOICEMAIL,
+                Voicemails.CONTENT_URI);
+        mCache.getReceiverComponents(mContext, Intent.ACTION_PROVIDER_CHANGED,
+                Voicemails.CONTENT_URI);
+        verify(mPackageManager, times(3)).queryBroadcastReceivers(any(Intent.class), anyInt());
+
+        // A package change drops them.
+        mCache.onPackageChanged("com.example.other");
+        mCache.getReceiverComponents(mContext, Intent.ACTION_PROVIDER_CHANGED,
+                Voicemails.CONTENT_URI);
+        verify(mPackageManager, times(4)).queryBroadcastReceivers(any(Intent.class), anyInt());
+    }
+
+    public void testAccessCheckedOncePerPackage() {
+        assertTrue(mCache.packageHasReadAccess(mPermissions, PACKAGE));
+        assertTrue(mCache.packageHasReadAccess(mPermissions, PACKAGE));
+        assertFalse(mCache.packageHasOwnVoicemailAccess(mPermissions, PACKAGE));
+        assertFalse(mCache.packageHasOwnVoicemailAccess(mPermissions, PACKAGE));
+        verify(mPermissions, times(1)).packageHasReadAccess(PACKAGE);
+        verify(mPermissions, times(1)).packageHasOwnVoicemailAccess(PACKAGE);
+        assertEquals(2, mCache.getAccessHitCount());
+
+        // Changes to other packages don't matter.
+        mCache.onPackageChanged("com.example.other");
+        assertTrue(mCache.packageHasReadAccess(mPermissions, PACKAGE));
+        verify(mPermissions, times(1)).packageHasReadAccess(PACKAGE);
+
+        mCache.onPackageChanged(PACKAGE);
+        when(mPermissions.packageHasReadAccess(PACKAGE)).thenReturn(false);
+        assertFalse(mCache.packageHasReadAccess(mPermissions, PACKAGE));
+        verify(mPermissions, times(2)).packageHasReadAccess(PACKAGE);
+    }
+
+    public void testAccessExpires() {
+        final long[] now = {1000};
+        final VoicemailBroadcastCache cache = new VoicemailBroadcastCache() {
+            @Override
+            protected long uptimeMillis() {
+                return now[0];
+            }
+        };
+        cache.packageHasReadAccess(mPermissions, PACKAGE);
+        now[0] += VoicemailBroadcastCache.ACCESS_TIMEOUT_MILLIS;
+        cache.packageHasReadAccess(mPermissions, PACKAGE);
+        verify(mPermissions, times(1)).packageHasReadAccess(PACKAGE);
+        now[0] += 1;
+        cache.packageHasReadAccess(mPermissions, PACKAGE);
+        verify(mPermissions, times(2)).packageHasReadAccess(PACKAGE);
+    }
+}
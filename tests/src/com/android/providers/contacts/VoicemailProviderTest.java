@@ -323,6 +323,35 @@ public class VoicemailProviderTest extends BaseVoicemailProviderTest {
         assertEquals(0, getCount(uri, null, null));
     }
 
+    public void testDelete_deletesFiles() {
+        Uri uri = insertVoicemail();
+        insertVoicemail();
+        assertEquals(2, countFilesInTestDirectory());
+
+        // Files are deleted by a background task, which runs synchronously in tests.
+        assertEquals(1, mResolver.delete(uri, null, null));
+        assertEquals(1, countFilesInTestDirectory());
+
+        assertEquals(1, mResolver.delete(voicemailUri(), null, null));
+        assertEquals(0, countFilesInTestDirectory());
+    }
+
+    public void testInsertAfterDelete_idNotReused() throws Exception {
+        Uri uri1 = insertVoicemail();
+        mResolver.delete(uri1, null, null);
+        Uri uri2 = insertVoicemail();
+        assertTrue(ContentUris.parseId(uri2) > ContentUris.parseId(uri1));
+        assertEquals(1, countFilesInTestDirectory());
+
+        // The new voicemail has a file of its own.
+        OutputStream out = mResolver.openOutputStream(uri2);
+        out.write(new byte[] {0x1, 0x2});
+        out.close();
+        InputStream in = mResolver.openInputStream(uri2);
+        assertEquals(2, in.read(new byte[4]));
+        in.close();
+    }
+
     public void testUpdateAfterDelete_lastModifiedNotChanged() {
         setUpForFullPermission();
         setTimeForTest(1000L);
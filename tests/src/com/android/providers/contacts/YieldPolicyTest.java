@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link YieldPolicy}.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.android.providers.contacts.YieldPolicyTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@SmallTest
+public class YieldPolicyTest extends TestCase {
+
+    private static class TestYieldPolicy extends YieldPolicy {
+        long mNow;
+
+        TestYieldPolicy() {
+            super(100, 8, 2, 32);
+        }
+
+        @Override
+        protected long uptimeMillis() {
+            return mNow;
+        }
+    }
+
+    private static int countOpsUntilYield(YieldPolicy policy) {
+        int ops = 1;
+        while (!policy.onOperation()) {
+            ops++;
+        }
+        return ops;
+    }
+
+    public void testYieldsAfterOpsBudget() {
+        final TestYieldPolicy policy = new TestYieldPolicy();
+        assertEquals(8, countOpsUntilYield(policy));
+    }
+
+    public void testYieldsAfterTimeBudget() {
+        final TestYieldPolicy policy = new TestYieldPolicy();
+        assertFalse(policy.onOperation());
+        policy.mNow += 100;
+        assertTrue(policy.onOperation());
+    }
+
+    public void testAdaptsToContention() {
+        final TestYieldPolicy policy = new TestYieldPolicy();
+
+        // Nobody waiting: check less and less often, up to the maximum.
+        policy.onYieldAttempted(false);
+        assertEquals(16, policy.getOpsBetweenYields());
+        policy.onYieldAttempted(false);
+        policy.onYieldAttempted(false);
+        assertEquals(32, policy.getOpsBetweenYields());
+        assertEquals(32, countOpsUntilYield(policy));
+
+        // Contended: check more and more often, down to the minimum.
+        policy.onYieldAttempted(true);
+        assertEquals(16, policy.getOpsBetweenYields());
+        for (int i = 0; i < 10; i++) {
+            policy.onYieldAttempted(true);
+        }
+        assertEquals(2, policy.getOpsBetweenYields());
+
+        assertEquals(14, policy.getYieldAttempts());
+        assertEquals(11, policy.getYields());
+    }
+
+    public void testYieldAttemptResetsBudgets() {
+        final TestYieldPolicy policy = new TestYieldPolicy();
+        policy.mNow += 100;
+        assertTrue(policy.onOperation());
+        policy.onYieldAttempted(false);
+        assertFalse(policy.onOperation());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.enterprise;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Directory;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link EnterpriseContactsCursorWrapper}.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class \
+ *         com.android.providers.contacts.enterprise.EnterpriseContactsCursorWrapperTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@SmallTest
+public class EnterpriseContactsCursorWrapperTest extends TestCase {
+
+    private static final String[] COLUMNS = new String[] {
+            Contacts.DISPLAY_NAME,
+            Contacts.PHOTO_THUMBNAIL_URI,
+            Contacts.PHOTO_URI,
+            Contacts.PHOTO_ID,
+            Contacts.LOOKUP_KEY,
+            Contacts.CUSTOM_RINGTONE,
+            Contacts._ID, // Only in the work projection.
+    };
+
+    private static final String[] ORIGINAL_COLUMNS = new String[] {
+            Contacts.DISPLAY_NAME,
+            Contacts.PHOTO_THUMBNAIL_URI,
+            Contacts.PHOTO_URI,
+            Contacts.PHOTO_ID,
+            Contacts.LOOKUP_KEY,
+            Contacts.CUSTOM_RINGTONE,
+    };
+
+    private static final int ROW_COUNT = 10000;
+
+    private static Cursor createWorkCursor(int rowCount) {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int i = 1; i <= rowCount; i++) {
+            cursor.addRow(new Object[] {
+                    "Name " + i,
+                    "content://com.android.contacts/contacts/" + i + "/photo",
+                    "content://com.android.contacts/display_photo/" + i,
+                    i,
+                    i % 2 == 0 ? "key" + i : null,
+                    "content://media/external/audio/media/" + i,
+                    i,
+            });
+        }
+        return cursor;
+    }
+
+    public void testColumns() {
+        final Cursor cursor = new EnterpriseContactsCursorWrapper(createWorkCursor(1),
+                ORIGINAL_COLUMNS, new int[] {6}, null);
+        assertEquals(ORIGINAL_COLUMNS.length, cursor.getColumnCount());
+        assertSame(ORIGINAL_COLUMNS, cursor.getColumnNames());
+
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Name 1", cursor.getString(0));
+        assertEquals(Contacts.ENTERPRISE_CONTACT_ID_BASE + 1, cursor.getLong(6));
+        assertEquals("1", cursor.getString(6));
+        assertNull(cursor.getString(3));
+        assertEquals(0, cursor.getLong(3));
+        assertNull(cursor.getString(4));
+        assertNull(cursor.getString(5));
+    }
+
+    public void testRemoteDirectory() {
+        final long directoryId = Directory.ENTERPRISE_DIRECTORY_ID_BASE + 10;
+        final Cursor cursor = new EnterpriseContactsCursorWrapper(createWorkCursor(1),
+                ORIGINAL_COLUMNS, new int[] {6}, directoryId);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getString(1).startsWith(Directory.ENTERPRISE_FILE_URI.toString()));
+        assertTrue(cursor.getString(2).contains("directory=" + directoryId));
+    }
+
+    /**
+     * Reads every cell of a large work profile cursor, like a contact list would.
+     */
+    public void testReadAllRows() {
+        final Cursor cursor = new EnterpriseContactsCursorWrapper(createWorkCursor(ROW_COUNT),
+                ORIGINAL_COLUMNS, new int[] {6}, null);
+        int rows = 0;
+        while (cursor.moveToNext()) {
+            rows++;
+            final long corpContactId = Contacts.ENTERPRISE_CONTACT_ID_BASE + rows;
+            assertEquals(corpContactId, cursor.getLong(6));
+            assertEquals("Name " + rows, cursor.getString(0));
+            assertEquals("content://com.android.contacts/contacts_corp/" + rows + "/photo",
+                    cursor.getString(1));
+            assertEquals("content://com.android.contacts/contacts_corp/" + rows
+                    + "/display_photo", cursor.getString(2));
+            assertNull(cursor.getString(3));
+            assertEquals(rows % 2 == 0
+                    ? Contacts.ENTERPRISE_CONTACT_LOOKUP_PREFIX + "key" + rows : null,
+                    cursor.getString(4));
+        }
+        assertEquals(ROW_COUNT, rows);
+        cursor.close();
+    }
+}
@@ -200,6 +200,29 @@ public class SqlCheckerTest extends FixedAndroidTestCase {
         checkEnsureNoInvalidTokens(true, "a b /*x_*/ c");
     }
 
+    public void testEnsureNoInvalidTokensWithManyTokens() {
+        final ArrayList<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            tokens.add("Table" + i);
+        }
+        final SqlChecker checker = new SqlChecker(tokens);
+
+        checker.ensureNoInvalidTokens("table100 = table1x AND tabl = 1");
+        checker.ensureNoInvalidTokens("a = 'table1' OR b = \"table1x\"");
+        for (int i = 0; i < 100; i++) {
+            for (String sql : new String[] {
+                    "a = TABLE" + i + ".b", "a = table" + i, "\"table" + i + "\"",
+                    "[tAbLe" + i + "]"}) {
+                try {
+                    checker.ensureNoInvalidTokens(sql);
+                    fail("Should have thrown for " + sql);
+                } catch (InvalidSqlException e) {
+                    // okay
+                }
+            }
+        }
+    }
+
     private void checkEnsureSingleTokenOnly(boolean ok, String sql, String... tokens) {
         if (ok) {
             getChecker(tokens).ensureSingleTokenOnly(sql);
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.sqlite;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ValidatedSqlCache}.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.android.providers.contacts.sqlite.ValidatedSqlCacheTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@SmallTest
+public class ValidatedSqlCacheTest extends TestCase {
+
+    public void testContains() {
+        final ValidatedSqlCache cache = new ValidatedSqlCache("test");
+        assertFalse(cache.contains("a.b", "x=1"));
+
+        cache.add("a.b", "x=1");
+        assertTrue(cache.contains("a.b", "x=1"));
+        assertFalse(cache.contains("a.b", "x=2"));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    public void testPerPackage() {
+        final ValidatedSqlCache cache = new ValidatedSqlCache("test");
+        cache.add("a.b", "x=1");
+        assertFalse(cache.contains("c.d", "x=1"));
+        assertFalse(cache.contains(null, "x=1"));
+
+        cache.add(null, "x=1");
+        assertTrue(cache.contains(null, "x=1"));
+
+        // Filling up the fragments of one package doesn't evict the others.
+        for (int i = 0; i < ValidatedSqlCache.MAX_FRAGMENTS_PER_PACKAGE; i++) {
+            cache.add("c.d", "y=" + i);
+        }
+        assertTrue(cache.contains("a.b", "x=1"));
+        assertFalse(cache.contains("c.d", "x=1"));
+    }
+
+    public void testEviction() {
+        final ValidatedSqlCache cache = new ValidatedSqlCache("test");
+        for (int i = 0; i <= ValidatedSqlCache.MAX_FRAGMENTS_PER_PACKAGE; i++) {
+            cache.add("a.b", "x=" + i);
+        }
+        assertFalse(cache.contains("a.b", "x=0"));
+        assertTrue(cache.contains("a.b", "x=" + ValidatedSqlCache.MAX_FRAGMENTS_PER_PACKAGE));
+    }
+
+    public void testLongFragment() {
+        final ValidatedSqlCache cache = new ValidatedSqlCache("test");
+        final StringBuilder sb = new StringBuilder("x IN (0");
+        while (sb.length() <= ValidatedSqlCache.MAX_FRAGMENT_LENGTH) {
+            sb.append(",0");
+        }
+        sb.append(')');
+        cache.add("a.b", sb.toString());
+        assertFalse(cache.contains("a.b", sb.toString()));
+    }
+}
@@ -16,11 +16,14 @@
 
 package com.android.providers.contacts.util;
 
+import static com.android.providers.contacts.util.DbQueryUtils.appendInListWithBindArgs;
 import static com.android.providers.contacts.util.DbQueryUtils.checkForSupportedColumns;
 import static com.android.providers.contacts.util.DbQueryUtils.concatenateClauses;
+import static com.android.providers.contacts.util.DbQueryUtils.concatenateSelectionArgs;
 import static com.android.providers.contacts.util.DbQueryUtils.escapeLikeValue;
 
 import android.content.ContentValues;
+import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.common.content.ProjectionMap;
@@ -28,6 +31,9 @@ import com.android.providers.contacts.EvenMoreAsserts;
 
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * Unit tests for the {@link DbQueryUtils} class.
  * Run the test like this:
@@ -109,4 +115,33 @@ public class DBQueryUtilsTest extends TestCase {
         escapeLikeValue(sb, "my test string", '\\');
         assertEquals("my test string", sb.toString());
     }
+
+    public void testConcatenateSelectionArgs() {
+        final String[] first = {"a", "b"};
+        final String[] second = {"c"};
+        assertNull(concatenateSelectionArgs(null, null));
+        assertSame(first, concatenateSelectionArgs(first, null));
+        assertSame(second, concatenateSelectionArgs(new String[0], second));
+        MoreAsserts.assertEquals(new String[] {"a", "b", "c"},
+                concatenateSelectionArgs(first, second));
+    }
+
+    public void testAppendInListWithBindArgs() {
+        StringBuilder sb = new StringBuilder();
+        ArrayList<String> args = new ArrayList<>();
+        appendInListWithBindArgs(sb, Arrays.asList("a"), args);
+        assertEquals("(?)", sb.toString());
+        assertEquals(Arrays.asList("a"), args);
+
+        sb = new StringBuilder();
+        args = new ArrayList<>();
+        appendInListWithBindArgs(sb, Arrays.asList("a", "b", "c"), args);
+        assertEquals("(?,?,?,?)", sb.toString());
+        assertEquals(Arrays.asList("a", "b", "c", "c"), args);
+
+        // Lists in the same bucket produce the same SQL.
+        final StringBuilder sb2 = new StringBuilder();
+        appendInListWithBindArgs(sb2, Arrays.asList("x", "y", "z", "w"), new ArrayList<>());
+        assertEquals(sb.toString(), sb2.toString());
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.providers.contacts.util;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.providers.contacts.util.OperationStats.LatencyHistogram;
+import com.android.providers.contacts.util.OperationStats.OperationType;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Run with:
+ atest ContactsProviderTests:OperationStatsTest
+ */
+@SmallTest
+public class OperationStatsTest extends TestCase {
+    public void testHistogramPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100, histogram.getMax());
+
+        // Buckets are within 25% of the recorded value.
+        final long p50 = histogram.getPercentile(50);
+        assertTrue("p50=" + p50, p50 >= 50 && p50 <= 63);
+        final long p99 = histogram.getPercentile(99);
+        assertTrue("p99=" + p99, p99 >= 99 && p99 <= 100);
+    }
+
+    public void testHistogramBucketsAreMonotonic() {
+        int lastBucket = -1;
+        for (long value = 0; value < 1L << 20; value = value * 5 / 4 + 1) {
+            final int bucket = LatencyHistogram.getBucket(value);
+            assertTrue(bucket >= lastBucket);
+            lastBucket = bucket;
+        }
+    }
+
+    public void testRecordAndReset() {
+        final OperationStats stats = new OperationStats(2);
+        final long start = SystemClock.elapsedRealtimeNanos();
+        stats.record(OperationType.QUERY, 1000, start, 0, 3, "name='x'", null);
+        stats.record(OperationType.QUERY, 1000, start, 0, 3, null, null);
+        stats.record(OperationType.QUERY, 1001, start, 0, 3, null, null);
+        stats.record(OperationType.INSERT, 1000, start, 0, 1, null, null);
+
+        assertEquals(2, stats.getLatencyHistogram(OperationType.QUERY, 1000).getCount());
+        assertEquals(1, stats.getLatencyHistogram(OperationType.QUERY, 1001).getCount());
+        assertEquals(1, stats.getLatencyHistogram(OperationType.INSERT, 1000).getCount());
+        assertNull(stats.getLatencyHistogram(OperationType.DELETE, 1000));
+        assertEquals(2, stats.getSlowOperationCount());
+
+        final StringWriter sw = new StringWriter();
+        stats.dump(new PrintWriter(sw), "");
+        assertTrue(sw.toString().contains("query match=1000: n=2"));
+
+        stats.reset();
+        assertNull(stats.getLatencyHistogram(OperationType.QUERY, 1000));
+        assertEquals(0, stats.getSlowOperationCount());
+    }
+
+    public void testUnmeasuredLockWaitNotDumped() {
+        final OperationStats stats = new OperationStats();
+        stats.record(OperationType.QUERY, 1000, SystemClock.elapsedRealtimeNanos(), 0, null,
+                null);
+
+        final StringWriter sw = new StringWriter();
+        stats.dump(new PrintWriter(sw), "");
+        assertTrue(sw.toString().contains("query match=1000: n=1"));
+        assertFalse(sw.toString().contains("lockWait"));
+    }
+
+    public void testNoMatch() {
+        final OperationStats stats = new OperationStats();
+        stats.record(OperationType.APPLY_BATCH, OperationStats.NO_MATCH,
+                SystemClock.elapsedRealtimeNanos(), 0, 10, null, null);
+        assertEquals(1, stats.getLatencyHistogram(OperationType.APPLY_BATCH,
+                OperationStats.NO_MATCH).getCount());
+
+        final StringWriter sw = new StringWriter();
+        stats.dump(new PrintWriter(sw), "");
+        assertTrue(sw.toString().contains("applyBatch match=-1"));
+    }
+
+    public void testSqlShape() {
+        assertNull(OperationStats.getSqlShape(null, null));
+        assertEquals("display_name=? AND _id IN (?,?)",
+                OperationStats.getSqlShape("display_name='John ''J'' Smith' AND _id IN (1,23)",
+                        null));
+        assertEquals("data1 LIKE ? ORDER BY sort_key LIMIT ?",
+                OperationStats.getSqlShape("data1 LIKE '%555%'", "sort_key LIMIT 10"));
+        assertEquals("data1=?", OperationStats.getSqlShape("data1=2.5", null));
+    }
+}